@@ -0,0 +1,264 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.ThreadTools;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adjust the number of tile workers and the batch size while inference is running, aiming to maximize
+ * the number of tiles processed per second.
+ * <p>
+ * At regular intervals, the controller checks how full the batch queue of the {@link TileLoader} is,
+ * and the time taken by the predictors per tile:
+ * <ul>
+ *     <li>If the queue is usually empty, inference is waiting for tiles, and so another worker is added.</li>
+ *     <li>If the queue is usually full, tiles are loaded faster than needed, and so a worker is removed
+ *     (leaving more CPU available for inference).</li>
+ *     <li>Otherwise, a larger batch size is tried, and kept only if the time per tile falls.
+ *     If the first larger batch size doesn't help, smaller batch sizes are tried in the same way.
+ *     Once changing the batch size no longer helps, it is left unchanged.</li>
+ * </ul>
+ * If the available heap memory becomes low, the batch size is halved (and not increased again),
+ * since fewer tiles are then held in each queued batch.
+ * <p>
+ * When several models share the tiles, the time per tile is the total time taken by the predictors of
+ * every model, and a tile only counts as processed once every model has processed it.
+ * <p>
+ * After each change, one interval is skipped so that batches created with the old settings don't influence
+ * the next measurement.
+ */
+class AdaptiveController implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveController.class);
+
+    /**
+     * Interval between updates.
+     */
+    private static final long INTERVAL_MILLIS = 2000;
+
+    /**
+     * Batch queue occupancy below which inference is considered to be waiting for tiles.
+     */
+    private static final double LOW_OCCUPANCY = 0.25;
+
+    /**
+     * Batch queue occupancy above which tile loading is considered to be ahead of inference.
+     */
+    private static final double HIGH_OCCUPANCY = 0.75;
+
+    /**
+     * Minimum relative reduction in the time per tile needed to keep a different batch size.
+     */
+    private static final double MIN_IMPROVEMENT = 0.05;
+
+    /**
+     * Proportion of the maximum heap size below which available memory is considered to be low.
+     */
+    private static final double LOW_MEMORY_FRACTION = 0.1;
+
+    private final TileLoader tileLoader;
+    private final List<List<PredictorPool<?>>> predictorPools;
+    private final ScheduledExecutorService executor;
+
+    private long lastTime;
+    private long lastTiles;
+    private long lastBusyNanos;
+    private double occupancySum;
+    private int occupancySamples;
+
+    private boolean settling;
+    private int previousBatchSize = -1;
+    private double previousMillisPerTile = Double.NaN;
+    private boolean batchSizeConverged;
+    private boolean increasingBatchSize = true;
+    private boolean batchSizeImproved;
+    private int adjustments;
+    private double lastTilesPerSecond = Double.NaN;
+
+    /**
+     * Create a controller for a tile loader and the predictor pools consuming its batches.
+     * @param tileLoader the loader, which should have been built with any initial workers and batch size
+     * @param predictorPools the predictors consuming batches from the loader, with one list for each model
+     *                       (containing one pool for each device)
+     */
+    AdaptiveController(TileLoader tileLoader, List<List<PredictorPool<?>>> predictorPools) {
+        this.tileLoader = tileLoader;
+        this.predictorPools = predictorPools.stream().map(List::copyOf).toList();
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                ThreadTools.createThreadFactory("wsinfer-adaptive", true));
+    }
+
+    /**
+     * Start monitoring and adjusting the settings.
+     */
+    void start() {
+        lastTime = System.nanoTime();
+        logger.debug("Adaptive loading starting with {} workers, batch size {}",
+                tileLoader.getWorkerLimit(), tileLoader.getBatchSize());
+        // Sample the queue more often than we adjust, since its occupancy fluctuates with every batch
+        long sampleMillis = INTERVAL_MILLIS / 10;
+        executor.scheduleAtFixedRate(this::sample, sampleMillis, sampleMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void sample() {
+        try {
+            occupancySum += tileLoader.getBatchQueueOccupancy();
+            occupancySamples++;
+            if (System.nanoTime() - lastTime >= INTERVAL_MILLIS * 1_000_000L)
+                update();
+        } catch (RuntimeException e) {
+            // Don't let an exception cancel the scheduled task
+            logger.warn("Error updating adaptive settings: {}", e.getMessage(), e);
+        }
+    }
+
+    private void update() {
+        long time = System.nanoTime();
+        // Tiles are only complete once they have been processed by every model
+        long tiles = Long.MAX_VALUE;
+        long busyNanos = 0;
+        for (var modelPools : predictorPools) {
+            long modelTiles = 0;
+            for (var predictorPool : modelPools) {
+                for (var stats : predictorPool.getStatistics()) {
+                    modelTiles += stats.getTiles();
+                    busyNanos += stats.getBusyNanos();
+                }
+            }
+            tiles = Math.min(tiles, modelTiles);
+        }
+        if (tiles == Long.MAX_VALUE)
+            tiles = 0;
+        long nTiles = tiles - lastTiles;
+        double occupancy = occupancySamples == 0 ? 0 : occupancySum / occupancySamples;
+        double tilesPerSecond = nTiles * 1e9 / (time - lastTime);
+        double millisPerTile = nTiles == 0 ? Double.NaN : (busyNanos - lastBusyNanos) / 1e6 / nTiles;
+
+        lastTime = time;
+        lastTiles = tiles;
+        lastBusyNanos = busyNanos;
+        occupancySum = 0;
+        occupancySamples = 0;
+
+        if (nTiles == 0)
+            return;
+        lastTilesPerSecond = tilesPerSecond;
+        if (settling) {
+            // Batches made before the last change have now been consumed
+            settling = false;
+            return;
+        }
+        logger.trace("Adaptive loading: {} tiles/s, {} ms per tile, queue occupancy {}",
+                tilesPerSecond, millisPerTile, occupancy);
+
+        if (isMemoryLow() && tileLoader.getBatchSize() > 1) {
+            // Smaller batches mean fewer tiles waiting in the queue
+            logger.debug("Adaptive loading: memory is low, reducing batch size");
+            previousBatchSize = -1;
+            previousMillisPerTile = Double.NaN;
+            batchSizeConverged = true;
+            changeBatchSize(tileLoader.getBatchSize() / 2);
+        } else if (previousBatchSize > 0) {
+            evaluateBatchSize(millisPerTile);
+        } else if (occupancy < LOW_OCCUPANCY && tileLoader.canAdjustWorkers()
+                && tileLoader.getWorkerLimit() < tileLoader.getNumWorkers()) {
+            changeWorkers(tileLoader.getWorkerLimit() + 1);
+        } else if (occupancy > HIGH_OCCUPANCY && tileLoader.canAdjustWorkers() && tileLoader.getWorkerLimit() > 1) {
+            changeWorkers(tileLoader.getWorkerLimit() - 1);
+        } else if (!batchSizeConverged) {
+            // Try a different batch size, and check next time whether it helped
+            int batchSize = tileLoader.getBatchSize();
+            int nextBatchSize = increasingBatchSize ? Math.min(batchSize * 2, tileLoader.getMaxBatchSize()) : batchSize / 2;
+            if (nextBatchSize < 1 || nextBatchSize == batchSize) {
+                // Can't go any further in this direction
+                if (increasingBatchSize && !batchSizeImproved)
+                    increasingBatchSize = false;
+                else
+                    batchSizeConverged = true;
+                return;
+            }
+            previousBatchSize = batchSize;
+            previousMillisPerTile = millisPerTile;
+            changeBatchSize(nextBatchSize);
+        }
+    }
+
+    /**
+     * Check whether the memory available to the JVM is low, considering the maximum heap size.
+     * @return
+     */
+    private static boolean isMemoryLow() {
+        var runtime = Runtime.getRuntime();
+        long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return available < runtime.maxMemory() * LOW_MEMORY_FRACTION;
+    }
+
+    private void evaluateBatchSize(double millisPerTile) {
+        if (millisPerTile <= previousMillisPerTile * (1 - MIN_IMPROVEMENT)) {
+            logger.debug("Batch size {} reduced time per tile from {} to {} ms", tileLoader.getBatchSize(),
+                    String.format("%.2f", previousMillisPerTile), String.format("%.2f", millisPerTile));
+            batchSizeImproved = true;
+        } else {
+            logger.debug("Batch size {} did not reduce time per tile ({} vs {} ms), reverting to {}",
+                    tileLoader.getBatchSize(), String.format("%.2f", millisPerTile),
+                    String.format("%.2f", previousMillisPerTile), previousBatchSize);
+            changeBatchSize(previousBatchSize);
+            // If the first larger batch didn't help, try smaller batches instead
+            if (increasingBatchSize && !batchSizeImproved)
+                increasingBatchSize = false;
+            else
+                batchSizeConverged = true;
+        }
+        previousBatchSize = -1;
+        previousMillisPerTile = Double.NaN;
+    }
+
+    private void changeWorkers(int n) {
+        logger.debug("Adaptive loading: changing from {} to {} workers", tileLoader.getWorkerLimit(), n);
+        tileLoader.setWorkerLimit(n);
+        settling = true;
+        adjustments++;
+    }
+
+    private void changeBatchSize(int n) {
+        logger.debug("Adaptive loading: changing batch size from {} to {}", tileLoader.getBatchSize(), n);
+        tileLoader.setBatchSize(n);
+        settling = true;
+        adjustments++;
+    }
+
+    /**
+     * Stop adjusting the settings, and log the settings that were used at the end.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        synchronized (this) {
+            logger.info("Adaptive loading finished with {} workers and batch size {} after {} adjustments ({} tiles/s)",
+                    tileLoader.getWorkerLimit(), tileLoader.getBatchSize(), adjustments,
+                    String.format("%.1f", lastTilesPerSecond));
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Cheap check to identify tiles that contain only background (e.g. glass in a brightfield image),
+ * so that inference can be skipped for them.
+ * <p>
+ * This uses simple statistics computed from a subsample of pixels: a pixel is considered to be tissue if it is
+ * either sufficiently saturated, or sufficiently dark.
+ * A tile is background if the proportion of tissue pixels is below a threshold.
+ */
+class BackgroundDetector {
+
+    private final double saturationThreshold;
+    private final double intensityThreshold;
+    private final double minTissueFraction;
+    private final int stride;
+
+    /**
+     * Create a background detector.
+     * @param saturationThreshold minimum saturation (0-1) for a pixel to be considered tissue
+     * @param intensityThreshold maximum mean RGB intensity (0-1) for a pixel to be considered tissue
+     * @param minTissueFraction minimum proportion of tissue pixels for a tile not to be background
+     * @param stride spacing between pixels that are checked, in both x and y
+     */
+    BackgroundDetector(double saturationThreshold, double intensityThreshold, double minTissueFraction, int stride) {
+        if (stride < 1)
+            throw new IllegalArgumentException("Stride must be >= 1");
+        this.saturationThreshold = saturationThreshold;
+        this.intensityThreshold = intensityThreshold;
+        this.minTissueFraction = minTissueFraction;
+        this.stride = stride;
+    }
+
+    /**
+     * Create a background detector with default thresholds suitable for brightfield images.
+     * @return
+     */
+    static BackgroundDetector createDefault() {
+        return new BackgroundDetector(0.07, 0.8, 0.05, 4);
+    }
+
+    /**
+     * Check if an image contains only background.
+     * @param img the tile to check
+     * @return true if the tile should be considered as background
+     */
+    boolean isBackground(BufferedImage img) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int nx = (width + stride - 1) / stride;
+        int[] row = new int[width];
+        int nTissue = 0;
+        int nChecked = 0;
+        // Stop as soon as we know there is enough tissue
+        int nTissueRequired = (int)Math.ceil(minTissueFraction * nx * ((height + stride - 1) / stride));
+        for (int y = 0; y < height; y += stride) {
+            img.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x += stride) {
+                int rgb = row[x];
+                int r = (rgb >> 16) & 0xff;
+                int g = (rgb >> 8) & 0xff;
+                int b = rgb & 0xff;
+                int max = Math.max(r, Math.max(g, b));
+                int min = Math.min(r, Math.min(g, b));
+                double saturation = max == 0 ? 0 : (max - min) / (double)max;
+                double intensity = (r + g + b) / (3.0 * 255.0);
+                if (saturation >= saturationThreshold || intensity <= intensityThreshold) {
+                    nTissue++;
+                    if (nTissue >= nTissueRequired && nTissueRequired > 0)
+                        return false;
+                }
+                nChecked++;
+            }
+        }
+        return nChecked > 0 && nTissue < nTissueRequired;
+    }
+
+    @Override
+    public String toString() {
+        return "BackgroundDetector[saturation=" + saturationThreshold + ", intensity=" + intensityThreshold +
+                ", minTissue=" + minTissueFraction + ", stride=" + stride + "]";
+    }
+
+}
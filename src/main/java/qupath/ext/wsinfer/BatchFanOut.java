@@ -0,0 +1,119 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.ThreadTools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Pass every batch from a {@link TileLoader} to several consumers, so that multiple models can share the same
+ * tile reads.
+ * <p>
+ * Each consumer has its own small queue.
+ * Batches are reference counted, so that their buffers are only released once every consumer has called
+ * {@link TileLoader.TileBatch#release()}.
+ * The slowest consumer determines how quickly batches are taken from the loader.
+ */
+class BatchFanOut implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchFanOut.class);
+
+    /**
+     * Number of batches that may be waiting for each consumer.
+     */
+    private static final int QUEUE_CAPACITY = 2;
+
+    private final BlockingQueue<TileLoader.TileBatch> source;
+    private final BooleanSupplier isSourceRunning;
+    private final List<BlockingQueue<TileLoader.TileBatch>> queues = new ArrayList<>();
+    private final Thread thread;
+
+    /**
+     * Create a fan-out for the batches of a tile loader.
+     * @param tileLoader the tile loader
+     * @param nConsumers the number of consumers
+     */
+    BatchFanOut(TileLoader tileLoader, int nConsumers) {
+        this.source = tileLoader.getBatchQueue();
+        this.isSourceRunning = tileLoader::isRunning;
+        for (int i = 0; i < nConsumers; i++)
+            queues.add(new ArrayBlockingQueue<>(QUEUE_CAPACITY));
+        this.thread = ThreadTools.createThreadFactory("wsinfer-fanout", true).newThread(this);
+    }
+
+    /**
+     * Start passing batches to the consumers.
+     */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stop passing batches to the consumers, e.g. because inference failed.
+     */
+    void stop() {
+        thread.interrupt();
+    }
+
+    /**
+     * Get the queue for a consumer.
+     * @param index the index of the consumer
+     * @return
+     */
+    BlockingQueue<TileLoader.TileBatch> getQueue(int index) {
+        return queues.get(index);
+    }
+
+    /**
+     * Query whether batches may still be added to the consumer queues.
+     * @return
+     */
+    boolean isRunning() {
+        return thread.isAlive();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                var batch = source.poll(1, TimeUnit.SECONDS);
+                if (batch == null) {
+                    if (!isSourceRunning.getAsBoolean() && source.isEmpty())
+                        break;
+                    continue;
+                }
+                if (!batch.isEndOfStream())
+                    batch.retain(queues.size() - 1);
+                for (var queue : queues)
+                    queue.put(batch);
+                if (batch.isEndOfStream())
+                    break;
+            }
+        } catch (InterruptedException e) {
+            logger.debug("Batch fan-out interrupted: {}", e.getMessage(), e);
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+/**
+ * Predictions for all the tiles in a batch, stored in primitive arrays.
+ * <p>
+ * Probabilities are stored in a single array in tile-major order, so that the probability of class {@code c}
+ * for tile {@code i} is at index {@code i * numClasses + c}.
+ * The most probable class for each tile is also stored, so that it doesn't need to be found again for every tile.
+ */
+class BatchPredictions {
+
+    private final int numClasses;
+    private final float[] probabilities;
+    private final int[] topClasses;
+    private final float[] variance;
+    private final float[] entropy;
+
+    /**
+     * Create predictions for a batch.
+     * @param numClasses the number of classes
+     * @param probabilities the probabilities for each tile and class
+     * @param topClasses the index of the most probable class for each tile
+     * @param variance the variance between augmented variants for each tile, or null if augmentation wasn't used
+     * @param entropy the entropy of the probabilities for each tile, or null if augmentation wasn't used
+     */
+    BatchPredictions(int numClasses, float[] probabilities, int[] topClasses, float[] variance, float[] entropy) {
+        if (probabilities.length != topClasses.length * numClasses)
+            throw new IllegalArgumentException("Expected " + topClasses.length * numClasses + " probabilities, but got " + probabilities.length);
+        this.numClasses = numClasses;
+        this.probabilities = probabilities;
+        this.topClasses = topClasses;
+        this.variance = variance;
+        this.entropy = entropy;
+    }
+
+    /**
+     * Create empty predictions, for a batch where every tile was skipped.
+     * @param numClasses the number of classes
+     * @return
+     */
+    static BatchPredictions empty(int numClasses) {
+        return new BatchPredictions(numClasses, new float[0], new int[0], null, null);
+    }
+
+    /**
+     * Get the number of tiles.
+     * @return
+     */
+    int size() {
+        return topClasses.length;
+    }
+
+    /**
+     * Get the number of classes.
+     * @return
+     */
+    int getNumClasses() {
+        return numClasses;
+    }
+
+    /**
+     * Get the probability of a class for a tile.
+     * @param tile the index of the tile in the batch
+     * @param classIndex the index of the class
+     * @return
+     */
+    float getProbability(int tile, int classIndex) {
+        return probabilities[tile * numClasses + classIndex];
+    }
+
+    /**
+     * Get the index of the most probable class for a tile.
+     * @param tile the index of the tile in the batch
+     * @return
+     */
+    int getTopClass(int tile) {
+        return topClasses[tile];
+    }
+
+    /**
+     * Query whether the predictions were averaged over augmented variants, so that the uncertainty is available.
+     * @return
+     * @see #getVariance(int)
+     * @see #getEntropy(int)
+     */
+    boolean hasUncertainty() {
+        return variance != null && entropy != null;
+    }
+
+    /**
+     * Get the variance of the probabilities between augmented variants of a tile, averaged over all classes.
+     * @param tile the index of the tile in the batch
+     * @return
+     */
+    float getVariance(int tile) {
+        return variance[tile];
+    }
+
+    /**
+     * Get the entropy of the averaged probabilities for a tile, in nats.
+     * @param tile the index of the tile in the batch
+     * @return
+     */
+    float getEntropy(int tile) {
+        return entropy[tile];
+    }
+
+}
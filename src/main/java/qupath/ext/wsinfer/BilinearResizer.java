@@ -0,0 +1,212 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resize 8-bit images using antialiased bilinear interpolation, following the implementation used by
+ * Pillow (and therefore by torchvision's {@code Resize} transform as applied by WSInfer in Python).
+ * <p>
+ * The image is resampled separably, first horizontally and then vertically.
+ * When downsampling, the support of the triangle filter is scaled so that all input pixels contribute
+ * (i.e. the result is antialiased).
+ * Filter coefficients are converted to fixed point and intermediate values are rounded to 8-bit,
+ * as in Pillow, so that the output should match to within rounding.
+ * <p>
+ * Filter coefficients depend only on the input and output sizes, and are cached so that they can be reused
+ * for all tiles.
+ */
+class BilinearResizer {
+
+    /**
+     * Number of bits used for the fractional part of fixed-point coefficients (as in Pillow).
+     */
+    private static final int PRECISION_BITS = 32 - 8 - 2;
+
+    private final Map<Long, Coefficients> coefficientCache = new ConcurrentHashMap<>();
+
+    private final ThreadLocal<int[][]> buffers = ThreadLocal.withInitial(() -> new int[3][0]);
+
+    /**
+     * Check if an image can be resized, i.e. it has 8-bit samples stored in bytes or packed integers.
+     * @param img
+     * @return
+     */
+    boolean canResize(BufferedImage img) {
+        Raster raster = img.getRaster();
+        int transferType = raster.getTransferType();
+        if (transferType != DataBuffer.TYPE_BYTE && transferType != DataBuffer.TYPE_INT)
+            return false;
+        for (int size : raster.getSampleModel().getSampleSize()) {
+            if (size != 8)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Resize an image, writing the output into the specified destination.
+     * @param img the image to resize; this must be supported according to {@link #canResize(BufferedImage)}
+     * @param dest the output image, with the same number of bands as the input
+     */
+    void resize(BufferedImage img, BufferedImage dest) {
+        Raster src = img.getRaster();
+        WritableRaster output = dest.getRaster();
+        int nBands = src.getNumBands();
+        int inWidth = src.getWidth();
+        int inHeight = src.getHeight();
+        int outWidth = output.getWidth();
+        int outHeight = output.getHeight();
+
+        int[][] scratch = buffers.get();
+        int[] input = getBuffer(scratch, 0, inWidth * inHeight * nBands);
+        src.getPixels(src.getMinX(), src.getMinY(), inWidth, inHeight, input);
+
+        int[] horizontal = input;
+        if (outWidth != inWidth) {
+            horizontal = getBuffer(scratch, 1, outWidth * inHeight * nBands);
+            resampleHorizontal(input, inWidth, inHeight, nBands, horizontal, getCoefficients(inWidth, outWidth));
+        }
+        int[] vertical = horizontal;
+        if (outHeight != inHeight) {
+            vertical = getBuffer(scratch, 2, outWidth * outHeight * nBands);
+            resampleVertical(horizontal, outWidth, inHeight, nBands, vertical, getCoefficients(inHeight, outHeight));
+        }
+        output.setPixels(0, 0, outWidth, outHeight, vertical);
+    }
+
+    private static int[] getBuffer(int[][] scratch, int index, int length) {
+        if (scratch[index].length < length)
+            scratch[index] = new int[length];
+        return scratch[index];
+    }
+
+    private Coefficients getCoefficients(int inSize, int outSize) {
+        return coefficientCache.computeIfAbsent(((long)inSize << 32) | outSize,
+                k -> Coefficients.compute(inSize, outSize));
+    }
+
+    private static void resampleHorizontal(int[] input, int inWidth, int height, int nBands,
+                                           int[] output, Coefficients coefficients) {
+        int outWidth = coefficients.outSize;
+        int kSize = coefficients.kernelSize;
+        int[] kernel = coefficients.kernel;
+        int[] bounds = coefficients.bounds;
+        for (int y = 0; y < height; y++) {
+            int inRow = y * inWidth * nBands;
+            int outRow = y * outWidth * nBands;
+            for (int xx = 0; xx < outWidth; xx++) {
+                int xMin = bounds[xx * 2];
+                int xCount = bounds[xx * 2 + 1];
+                int k = xx * kSize;
+                for (int b = 0; b < nBands; b++) {
+                    int ss = 1 << (PRECISION_BITS - 1);
+                    int ind = inRow + xMin * nBands + b;
+                    for (int x = 0; x < xCount; x++) {
+                        ss += input[ind] * kernel[k + x];
+                        ind += nBands;
+                    }
+                    output[outRow + xx * nBands + b] = clip8(ss);
+                }
+            }
+        }
+    }
+
+    private static void resampleVertical(int[] input, int width, int inHeight, int nBands,
+                                         int[] output, Coefficients coefficients) {
+        int outHeight = coefficients.outSize;
+        int kSize = coefficients.kernelSize;
+        int[] kernel = coefficients.kernel;
+        int[] bounds = coefficients.bounds;
+        int rowLength = width * nBands;
+        for (int yy = 0; yy < outHeight; yy++) {
+            int yMin = bounds[yy * 2];
+            int yCount = bounds[yy * 2 + 1];
+            int k = yy * kSize;
+            int outRow = yy * rowLength;
+            for (int i = 0; i < rowLength; i++) {
+                int ss = 1 << (PRECISION_BITS - 1);
+                int ind = yMin * rowLength + i;
+                for (int y = 0; y < yCount; y++) {
+                    ss += input[ind] * kernel[k + y];
+                    ind += rowLength;
+                }
+                output[outRow + i] = clip8(ss);
+            }
+        }
+    }
+
+    private static int clip8(int value) {
+        if (value >= (1 << PRECISION_BITS << 8))
+            return 255;
+        if (value <= 0)
+            return 0;
+        return value >> PRECISION_BITS;
+    }
+
+    /**
+     * Fixed-point filter coefficients for resampling along one axis.
+     * For each output pixel, the bounds give the first input pixel and the number of input pixels that contribute.
+     */
+    private record Coefficients(int outSize, int kernelSize, int[] bounds, int[] kernel) {
+
+        private static Coefficients compute(int inSize, int outSize) {
+            double scale = (double)inSize / outSize;
+            double filterScale = Math.max(scale, 1.0);
+            // Bilinear filter has a support of 1
+            double support = filterScale;
+            int kernelSize = (int)Math.ceil(support) * 2 + 1;
+            int[] bounds = new int[outSize * 2];
+            int[] kernel = new int[outSize * kernelSize];
+            double[] weights = new double[kernelSize];
+            for (int xx = 0; xx < outSize; xx++) {
+                double center = (xx + 0.5) * scale;
+                double ss = 1.0 / filterScale;
+                // Casts truncate towards zero, as in C
+                int xMin = Math.max(0, (int)(center - support + 0.5));
+                int xMax = Math.min(inSize, (int)(center + support + 0.5)) - xMin;
+                double ww = 0.0;
+                for (int x = 0; x < xMax; x++) {
+                    double w = filter((x + xMin - center + 0.5) * ss);
+                    weights[x] = w;
+                    ww += w;
+                }
+                for (int x = 0; x < xMax; x++) {
+                    double w = ww == 0.0 ? weights[x] : weights[x] / ww;
+                    double fixed = w * (1 << PRECISION_BITS);
+                    kernel[xx * kernelSize + x] = (int)(w < 0 ? fixed - 0.5 : fixed + 0.5);
+                }
+                bounds[xx * 2] = xMin;
+                bounds[xx * 2 + 1] = xMax;
+            }
+            return new Coefficients(outSize, kernelSize, bounds, kernel);
+        }
+
+        private static double filter(double x) {
+            x = Math.abs(x);
+            return x < 1.0 ? 1.0 - x : 0.0;
+        }
+
+    }
+
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.translate.NoBatchifyTranslator;
+import ai.djl.translate.TranslatorContext;
+
+/**
+ * Translator for a batch of tiles that have already been preprocessed into a single NCHW tensor,
+ * returning the embedding for each tile rather than classifications.
+ * <p>
+ * The model output (or the last output, if the model returns several) is flattened to one row per tile,
+ * and the rows are returned as a single row-major array.
+ */
+class EmbeddingTranslator implements PredictorPool.TensorTranslator<float[]> {
+
+    private static final float[] EMPTY = new float[0];
+
+    @Override
+    public NDList processInput(TranslatorContext ctx, NDList input) {
+        return input;
+    }
+
+    @Override
+    public float[] processOutput(TranslatorContext ctx, NDList list) {
+        return toOutput(toRows(list));
+    }
+
+    @Override
+    public NoBatchifyTranslator<NDList, NDList> deviceOutputTranslator() {
+        return new NoBatchifyTranslator<>() {
+            @Override
+            public NDList processInput(TranslatorContext ctx, NDList input) {
+                return input;
+            }
+
+            @Override
+            public NDList processOutput(TranslatorContext ctx, NDList list) {
+                NDList output = toRows(list);
+                output.detach();
+                return output;
+            }
+        };
+    }
+
+    /**
+     * Copy the embeddings for a batch back from the device.
+     * @param rows the output of {@link #deviceOutputTranslator()}
+     * @return
+     */
+    @Override
+    public float[] toOutput(NDList rows) {
+        return rows.singletonOrThrow().toFloatArray();
+    }
+
+    @Override
+    public float[] empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Flatten the last model output to a float32 array with one row per tile.
+     */
+    private static NDList toRows(NDList list) {
+        NDArray output = list.get(list.size() - 1);
+        long nTiles = output.getShape().get(0);
+        return new NDList(output.reshape(nTiles, -1).toType(DataType.FLOAT32, false));
+    }
+
+}
@@ -0,0 +1,239 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.io.GsonTools;
+import qupath.lib.objects.PathObject;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write tile embeddings to a file as a row-major float32 matrix, with one row per tile.
+ * <p>
+ * The file is memory-mapped once for the maximum number of rows when the first batch is appended
+ * (using several regions if the matrix is too large to map in one), and rows are then written batch by batch,
+ * so the full matrix is never held in the Java heap.
+ * When the writer is closed, the mapped regions are forced to disk and the file is truncated to the rows written.
+ * Alongside the matrix, a CSV index gives the object ID and bounding box of the tile for each row,
+ * and a JSON file records the shape and layout of the matrix so that it can be read elsewhere
+ * (e.g. with {@code numpy.memmap}).
+ */
+class EmbeddingWriter implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmbeddingWriter.class);
+
+    /**
+     * Maximum size of each mapped region, which must be less than 2 GB.
+     */
+    private static final long DEFAULT_MAX_REGION_BYTES = 1L << 30;
+
+    private final Path matrixPath;
+    private final Path indexPath;
+    private final Path metadataPath;
+    private final String modelName;
+    private final long maxRows;
+    private final long maxRegionBytes;
+
+    private final FileChannel channel;
+    private final BufferedWriter indexWriter;
+
+    private MappedByteBuffer[] regions;
+    private FloatBuffer[] regionFloats;
+    private int rowsPerRegion;
+
+    private int dimension = -1;
+    private long rows;
+
+    /**
+     * Create a writer, replacing any existing files.
+     * @param matrixPath the path of the matrix file; the index and metadata are written alongside it,
+     *                   with the extensions .csv and .json
+     * @param modelName the name of the model used to compute the embeddings
+     * @param maxRows the maximum number of rows that will be written (usually the number of tiles)
+     * @throws IOException
+     */
+    EmbeddingWriter(Path matrixPath, String modelName, long maxRows) throws IOException {
+        this(matrixPath, modelName, maxRows, DEFAULT_MAX_REGION_BYTES);
+    }
+
+    /**
+     * Create a writer with a specified maximum size for each mapped region.
+     * @param matrixPath the path of the matrix file
+     * @param modelName the name of the model used to compute the embeddings
+     * @param maxRows the maximum number of rows that will be written
+     * @param maxRegionBytes the maximum size of each mapped region; regions always contain at least one row
+     * @throws IOException
+     */
+    EmbeddingWriter(Path matrixPath, String modelName, long maxRows, long maxRegionBytes) throws IOException {
+        if (maxRows < 0)
+            throw new IllegalArgumentException("Maximum number of rows must be >= 0");
+        this.matrixPath = matrixPath;
+        this.indexPath = withExtension(matrixPath, ".csv");
+        this.metadataPath = withExtension(matrixPath, ".json");
+        this.modelName = modelName;
+        this.maxRows = maxRows;
+        this.maxRegionBytes = Math.min(Integer.MAX_VALUE, maxRegionBytes);
+        var dir = matrixPath.toAbsolutePath().getParent();
+        if (dir != null)
+            Files.createDirectories(dir);
+        this.channel = FileChannel.open(matrixPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.indexWriter = Files.newBufferedWriter(indexPath, StandardCharsets.UTF_8);
+        indexWriter.write("row,id,x,y,width,height");
+        indexWriter.newLine();
+    }
+
+    private static Path withExtension(Path path, String ext) {
+        String name = path.getFileName().toString();
+        int ind = name.lastIndexOf('.');
+        return path.resolveSibling((ind < 0 ? name : name.substring(0, ind)) + ext);
+    }
+
+    /**
+     * Append the embeddings for a batch of tiles.
+     * This may be called from different threads, and batches are written in the order they are appended.
+     * @param tiles the tiles, in the same order as the embeddings
+     * @param embeddings the embeddings for all tiles, in row-major order
+     * @throws IOException
+     */
+    synchronized void append(List<PathObject> tiles, float[] embeddings) throws IOException {
+        if (tiles.isEmpty())
+            return;
+        if (embeddings.length % tiles.size() != 0)
+            throw new IllegalArgumentException("Embedding length " + embeddings.length + " is not a multiple of the number of tiles " + tiles.size());
+        int dim = embeddings.length / tiles.size();
+        if (dimension < 0)
+            map(dim);
+        else if (dim != dimension)
+            throw new IllegalArgumentException("Embedding dimension changed from " + dimension + " to " + dim);
+        if (rows + tiles.size() > maxRows)
+            throw new IllegalStateException("Cannot write " + (rows + tiles.size()) + " rows, maximum is " + maxRows);
+
+        // Write the rows, splitting them between regions if necessary
+        long row = rows;
+        int offset = 0;
+        while (offset < embeddings.length) {
+            int region = (int)(row / rowsPerRegion);
+            int rowInRegion = (int)(row % rowsPerRegion);
+            int nRows = Math.min((embeddings.length - offset) / dimension, rowsPerRegion - rowInRegion);
+            regionFloats[region].put(rowInRegion * dimension, embeddings, offset, nRows * dimension);
+            offset += nRows * dimension;
+            row += nRows;
+        }
+
+        for (var tile : tiles) {
+            var roi = tile.getROI();
+            indexWriter.write(rows + "," + tile.getID() + "," +
+                    roi.getBoundsX() + "," + roi.getBoundsY() + "," +
+                    roi.getBoundsWidth() + "," + roi.getBoundsHeight());
+            indexWriter.newLine();
+            rows++;
+        }
+    }
+
+    /**
+     * Map the file for the maximum number of rows, once the embedding length is known.
+     */
+    private void map(int dim) throws IOException {
+        long rowBytes = (long)dim * Float.BYTES;
+        int nRowsPerRegion = (int)Math.max(1, Math.min(maxRegionBytes / rowBytes, Integer.MAX_VALUE / rowBytes));
+        int nRegions = (int)((maxRows + nRowsPerRegion - 1) / nRowsPerRegion);
+        var mapped = new MappedByteBuffer[nRegions];
+        var floats = new FloatBuffer[nRegions];
+        for (int i = 0; i < nRegions; i++) {
+            long firstRow = (long)i * nRowsPerRegion;
+            long nRows = Math.min(nRowsPerRegion, maxRows - firstRow);
+            mapped[i] = channel.map(FileChannel.MapMode.READ_WRITE, firstRow * rowBytes, nRows * rowBytes);
+            floats[i] = mapped[i].order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        }
+        this.dimension = dim;
+        this.rowsPerRegion = nRowsPerRegion;
+        this.regions = mapped;
+        this.regionFloats = floats;
+    }
+
+    /**
+     * Get the number of rows written so far.
+     * @return
+     */
+    long getRows() {
+        return rows;
+    }
+
+    /**
+     * Get the length of each embedding, or -1 if nothing has been written yet.
+     * @return
+     */
+    int getDimension() {
+        return dimension;
+    }
+
+    /**
+     * Finish writing the matrix and index, and write the metadata.
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try (channel; indexWriter) {
+            if (regions != null) {
+                for (var region : regions)
+                    region.force();
+                truncate();
+            }
+            Map<String, Object> metadata = new LinkedHashMap<>();
+            metadata.put("model", modelName);
+            metadata.put("rows", rows);
+            metadata.put("dimension", Math.max(0, dimension));
+            metadata.put("dtype", "float32");
+            metadata.put("byteOrder", "little-endian");
+            metadata.put("matrix", matrixPath.getFileName().toString());
+            metadata.put("index", indexPath.getFileName().toString());
+            Files.writeString(metadataPath, GsonTools.getInstance(true).toJson(metadata), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Truncate the file to the rows that were written, since background tiles are skipped.
+     * Some platforms don't allow a file to be truncated while it is mapped, in which case the file is left at its
+     * full size - but the metadata still gives the correct number of rows.
+     */
+    private void truncate() {
+        long size = rows * dimension * Float.BYTES;
+        try {
+            if (channel.size() > size)
+                channel.truncate(size);
+        } catch (IOException e) {
+            logger.warn("Unable to truncate {} to {} rows: {}", matrixPath, rows, e.getMessage());
+        }
+    }
+
+}
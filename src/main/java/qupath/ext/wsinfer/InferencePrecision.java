@@ -0,0 +1,102 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.types.DataType;
+
+import java.io.File;
+
+/**
+ * Numerical precision used for inference.
+ * <p>
+ * Reduced precision models need to be converted from the original TorchScript file in advance
+ * (e.g. using {@code model.to(torch.bfloat16)} or {@code torch.ao.quantization.quantize_dynamic} before
+ * saving with TorchScript), because the conversion isn't available through the Java API.
+ * The converted file should be saved alongside the original, with the suffix given by {@link #getFileSuffix()}
+ * inserted before the extension (e.g. {@code torchscript_model.int8.pt}).
+ * If no converted file is found, float32 is used instead.
+ */
+public enum InferencePrecision {
+
+    /**
+     * Use the original float32 model.
+     */
+    FP32("", DataType.FLOAT32),
+
+    /**
+     * Use a model with bfloat16 weights, passing bfloat16 inputs.
+     * This can be much faster on CPUs with native bfloat16 support.
+     */
+    BF16("bf16", DataType.BFLOAT16),
+
+    /**
+     * Use a model where linear layers have been dynamically quantized to int8.
+     * Inputs and outputs remain float32.
+     */
+    INT8_DYNAMIC("int8", DataType.FLOAT32);
+
+    private final String suffix;
+    private final DataType inputType;
+
+    InferencePrecision(String suffix, DataType inputType) {
+        this.suffix = suffix;
+        this.inputType = inputType;
+    }
+
+    /**
+     * Get the suffix identifying TorchScript files converted to this precision, or an empty string for float32.
+     * @return
+     */
+    public String getFileSuffix() {
+        return suffix;
+    }
+
+    /**
+     * Get the data type expected by the model for its input.
+     * @return
+     */
+    DataType getInputType() {
+        return inputType;
+    }
+
+    /**
+     * Convert an input array to the type expected by the model, if necessary.
+     * @param array the float32 input
+     * @return
+     */
+    NDArray toInputType(NDArray array) {
+        if (array.getDataType() == inputType)
+            return array;
+        return array.toType(inputType, false);
+    }
+
+    /**
+     * Get the TorchScript file converted to this precision.
+     * @param torchScriptFile the original float32 TorchScript file
+     * @return the converted file, which may not exist
+     */
+    File getModelFile(File torchScriptFile) {
+        if (suffix.isEmpty())
+            return torchScriptFile;
+        String name = torchScriptFile.getName();
+        int ind = name.lastIndexOf('.');
+        String converted = ind < 0 ? name + "." + suffix : name.substring(0, ind) + "." + suffix + name.substring(ind);
+        return new File(torchScriptFile.getParentFile(), converted);
+    }
+
+}
@@ -0,0 +1,275 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import ai.djl.MalformedModelException;
+import ai.djl.repository.zoo.ModelNotFoundException;
+import ai.djl.repository.zoo.ZooModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide cache of loaded models, so that the same model can be used for multiple runs without
+ * needing to deserialize and initialize it each time.
+ * <p>
+ * Models are reference counted while they are in use.
+ * When the cache exceeds its maximum number of models or estimated memory, the least recently used models
+ * that are not in use are closed.
+ * A model that is removed from the cache while it is still in use is closed when its last lease is released.
+ */
+class ModelCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ModelCache.class);
+
+    private static final ModelCache INSTANCE = new ModelCache();
+
+    // Access order, so that iteration starts with the least recently used model
+    private final Map<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private int maxModels = 1;
+    private long maxBytes = 0;
+
+    /**
+     * Key identifying a loaded model.
+     * @param modelName the name of the model
+     * @param modelFile the TorchScript file
+     * @param lastModified the last modified time of the TorchScript file, so that updated files are reloaded
+     * @param device the name of the device used for inference
+     * @param precision the name of the precision of the model
+     * @param translator a description of the translator settings (e.g. class names and transforms)
+     */
+    record Key(String modelName, Path modelFile, long lastModified, String device, String precision, String translator) {}
+
+    /**
+     * Load a model that is not in the cache.
+     * @param <T> the model input type
+     * @param <S> the model output type
+     */
+    @FunctionalInterface
+    interface ModelLoader<T, S> {
+
+        /**
+         * Load the model.
+         * @return
+         * @throws ModelNotFoundException
+         * @throws MalformedModelException
+         * @throws IOException
+         */
+        ZooModel<T, S> load() throws ModelNotFoundException, MalformedModelException, IOException;
+
+    }
+
+    /**
+     * Get the shared model cache.
+     * @return
+     */
+    static ModelCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Set the limits for the cache, closing any unused models that exceed them.
+     * @param maxModels the maximum number of models to keep loaded; 0 means that models are closed when no longer in use
+     * @param maxBytes the maximum estimated memory of the loaded models, or 0 if there is no limit
+     */
+    void setLimits(int maxModels, long maxBytes) {
+        List<Entry> evicted;
+        synchronized (this) {
+            this.maxModels = Math.max(0, maxModels);
+            this.maxBytes = Math.max(0, maxBytes);
+            evicted = evictIfNeeded();
+        }
+        closeAll(evicted);
+    }
+
+    /**
+     * Get a model from the cache, loading it if necessary.
+     * The model must not be closed directly; instead, the lease should be closed when the model is no longer needed.
+     * @param key the key identifying the model
+     * @param estimatedBytes the estimated memory required by the model
+     * @param loader the loader used if the model is not cached
+     * @return a lease for the model
+     * @param <T> the model input type
+     * @param <S> the model output type
+     * @throws ModelNotFoundException
+     * @throws MalformedModelException
+     * @throws IOException
+     */
+    <T, S> Lease<T, S> acquire(Key key, long estimatedBytes, ModelLoader<T, S> loader)
+            throws ModelNotFoundException, MalformedModelException, IOException {
+        synchronized (this) {
+            var entry = entries.get(key);
+            if (entry != null) {
+                entry.refCount++;
+                logger.debug("Using cached model {}", key.modelName());
+                return new Lease<>(this, entry);
+            }
+        }
+        // Load outside the lock, so that other models remain available in the meantime
+        logger.debug("Loading model {}", key.modelName());
+        var model = loader.load();
+        Entry entry;
+        List<Entry> evicted;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(key, model, estimatedBytes);
+                entries.put(key, entry);
+                model = null;
+            }
+            entry.refCount++;
+            evicted = evictIfNeeded();
+        }
+        if (model != null) {
+            // Another thread loaded the same model first
+            model.close();
+        }
+        closeAll(evicted);
+        return new Lease<>(this, entry);
+    }
+
+    /**
+     * Remove all models from the cache.
+     * Models that are not in use are closed immediately, while others are closed when they are released.
+     */
+    void clear() {
+        List<Entry> evicted = new ArrayList<>();
+        synchronized (this) {
+            for (var entry : entries.values()) {
+                entry.retired = true;
+                if (entry.refCount == 0)
+                    evicted.add(entry);
+            }
+            entries.clear();
+        }
+        closeAll(evicted);
+    }
+
+    /**
+     * Get the number of models currently in the cache.
+     * @return
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private void release(Entry entry) {
+        boolean close;
+        List<Entry> evicted;
+        synchronized (this) {
+            entry.refCount--;
+            close = entry.retired && entry.refCount == 0;
+            evicted = evictIfNeeded();
+        }
+        if (close)
+            entry.close();
+        closeAll(evicted);
+    }
+
+    /**
+     * Remove the least recently used models that are not in use, until the cache is within its limits.
+     * Must be called while holding the lock.
+     * @return the entries that were removed, which should be closed after releasing the lock
+     */
+    private List<Entry> evictIfNeeded() {
+        List<Entry> evicted = new ArrayList<>();
+        long totalBytes = 0;
+        for (var entry : entries.values())
+            totalBytes += entry.estimatedBytes;
+        Iterator<Entry> iter = entries.values().iterator();
+        while (iter.hasNext() && (entries.size() > maxModels || (maxBytes > 0 && totalBytes > maxBytes))) {
+            var entry = iter.next();
+            if (entry.refCount > 0)
+                continue;
+            iter.remove();
+            entry.retired = true;
+            totalBytes -= entry.estimatedBytes;
+            evicted.add(entry);
+        }
+        return evicted;
+    }
+
+    private static void closeAll(List<Entry> entries) {
+        for (var entry : entries)
+            entry.close();
+    }
+
+    private static class Entry {
+
+        private final Key key;
+        private final ZooModel<?, ?> model;
+        private final long estimatedBytes;
+        private int refCount;
+        private boolean retired;
+
+        private Entry(Key key, ZooModel<?, ?> model, long estimatedBytes) {
+            this.key = key;
+            this.model = model;
+            this.estimatedBytes = Math.max(0, estimatedBytes);
+        }
+
+        private void close() {
+            logger.debug("Closing cached model {}", key.modelName());
+            model.close();
+        }
+
+    }
+
+    /**
+     * A reference to a cached model, which must be closed when the model is no longer needed.
+     * @param <T> the model input type
+     * @param <S> the model output type
+     */
+    static class Lease<T, S> implements AutoCloseable {
+
+        private final ModelCache cache;
+        private final Entry entry;
+        private boolean closed;
+
+        private Lease(ModelCache cache, Entry entry) {
+            this.cache = cache;
+            this.entry = entry;
+        }
+
+        /**
+         * Get the model.
+         * @return
+         */
+        @SuppressWarnings("unchecked")
+        ZooModel<T, S> getModel() {
+            return (ZooModel<T, S>)entry.model;
+        }
+
+        @Override
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            cache.release(entry);
+        }
+
+    }
+
+}
@@ -17,11 +17,14 @@
 package qupath.ext.wsinfer;
 
 import ai.djl.modality.Classifications;
+import ai.djl.modality.cv.Image;
 import ai.djl.modality.cv.translator.BaseImageTranslator;
 import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDArrays;
 import ai.djl.ndarray.NDList;
 import ai.djl.ndarray.NDManager;
 import ai.djl.ndarray.types.DataType;
+import ai.djl.translate.NoBatchifyTranslator;
 import ai.djl.translate.Transform;
 import ai.djl.translate.TranslatorContext;
 
@@ -90,6 +93,9 @@ class MpsSupport {
      * with MPS devices on Apple Silicon.
      * The only reason the original class can't be used is that it converts the probability NDArray to float64.
      * If that behavior changes in DJL, then this class can be removed and the original used instead.
+     * <p>
+     * For inference, {@link #batchTranslator(TensorBatchTranslator)} should be used so that a whole batch is
+     * preprocessed in the same way, but the output is returned as {@link BatchPredictions}.
      */
     static class WSInferClassificationTranslator extends BaseImageTranslator<Classifications> {
 
@@ -123,6 +129,32 @@ class MpsSupport {
             return new Classifications(classes, probabilities);
         }
 
+        /**
+         * Create a translator that preprocesses a batch of images in the same way as this translator, and passes
+         * them through the model with a single forward pass.
+         * The output is converted by the tensor translator, so that the probabilities for all the tiles are copied
+         * back into one array, with the classes in the same order as for tensor batches.
+         * This avoids creating {@link Classifications} for each tile.
+         * @param tensorTranslator the translator used to convert the model output
+         * @return
+         */
+        NoBatchifyTranslator<List<Image>, BatchPredictions> batchTranslator(TensorBatchTranslator tensorTranslator) {
+            return new NoBatchifyTranslator<>() {
+                @Override
+                public NDList processInput(TranslatorContext ctx, List<Image> input) throws Exception {
+                    NDList arrays = new NDList(input.size());
+                    for (Image image : input)
+                        arrays.add(WSInferClassificationTranslator.this.processInput(ctx, image).singletonOrThrow());
+                    return tensorTranslator.processInput(ctx, new NDList(NDArrays.stack(arrays)));
+                }
+
+                @Override
+                public BatchPredictions processOutput(TranslatorContext ctx, NDList list) {
+                    return tensorTranslator.processOutput(ctx, list);
+                }
+            };
+        }
+
         public static WSInferClassificationTranslator.Builder builder() {
             return new WSInferClassificationTranslator.Builder();
         }
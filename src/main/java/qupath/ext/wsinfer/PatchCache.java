@@ -0,0 +1,483 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Persistent on-disk cache of tiles that have been read and resized, so that they can be reused by later runs
+ * (e.g. with different models that use the same resolution and patch size) without accessing the image server.
+ * <p>
+ * Patches are stored before any model-specific normalization, in a store identified by the image and the
+ * parameters used to read the tiles.
+ * Each store is a directory containing fixed-size chunk files that are memory-mapped, each holding
+ * {@link #PATCHES_PER_CHUNK} patches in the raw data layout of the image raster, along with an index
+ * file that maps tile coordinates to slots within the chunks.
+ * Tiles that were identified as background are recorded in the index without any pixel data.
+ * <p>
+ * The total size of the cache is limited by evicting the least recently used stores when a store is opened.
+ * A single store stops accepting new patches once it reaches the size limit.
+ */
+class PatchCache implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PatchCache.class);
+
+    private static final int VERSION = 1;
+
+    /**
+     * Number of patches stored in each chunk file.
+     */
+    static final int PATCHES_PER_CHUNK = 256;
+
+    private static final String METADATA_FILE = "store.properties";
+    private static final String INDEX_FILE = "index.bin";
+
+    /**
+     * Slot value in the index used to indicate a background tile.
+     */
+    private static final int BACKGROUND_SLOT = -1;
+
+    /**
+     * Bytes per index record: x, y, z, t, slot
+     */
+    private static final int INDEX_RECORD_BYTES = 5 * Integer.BYTES;
+
+    private final Path dir;
+    private final String key;
+    private final long maxBytes;
+
+    private final Map<TileKey, Integer> index = new ConcurrentHashMap<>();
+    private final Map<Integer, MappedByteBuffer> chunks = new ConcurrentHashMap<>();
+    private final FileChannel indexChannel;
+
+    // Layout of the patches, set when the first patch is written if the store is new
+    private volatile Layout layout;
+    private int nextSlot;
+
+    private PatchCache(Path dir, String key, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.key = key;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir);
+        var metadata = readMetadata();
+        if (metadata == null || !isCompatible(metadata)) {
+            if (metadata != null)
+                logger.warn("Patch cache at {} is incompatible and will be cleared", dir);
+            deleteContents(dir);
+            writeMetadata(null);
+        } else {
+            this.layout = parseLayout(metadata);
+        }
+        this.indexChannel = FileChannel.open(dir.resolve(INDEX_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        readIndex();
+        touch();
+    }
+
+    /**
+     * Open the store for a specific image and set of tile parameters, creating it if necessary.
+     * Least recently used stores are evicted if the total cache size exceeds the limit.
+     * @param cacheDir the root directory of the cache
+     * @param key string uniquely identifying the image and all parameters that influence the patches
+     * @param maxBytes maximum total size of the cache
+     * @return
+     * @throws IOException
+     */
+    static PatchCache open(Path cacheDir, String key, long maxBytes) throws IOException {
+        Objects.requireNonNull(cacheDir, "Cache directory must not be null");
+        Path dir = cacheDir.resolve(hash(key));
+        evict(cacheDir, maxBytes, dir);
+        return new PatchCache(dir, key, maxBytes);
+    }
+
+    /**
+     * Read a patch from the cache.
+     * @param x x-coordinate of the tile in the full-resolution image
+     * @param y y-coordinate of the tile in the full-resolution image
+     * @param z z-slice of the tile
+     * @param t timepoint of the tile
+     * @param pool pool from which the output image should be acquired
+     * @return the patch, or null if it isn't in the cache
+     * @see #isBackground(int, int, int, int)
+     */
+    BufferedImage read(int x, int y, int z, int t, TileBufferPool pool) {
+        Integer slot = index.get(new TileKey(x, y, z, t));
+        Layout layout = this.layout;
+        if (slot == null || slot == BACKGROUND_SLOT || layout == null)
+            return null;
+        try {
+            ByteBuffer buffer = getSlot(slot, layout);
+            BufferedImage img = pool.acquireImage(layout.width, layout.height, layout.imageType);
+            WritableRaster raster = img.getRaster();
+            int n = layout.width * layout.height * layout.numDataElements;
+            if (layout.transferType == DataBuffer.TYPE_BYTE) {
+                byte[] data = new byte[n];
+                buffer.get(0, data);
+                raster.setDataElements(0, 0, layout.width, layout.height, data);
+            } else {
+                int[] data = new int[n];
+                buffer.asIntBuffer().get(0, data);
+                raster.setDataElements(0, 0, layout.width, layout.height, data);
+            }
+            return img;
+        } catch (IOException e) {
+            logger.debug("Unable to read patch from cache: {}", e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Check if a tile has been recorded as background.
+     * @param x x-coordinate of the tile in the full-resolution image
+     * @param y y-coordinate of the tile in the full-resolution image
+     * @param z z-slice of the tile
+     * @param t timepoint of the tile
+     * @return
+     */
+    boolean isBackground(int x, int y, int z, int t) {
+        Integer slot = index.get(new TileKey(x, y, z, t));
+        return slot != null && slot == BACKGROUND_SLOT;
+    }
+
+    /**
+     * Add a patch to the cache, if it isn't already present.
+     * The patch is silently skipped if its layout doesn't match the store, or if the store is full.
+     * @param x x-coordinate of the tile in the full-resolution image
+     * @param y y-coordinate of the tile in the full-resolution image
+     * @param z z-slice of the tile
+     * @param t timepoint of the tile
+     * @param img the patch
+     */
+    void write(int x, int y, int z, int t, BufferedImage img) {
+        var tileKey = new TileKey(x, y, z, t);
+        if (index.containsKey(tileKey))
+            return;
+        try {
+            int slot = allocateSlot(img);
+            if (slot < 0)
+                return;
+            Layout layout = this.layout;
+            ByteBuffer buffer = getSlot(slot, layout);
+            Object data = img.getRaster().getDataElements(0, 0, layout.width, layout.height, null);
+            if (data instanceof byte[] bytes)
+                buffer.put(0, bytes);
+            else
+                buffer.asIntBuffer().put(0, (int[])data);
+            addToIndex(tileKey, slot);
+        } catch (IOException e) {
+            logger.debug("Unable to write patch to cache: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Record that a tile is background, so that it doesn't need to be read again.
+     * @param x x-coordinate of the tile in the full-resolution image
+     * @param y y-coordinate of the tile in the full-resolution image
+     * @param z z-slice of the tile
+     * @param t timepoint of the tile
+     */
+    void writeBackground(int x, int y, int z, int t) {
+        var tileKey = new TileKey(x, y, z, t);
+        if (index.containsKey(tileKey))
+            return;
+        try {
+            addToIndex(tileKey, BACKGROUND_SLOT);
+        } catch (IOException e) {
+            logger.debug("Unable to write background tile to cache: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get the number of tiles in the cache (including background tiles).
+     * @return
+     */
+    int size() {
+        return index.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        touch();
+        indexChannel.close();
+        // Mapped buffers are unmapped when they are garbage collected
+        chunks.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "PatchCache[" + key + "]";
+    }
+
+    private synchronized int allocateSlot(BufferedImage img) throws IOException {
+        if (layout == null) {
+            var newLayout = Layout.of(img);
+            if (newLayout == null)
+                return -1;
+            writeMetadata(newLayout);
+            layout = newLayout;
+        } else if (!layout.matches(img)) {
+            return -1;
+        }
+        if ((long)(nextSlot + 1) * layout.patchBytes > maxBytes)
+            return -1;
+        return nextSlot++;
+    }
+
+    private synchronized void addToIndex(TileKey tileKey, int slot) throws IOException {
+        if (index.putIfAbsent(tileKey, slot) != null)
+            return;
+        ByteBuffer record = ByteBuffer.allocate(INDEX_RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        record.putInt(tileKey.x).putInt(tileKey.y).putInt(tileKey.z).putInt(tileKey.t).putInt(slot).flip();
+        long position = indexChannel.size();
+        while (record.hasRemaining())
+            position += indexChannel.write(record, position);
+    }
+
+    private void readIndex() throws IOException {
+        long n = indexChannel.size() / INDEX_RECORD_BYTES;
+        ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(Integer.MAX_VALUE, n * INDEX_RECORD_BYTES))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining() && indexChannel.read(buffer, buffer.position()) >= 0) {
+            // Keep reading until the buffer is full
+        }
+        buffer.flip();
+        int maxSlot = -1;
+        while (buffer.remaining() >= INDEX_RECORD_BYTES) {
+            var tileKey = new TileKey(buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt());
+            int slot = buffer.getInt();
+            index.put(tileKey, slot);
+            maxSlot = Math.max(maxSlot, slot);
+        }
+        // Truncate any incomplete record, e.g. if writing was interrupted
+        indexChannel.truncate(n * INDEX_RECORD_BYTES);
+        nextSlot = maxSlot + 1;
+        if (!index.isEmpty())
+            logger.debug("Opened patch cache with {} tiles at {}", index.size(), dir);
+    }
+
+    private ByteBuffer getSlot(int slot, Layout layout) throws IOException {
+        int chunk = slot / PATCHES_PER_CHUNK;
+        MappedByteBuffer buffer = chunks.get(chunk);
+        if (buffer == null)
+            buffer = mapChunk(chunk, layout);
+        int offset = (slot % PATCHES_PER_CHUNK) * layout.patchBytes;
+        return buffer.slice(offset, layout.patchBytes).order(ByteOrder.nativeOrder());
+    }
+
+    private synchronized MappedByteBuffer mapChunk(int chunk, Layout layout) throws IOException {
+        MappedByteBuffer buffer = chunks.get(chunk);
+        if (buffer != null)
+            return buffer;
+        Path path = dir.resolve(String.format("patches-%05d.bin", chunk));
+        try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long)PATCHES_PER_CHUNK * layout.patchBytes);
+        }
+        chunks.put(chunk, buffer);
+        return buffer;
+    }
+
+    private Properties readMetadata() throws IOException {
+        Path path = dir.resolve(METADATA_FILE);
+        if (!Files.exists(path))
+            return null;
+        var props = new Properties();
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            props.load(reader);
+        }
+        return props;
+    }
+
+    private boolean isCompatible(Properties props) {
+        return Integer.toString(VERSION).equals(props.getProperty("version")) && key.equals(props.getProperty("key"));
+    }
+
+    /**
+     * Get the patch layout stored in the metadata.
+     * @param props
+     * @return the layout, or null if no patches have been written yet
+     */
+    private Layout parseLayout(Properties props) {
+        if (!props.containsKey("imageType"))
+            return null;
+        try {
+            return new Layout(
+                    Integer.parseInt(props.getProperty("width")),
+                    Integer.parseInt(props.getProperty("height")),
+                    Integer.parseInt(props.getProperty("imageType")),
+                    Integer.parseInt(props.getProperty("transferType")),
+                    Integer.parseInt(props.getProperty("numDataElements")));
+        } catch (NumberFormatException e) {
+            logger.warn("Unable to read patch cache metadata at {}: {}", dir, e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeMetadata(Layout layout) throws IOException {
+        var props = new Properties();
+        props.setProperty("version", Integer.toString(VERSION));
+        props.setProperty("key", key);
+        if (layout != null) {
+            props.setProperty("width", Integer.toString(layout.width));
+            props.setProperty("height", Integer.toString(layout.height));
+            props.setProperty("imageType", Integer.toString(layout.imageType));
+            props.setProperty("transferType", Integer.toString(layout.transferType));
+            props.setProperty("numDataElements", Integer.toString(layout.numDataElements));
+        }
+        try (Writer writer = Files.newBufferedWriter(dir.resolve(METADATA_FILE), StandardCharsets.UTF_8)) {
+            props.store(writer, "WSInfer patch cache");
+        }
+    }
+
+    private void touch() {
+        try {
+            Files.setLastModifiedTime(dir, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            logger.debug("Unable to update patch cache access time: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Delete the least recently used stores until the total cache size is within the limit.
+     * @param cacheDir
+     * @param maxBytes
+     * @param keep store that should not be deleted
+     */
+    private static void evict(Path cacheDir, long maxBytes, Path keep) throws IOException {
+        if (!Files.isDirectory(cacheDir))
+            return;
+        List<Path> stores = new ArrayList<>();
+        Map<Path, Long> sizes = new HashMap<>();
+        long total = 0;
+        try (Stream<Path> paths = Files.list(cacheDir)) {
+            for (Path path : paths.filter(Files::isDirectory).toList()) {
+                long size = directorySize(path);
+                sizes.put(path, size);
+                total += size;
+                if (!path.equals(keep))
+                    stores.add(path);
+            }
+        }
+        if (total <= maxBytes)
+            return;
+        stores.sort(Comparator.comparingLong(PatchCache::lastModified));
+        for (Path store : stores) {
+            if (total <= maxBytes)
+                break;
+            logger.info("Evicting patch cache {}", store);
+            deleteContents(store);
+            Files.deleteIfExists(store);
+            total -= sizes.get(store);
+        }
+    }
+
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    private static long directorySize(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.list(dir)) {
+            long size = 0;
+            for (Path path : paths.toList())
+                size += Files.size(path);
+            return size;
+        }
+    }
+
+    private static void deleteContents(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.list(dir)) {
+            for (Path path : paths.toList())
+                Files.deleteIfExists(path);
+        }
+    }
+
+    private static String hash(String key) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(key.getBytes(StandardCharsets.UTF_8)), 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private record TileKey(int x, int y, int z, int t) {}
+
+    /**
+     * Layout of the raster data for each patch.
+     */
+    private record Layout(int width, int height, int imageType, int transferType, int numDataElements, int patchBytes) {
+
+        private Layout(int width, int height, int imageType, int transferType, int numDataElements) {
+            this(width, height, imageType, transferType, numDataElements,
+                    width * height * numDataElements * (transferType == DataBuffer.TYPE_BYTE ? 1 : Integer.BYTES));
+        }
+
+        /**
+         * Create a layout for an image, if it is supported.
+         * @param img
+         * @return the layout, or null if the image can't be cached
+         */
+        private static Layout of(BufferedImage img) {
+            if (img.getType() == BufferedImage.TYPE_CUSTOM)
+                return null;
+            var raster = img.getRaster();
+            int transferType = raster.getTransferType();
+            if (transferType != DataBuffer.TYPE_BYTE && transferType != DataBuffer.TYPE_INT)
+                return null;
+            return new Layout(img.getWidth(), img.getHeight(), img.getType(), transferType, raster.getNumDataElements());
+        }
+
+        private boolean matches(BufferedImage img) {
+            return img.getWidth() == width && img.getHeight() == height && img.getType() == imageType;
+        }
+
+    }
+
+}
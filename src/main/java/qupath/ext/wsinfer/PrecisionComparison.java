@@ -0,0 +1,141 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+/**
+ * Summary of the differences between predictions made with float32 and a reduced {@link InferencePrecision}
+ * for the same tiles.
+ */
+public class PrecisionComparison {
+
+    private final String modelName;
+    private final InferencePrecision precision;
+    private final double referenceTilesPerSecond;
+    private final double tilesPerSecond;
+
+    private int nTiles;
+    private int nAgreeing;
+    private int nProbabilities;
+    private double sumDifference;
+    private double maxDifference;
+
+    PrecisionComparison(String modelName, InferencePrecision precision, double referenceTilesPerSecond, double tilesPerSecond) {
+        this.modelName = modelName;
+        this.precision = precision;
+        this.referenceTilesPerSecond = referenceTilesPerSecond;
+        this.tilesPerSecond = tilesPerSecond;
+    }
+
+    /**
+     * Add the probabilities predicted for a tile.
+     * @param reference the probabilities using float32
+     * @param probabilities the probabilities using the reduced precision
+     */
+    void addTile(double[] reference, double[] probabilities) {
+        for (int i = 0; i < reference.length; i++) {
+            double diff = Math.abs(reference[i] - probabilities[i]);
+            sumDifference += diff;
+            maxDifference = Math.max(maxDifference, diff);
+            nProbabilities++;
+        }
+        if (argMax(reference) == argMax(probabilities))
+            nAgreeing++;
+        nTiles++;
+    }
+
+    private static int argMax(double[] values) {
+        int ind = 0;
+        for (int i = 1; i < values.length; i++) {
+            if (values[i] > values[ind])
+                ind = i;
+        }
+        return ind;
+    }
+
+    /**
+     * Get the name of the model.
+     * @return
+     */
+    public String getModelName() {
+        return modelName;
+    }
+
+    /**
+     * Get the precision compared with float32.
+     * This is {@link InferencePrecision#FP32} if the requested precision could not be used.
+     * @return
+     */
+    public InferencePrecision getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Get the number of tiles compared, excluding any background tiles.
+     * @return
+     */
+    public int getComparedTiles() {
+        return nTiles;
+    }
+
+    /**
+     * Get the fraction of tiles where the most probable class is the same for both precisions.
+     * @return
+     */
+    public double getAgreement() {
+        return nTiles == 0 ? Double.NaN : nAgreeing / (double)nTiles;
+    }
+
+    /**
+     * Get the mean absolute difference between the probabilities for each class.
+     * @return
+     */
+    public double getMeanDifference() {
+        return nProbabilities == 0 ? Double.NaN : sumDifference / nProbabilities;
+    }
+
+    /**
+     * Get the maximum absolute difference between the probabilities for any class.
+     * @return
+     */
+    public double getMaxDifference() {
+        return maxDifference;
+    }
+
+    /**
+     * Get the throughput using float32, in tiles per second.
+     * @return
+     */
+    public double getReferenceTilesPerSecond() {
+        return referenceTilesPerSecond;
+    }
+
+    /**
+     * Get the throughput using the reduced precision, in tiles per second.
+     * @return
+     */
+    public double getTilesPerSecond() {
+        return tilesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PrecisionComparison[%s %s vs FP32: %d tiles, %.1f%% agreement, mean diff %.4f, max diff %.4f, %.1f vs %.1f tiles/s]",
+                modelName, precision, nTiles, getAgreement() * 100, getMeanDifference(), maxDifference,
+                tilesPerSecond, referenceTilesPerSecond);
+    }
+
+}
@@ -0,0 +1,670 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import ai.djl.inference.Predictor;
+import ai.djl.modality.cv.Image;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.repository.zoo.ZooModel;
+import ai.djl.translate.NoBatchifyTranslator;
+import ai.djl.translate.TranslateException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.ThreadTools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Run inference for batches from a {@link TileLoader} using one or more predictors that share the same model.
+ * <p>
+ * Without pipelining, a single predictor is run from the calling thread.
+ * Otherwise, each predictor has its own thread and takes batches from the queue as soon as it is free,
+ * so that batches may complete out of order.
+ * Note that PyTorch's intra-op thread pool is shared by the whole process, so any limit on the number of threads
+ * needs to be set once for all the predictors (see {@link WSInfer}).
+ * <p>
+ * Optionally, inference can be pipelined in three stages connected by small bounded queues:
+ * <ol>
+ *     <li><b>upload</b> takes batches from the tile loader and creates input arrays on the model's device</li>
+ *     <li><b>forward</b> runs the model (using all the predictors), leaving the output on the device</li>
+ *     <li><b>write</b> copies the output back from the device, and passes the predictions to the batch handler</li>
+ * </ol>
+ * This means that uploading the next batch and writing the results of the previous batch can overlap with the
+ * forward pass for the current batch.
+ * The busy and idle time for each stage is recorded, so that the bottleneck can be identified.
+ */
+class PredictorPool<T> {
+
+    private static final Logger logger = LoggerFactory.getLogger(PredictorPool.class);
+
+    private final ZooModel<?, ?> model;
+    private final int numPredictors;
+    private final boolean pipelined;
+    private final TensorTranslator<T> tensorTranslator;
+    private final NoBatchifyTranslator<List<Image>, T> imageTranslator;
+
+    private final PredictorStatistics[] statistics;
+    private final StageStatistics uploadStage = new StageStatistics("upload");
+    private final StageStatistics forwardStage = new StageStatistics("forward");
+    private final StageStatistics writeStage = new StageStatistics("write");
+    private volatile long wallNanos;
+
+    /**
+     * Handle the predictions for a batch.
+     * This may be called concurrently from different predictor threads, and must be thread-safe.
+     * @param <T> the output for a batch
+     */
+    interface BatchHandler<T> {
+
+        /**
+         * Handle the predictions for a batch.
+         * @param batch the batch, including any background tiles that were not passed to the model
+         * @param predictions the predictions for each tile in {@link TileLoader.TileBatch#getTiles()}
+         */
+        void handle(TileLoader.TileBatch batch, T predictions);
+
+    }
+
+    /**
+     * Translator for batches that have been preprocessed into a single tensor by the tile workers.
+     * For pipelining, the output can be left on the device and copied back later by the write stage.
+     * @param <T> the output for a batch
+     */
+    interface TensorTranslator<T> extends NoBatchifyTranslator<NDList, T> {
+
+        /**
+         * Create a translator that leaves the output on the device, so that it can be copied back separately
+         * with {@link #toOutput(NDList)}.
+         * The output is detached from the predictor, and must be closed by the caller.
+         * @return
+         */
+        NoBatchifyTranslator<NDList, NDList> deviceOutputTranslator();
+
+        /**
+         * Copy the output for a batch back from the device.
+         * @param output the output of {@link #deviceOutputTranslator()}
+         * @return
+         */
+        T toOutput(NDList output);
+
+        /**
+         * Create the output for a batch where every tile was skipped.
+         * @return
+         */
+        T empty();
+
+    }
+
+    /**
+     * Create a pool of predictors.
+     * @param model the model shared by all predictors
+     * @param imageTranslator the translator used for batches of images that still need to be preprocessed,
+     *                        or null if every batch will have a tensor
+     * @param tensorTranslator the translator used for tensor batches
+     * @param numPredictors the number of predictors to run concurrently
+     * @param pipelined whether to run the upload, forward and write stages concurrently
+     */
+    PredictorPool(ZooModel<?, ?> model, NoBatchifyTranslator<List<Image>, T> imageTranslator,
+                  TensorTranslator<T> tensorTranslator, int numPredictors, boolean pipelined) {
+        this.model = model;
+        this.imageTranslator = imageTranslator;
+        this.numPredictors = Math.max(1, numPredictors);
+        this.pipelined = pipelined;
+        this.tensorTranslator = tensorTranslator;
+        this.statistics = new PredictorStatistics[this.numPredictors];
+    }
+
+    /**
+     * Run inference for all batches in the queue, until the end of the stream is reached.
+     * @param batchQueue the queue of batches from the tile loader
+     * @param isLoaderRunning used to check whether more batches can be expected, if the queue is empty
+     * @param handler handler for the predictions of each batch
+     * @throws InterruptedException if the calling thread is interrupted
+     * @throws TranslateException if inference failed for any predictor
+     */
+    void run(BlockingQueue<TileLoader.TileBatch> batchQueue, BooleanSupplier isLoaderRunning, BatchHandler<T> handler)
+            throws InterruptedException, TranslateException {
+        long startTime = System.nanoTime();
+        try {
+            if (pipelined)
+                runPipelined(batchQueue, isLoaderRunning, handler);
+            else if (numPredictors == 1)
+                runPredictor(0, batchQueue, isLoaderRunning, handler);
+            else
+                runParallel(batchQueue, isLoaderRunning, handler);
+        } finally {
+            wallNanos = System.nanoTime() - startTime;
+        }
+    }
+
+    private void runParallel(BlockingQueue<TileLoader.TileBatch> batchQueue, BooleanSupplier isLoaderRunning,
+                             BatchHandler<T> handler) throws InterruptedException, TranslateException {
+        ExecutorService pool = Executors.newFixedThreadPool(numPredictors,
+                ThreadTools.createThreadFactory("wsinfer-predict", true));
+        var completionService = new ExecutorCompletionService<Void>(pool);
+        try {
+            for (int i = 0; i < numPredictors; i++) {
+                int index = i;
+                completionService.submit(() -> {
+                    runPredictor(index, batchQueue, isLoaderRunning, handler);
+                    return null;
+                });
+            }
+            awaitAll(completionService, numPredictors, pool);
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private void runPipelined(BlockingQueue<TileLoader.TileBatch> batchQueue, BooleanSupplier isLoaderRunning,
+                              BatchHandler<T> handler) throws InterruptedException, TranslateException {
+        // Each predictor can have one batch waiting in each queue
+        BlockingQueue<PendingBatch<T>> uploaded = new ArrayBlockingQueue<>(numPredictors);
+        BlockingQueue<PendingBatch<T>> predicted = new ArrayBlockingQueue<>(numPredictors);
+        ExecutorService pool = Executors.newFixedThreadPool(numPredictors + 2,
+                ThreadTools.createThreadFactory("wsinfer-predict", true));
+        var completionService = new ExecutorCompletionService<Void>(pool);
+        try {
+            completionService.submit(() -> {
+                runUploadStage(batchQueue, isLoaderRunning, uploaded);
+                return null;
+            });
+            for (int i = 0; i < numPredictors; i++) {
+                int index = i;
+                completionService.submit(() -> {
+                    runForwardStage(index, uploaded, predicted);
+                    return null;
+                });
+            }
+            completionService.submit(() -> {
+                runWriteStage(predicted, handler);
+                return null;
+            });
+            awaitAll(completionService, numPredictors + 2, pool);
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+            discardAll(uploaded);
+            discardAll(predicted);
+        }
+    }
+
+    /**
+     * Wait for all tasks to complete, stopping the others as soon as one fails.
+     * @param completionService the completion service used to submit the tasks
+     * @param nTasks the number of tasks
+     * @param pool the pool running the tasks
+     * @throws InterruptedException
+     * @throws TranslateException
+     */
+    static void awaitAll(ExecutorCompletionService<Void> completionService, int nTasks, ExecutorService pool)
+            throws InterruptedException, TranslateException {
+        for (int i = 0; i < nTasks; i++) {
+            try {
+                completionService.take().get();
+            } catch (ExecutionException e) {
+                pool.shutdownNow();
+                Throwable cause = e.getCause();
+                if (cause instanceof TranslateException translateException)
+                    throw translateException;
+                if (cause instanceof InterruptedException interruptedException)
+                    throw interruptedException;
+                if (cause instanceof RuntimeException runtimeException)
+                    throw runtimeException;
+                if (cause instanceof Error error)
+                    throw error;
+                throw new TranslateException(cause);
+            }
+        }
+    }
+
+    /**
+     * Take batches from the tile loader and create the input arrays on the model's device.
+     * One end-of-stream marker is passed on for each predictor.
+     */
+    private void runUploadStage(BlockingQueue<TileLoader.TileBatch> batchQueue, BooleanSupplier isLoaderRunning,
+                                BlockingQueue<PendingBatch<T>> uploaded) throws InterruptedException {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long startTime = System.nanoTime();
+                var batch = batchQueue.poll(1, TimeUnit.SECONDS);
+                long readyTime = System.nanoTime();
+                uploadStage.addIdle(readyTime - startTime);
+                if (batch == null) {
+                    if (!isLoaderRunning.getAsBoolean() && batchQueue.isEmpty())
+                        break;
+                    continue;
+                }
+                if (batch.isEndOfStream()) {
+                    // Return the marker so that other pools sharing the queue also see the end of the stream
+                    batchQueue.put(batch);
+                    break;
+                }
+                var pending = new PendingBatch<T>(batch);
+                if (batch.hasTensor() && !batch.getTiles().isEmpty()) {
+                    try {
+                        pending.manager = model.getNDManager().newSubManager();
+                        pending.input = pending.manager.create(batch.getTensor(), batch.getTensorShape(), DataType.FLOAT32);
+                    } catch (RuntimeException e) {
+                        pending.close();
+                        throw e;
+                    }
+                }
+                long uploadedTime = System.nanoTime();
+                uploadStage.addBusy(uploadedTime - readyTime);
+                uploaded.put(pending);
+                uploadStage.addIdle(System.nanoTime() - uploadedTime);
+            }
+        } finally {
+            for (int i = 0; i < numPredictors; i++)
+                uploaded.put(PendingBatch.end());
+        }
+    }
+
+    /**
+     * Run the model for uploaded batches.
+     * Tensor batches leave their output on the device, while image batches are preprocessed
+     * by the predictor and copied back directly.
+     */
+    private void runForwardStage(int index, BlockingQueue<PendingBatch<T>> uploaded, BlockingQueue<PendingBatch<T>> predicted)
+            throws InterruptedException, TranslateException {
+        var stats = new PredictorStatistics(index);
+        statistics[index] = stats;
+        try (Predictor<List<Image>, T> imagePredictor = newImagePredictor();
+             Predictor<NDList, NDList> tensorPredictor = model.newPredictor(tensorTranslator.deviceOutputTranslator())) {
+            while (true) {
+                long startTime = System.nanoTime();
+                var pending = uploaded.take();
+                long readyTime = System.nanoTime();
+                forwardStage.addIdle(readyTime - startTime);
+                if (pending == PendingBatch.END)
+                    break;
+                try {
+                    if (pending.input != null)
+                        pending.output = tensorPredictor.predict(new NDList(pending.input));
+                    else if (pending.batch.getTiles().isEmpty())
+                        pending.predictions = tensorTranslator.empty();
+                    else
+                        pending.predictions = predictImages(imagePredictor, pending.batch);
+                } catch (TranslateException | RuntimeException e) {
+                    pending.close();
+                    throw e;
+                }
+                long predictedTime = System.nanoTime();
+                forwardStage.addBusy(predictedTime - readyTime);
+                stats.update(pending.batch.getTiles().size(), predictedTime - readyTime);
+                predicted.put(pending);
+                forwardStage.addIdle(System.nanoTime() - predictedTime);
+            }
+        } finally {
+            predicted.put(PendingBatch.end());
+        }
+    }
+
+    /**
+     * Copy predictions back from the device and pass them to the handler, until every predictor has finished.
+     */
+    private void runWriteStage(BlockingQueue<PendingBatch<T>> predicted, BatchHandler<T> handler) throws InterruptedException {
+        int remaining = numPredictors;
+        while (remaining > 0) {
+            long startTime = System.nanoTime();
+            var pending = predicted.take();
+            long readyTime = System.nanoTime();
+            writeStage.addIdle(readyTime - startTime);
+            if (pending == PendingBatch.END) {
+                remaining--;
+                continue;
+            }
+            try {
+                T predictions = pending.output == null ? pending.predictions :
+                        tensorTranslator.toOutput(pending.output);
+                handler.handle(pending.batch, predictions);
+            } finally {
+                pending.close();
+            }
+            writeStage.addBusy(System.nanoTime() - readyTime);
+        }
+    }
+
+    private static void discardAll(BlockingQueue<? extends PendingBatch<?>> queue) {
+        PendingBatch<?> pending;
+        while ((pending = queue.poll()) != null) {
+            if (pending != PendingBatch.END)
+                pending.close();
+        }
+    }
+
+    private void runPredictor(int index, BlockingQueue<TileLoader.TileBatch> batchQueue,
+                              BooleanSupplier isLoaderRunning, BatchHandler<T> handler)
+            throws InterruptedException, TranslateException {
+        var stats = new PredictorStatistics(index);
+        statistics[index] = stats;
+        try (Predictor<List<Image>, T> imagePredictor = newImagePredictor();
+             Predictor<NDList, T> tensorPredictor = model.newPredictor(tensorTranslator)) {
+            while (!Thread.currentThread().isInterrupted()) {
+                var batch = batchQueue.poll(1, TimeUnit.SECONDS);
+                if (batch == null) {
+                    // Don't wait forever if the loader stopped without signalling the end of the stream
+                    if (!isLoaderRunning.getAsBoolean() && batchQueue.isEmpty())
+                        break;
+                    continue;
+                }
+                if (batch.isEndOfStream()) {
+                    // Return the marker so that the other predictors also see the end of the stream
+                    batchQueue.put(batch);
+                    break;
+                }
+
+                try {
+                    T predictions;
+                    long predictStart = System.nanoTime();
+                    if (batch.getTiles().isEmpty())
+                        predictions = tensorTranslator.empty();
+                    else if (batch.hasTensor())
+                        predictions = predictTensor(tensorPredictor, batch);
+                    else
+                        predictions = predictImages(imagePredictor, batch);
+                    stats.update(batch.getTiles().size(), System.nanoTime() - predictStart);
+
+                    handler.handle(batch, predictions);
+                } finally {
+                    batch.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Run a batch that has been preprocessed into a single tensor through the model.
+     * @param predictor predictor for tensor batches
+     * @param batch the batch, which must have a tensor
+     * @return the predictions for each tile in the batch
+     * @throws TranslateException
+     */
+    private T predictTensor(Predictor<NDList, T> predictor, TileLoader.TileBatch batch) throws TranslateException {
+        try (NDManager manager = model.getNDManager().newSubManager()) {
+            NDArray input = manager.create(batch.getTensor(), batch.getTensorShape(), DataType.FLOAT32);
+            return predictor.predict(new NDList(input));
+        }
+    }
+
+    /**
+     * Create a predictor for batches of images, if an image translator is available.
+     * @return the predictor, or null if there is no image translator
+     */
+    private Predictor<List<Image>, T> newImagePredictor() {
+        return imageTranslator == null ? null : model.newPredictor(imageTranslator);
+    }
+
+    /**
+     * Run a batch of images that still need to be preprocessed through the model.
+     * @param predictor predictor for image batches, or null if there is no image translator
+     * @param batch the batch
+     * @return the predictions for each tile in the batch
+     * @throws TranslateException
+     */
+    private T predictImages(Predictor<List<Image>, T> predictor, TileLoader.TileBatch batch) throws TranslateException {
+        if (predictor == null)
+            throw new IllegalStateException("No translator is available for batches without a tensor");
+        return predictor.predict(batch.getInputs());
+    }
+
+    /**
+     * Get the number of predictors.
+     * @return
+     */
+    int getNumPredictors() {
+        return numPredictors;
+    }
+
+    /**
+     * Get the overall throughput of the most recent run, in tiles per second.
+     * @return
+     */
+    double getTilesPerSecond() {
+        long tiles = 0;
+        for (var stats : getStatistics())
+            tiles += stats.getTiles();
+        return wallNanos <= 0 ? 0 : tiles * 1e9 / wallNanos;
+    }
+
+    /**
+     * Get the busy and idle times for each stage of a pipelined run.
+     * These are only recorded if the pool is pipelined.
+     * @return
+     */
+    List<StageStatistics> getStageStatistics() {
+        return List.of(uploadStage, forwardStage, writeStage);
+    }
+
+    /**
+     * Get the pipeline stage that was busy for the largest proportion of the time, which limits the throughput.
+     * @return the stage, or null if the pool is not pipelined
+     */
+    StageStatistics getBottleneckStage() {
+        if (!pipelined)
+            return null;
+        StageStatistics bottleneck = null;
+        for (var stage : getStageStatistics()) {
+            if (bottleneck == null || stage.getBusyFraction() > bottleneck.getBusyFraction())
+                bottleneck = stage;
+        }
+        return bottleneck;
+    }
+
+    /**
+     * Get the statistics for each predictor that has been started.
+     * @return
+     */
+    List<PredictorStatistics> getStatistics() {
+        List<PredictorStatistics> list = new ArrayList<>();
+        for (var stats : statistics) {
+            if (stats != null)
+                list.add(stats);
+        }
+        return list;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%d predictor(s), %.1f tiles/s", numPredictors, getTilesPerSecond()));
+        for (var stats : getStatistics())
+            sb.append(", ").append(stats);
+        if (pipelined) {
+            for (var stage : getStageStatistics())
+                sb.append(", ").append(stage);
+            sb.append(", bottleneck: ").append(getBottleneckStage().getName());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A batch passing through the pipeline, along with any arrays created for it.
+     */
+    private static class PendingBatch<T> {
+
+        private static final PendingBatch<?> END = new PendingBatch<>(null);
+
+        private final TileLoader.TileBatch batch;
+        private NDManager manager;
+        private NDArray input;
+        private NDList output;
+        private T predictions;
+
+        private PendingBatch(TileLoader.TileBatch batch) {
+            this.batch = batch;
+        }
+
+        /**
+         * Get the marker used to signal the end of the stream.
+         * @return
+         */
+        @SuppressWarnings("unchecked")
+        private static <T> PendingBatch<T> end() {
+            return (PendingBatch<T>)END;
+        }
+
+        /**
+         * Close any arrays and return the batch buffers to the tile loader.
+         * The batch is only released here, because the input array may share its memory.
+         */
+        private void close() {
+            if (output != null)
+                output.close();
+            if (manager != null)
+                manager.close();
+            if (batch != null)
+                batch.release();
+        }
+
+    }
+
+    /**
+     * Busy and idle time for one stage of the pipeline.
+     * Idle time includes both waiting for input and waiting for space in the next queue.
+     * For the forward stage, times are summed over all predictors.
+     */
+    static class StageStatistics {
+
+        private final String name;
+        private final LongAdder busyNanos = new LongAdder();
+        private final LongAdder idleNanos = new LongAdder();
+
+        private StageStatistics(String name) {
+            this.name = name;
+        }
+
+        private void addBusy(long nanos) {
+            busyNanos.add(nanos);
+        }
+
+        private void addIdle(long nanos) {
+            idleNanos.add(nanos);
+        }
+
+        /**
+         * Get the name of the stage.
+         * @return
+         */
+        String getName() {
+            return name;
+        }
+
+        /**
+         * Get the time the stage spent working, in nanoseconds.
+         * @return
+         */
+        long getBusyNanos() {
+            return busyNanos.sum();
+        }
+
+        /**
+         * Get the time the stage spent waiting, in nanoseconds.
+         * @return
+         */
+        long getIdleNanos() {
+            return idleNanos.sum();
+        }
+
+        /**
+         * Get the proportion of time that the stage was busy.
+         * @return
+         */
+        double getBusyFraction() {
+            long busy = getBusyNanos();
+            long total = busy + getIdleNanos();
+            return total == 0 ? 0 : busy / (double)total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d ms busy, %d ms idle (%.0f%% busy)",
+                    name, getBusyNanos() / 1_000_000, getIdleNanos() / 1_000_000, getBusyFraction() * 100);
+        }
+
+    }
+
+    /**
+     * Statistics for a single predictor.
+     * Each instance is only updated by its own predictor thread.
+     */
+    static class PredictorStatistics {
+
+        private final int index;
+        private volatile long batches;
+        private volatile long tiles;
+        private volatile long busyNanos;
+
+        private PredictorStatistics(int index) {
+            this.index = index;
+        }
+
+        private void update(int nTiles, long nanos) {
+            batches++;
+            tiles += nTiles;
+            busyNanos += nanos;
+        }
+
+        /**
+         * Get the number of batches processed by the predictor.
+         * @return
+         */
+        long getBatches() {
+            return batches;
+        }
+
+        /**
+         * Get the number of tiles passed to the model by the predictor.
+         * @return
+         */
+        long getTiles() {
+            return tiles;
+        }
+
+        /**
+         * Get the time spent running the model, in nanoseconds.
+         * @return
+         */
+        long getBusyNanos() {
+            return busyNanos;
+        }
+
+        @Override
+        public String toString() {
+            double busySeconds = busyNanos / 1e9;
+            return String.format("#%d: %d tiles in %d batches (%.1f tiles/s busy)",
+                    index, tiles, batches, busySeconds == 0 ? 0 : tiles / busySeconds);
+        }
+
+    }
+
+}
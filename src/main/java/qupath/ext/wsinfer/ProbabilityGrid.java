@@ -0,0 +1,298 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dense grids of class probabilities at tile resolution, with one cell for each tile.
+ * <p>
+ * Tiles created for different annotations are aligned to each annotation separately, and detections may have
+ * different sizes, so a single grid can't usually hold all the tiles.
+ * Instead, there is one layer for each tiling, identified by the tile size and the offset of the tiles from
+ * the image origin (modulo the tile size).
+ * Each layer covers only the bounds of its own tiles, so that every tile has exactly one cell.
+ * <p>
+ * Probabilities are stored in a single array for each layer, using one float for each class and cell.
+ * Cells without a prediction (e.g. background tiles, or areas without tiles) contain NaN.
+ * Where layers overlap, the first layer with a prediction is used.
+ */
+class ProbabilityGrid {
+
+    private final int numClasses;
+    private final List<Layer> layers;
+    private final Map<LayerKey, Layer> layerMap;
+
+    private ProbabilityGrid(int numClasses, Map<LayerKey, Layer> layerMap) {
+        this.numClasses = numClasses;
+        this.layerMap = Map.copyOf(layerMap);
+        this.layers = List.copyOf(layerMap.values());
+    }
+
+    /**
+     * Create a grid covering all the tiles.
+     * @param tiles the tiles
+     * @param numClasses the number of classes
+     * @return
+     */
+    static ProbabilityGrid forTiles(Collection<? extends PathObject> tiles, int numClasses) {
+        var builder = builder(numClasses);
+        for (var tile : tiles)
+            builder.add(tile.getROI());
+        return builder.build();
+    }
+
+    /**
+     * Create a builder, so that a grid can be created from tile ROIs without needing to keep them all.
+     * @param numClasses the number of classes
+     * @return
+     */
+    static Builder builder(int numClasses) {
+        return new Builder(numClasses);
+    }
+
+    /**
+     * Set the probabilities for the cell containing a tile.
+     * Tiles that weren't included when the grid was created are ignored.
+     * @param roi the ROI of the tile
+     * @param predictions the predictions for the batch containing the tile
+     * @param tile the index of the tile in the batch
+     */
+    void set(ROI roi, BatchPredictions predictions, int tile) {
+        var layer = layerMap.get(LayerKey.forROI(roi));
+        if (layer == null)
+            return;
+        int x = (int)Math.round((roi.getBoundsX() - layer.originX) / layer.cellWidth);
+        int y = (int)Math.round((roi.getBoundsY() - layer.originY) / layer.cellHeight);
+        if (x < 0 || y < 0 || x >= layer.width || y >= layer.height)
+            return;
+        int offset = (y * layer.width + x) * numClasses;
+        for (int c = 0; c < numClasses; c++)
+            layer.values[offset + c] = predictions.getProbability(tile, c);
+    }
+
+    /**
+     * Get the probability of a class at a location in the full-resolution image.
+     * @param x the x coordinate in the full-resolution image
+     * @param y the y coordinate in the full-resolution image
+     * @param classIndex the index of the class
+     * @return the probability, or NaN if there is no prediction for the location
+     */
+    float get(double x, double y, int classIndex) {
+        for (var layer : layers) {
+            int offset = layer.offset(x, y);
+            if (offset >= 0 && !Float.isNaN(layer.values[offset]))
+                return layer.values[offset + classIndex];
+        }
+        return Float.NaN;
+    }
+
+    /**
+     * Read the probabilities for a region of the full-resolution image, sampled at the center of each pixel.
+     * @param x the x coordinate of the region in the full-resolution image
+     * @param y the y coordinate of the region in the full-resolution image
+     * @param downsample the downsample of the output pixels
+     * @param width the width of the output, in pixels
+     * @param height the height of the output, in pixels
+     * @param banks an array of length {@code width * height} for each class, which will be filled with the
+     *              probabilities (or NaN if there is no prediction for a pixel)
+     */
+    void read(double x, double y, double downsample, int width, int height, float[][] banks) {
+        for (float[] bank : banks)
+            Arrays.fill(bank, 0, width * height, Float.NaN);
+        // Each layer only visits the pixels within its bounds
+        for (var layer : layers)
+            layer.read(x, y, downsample, width, height, banks);
+    }
+
+    /**
+     * Get the number of classes.
+     * @return
+     */
+    int getNumClasses() {
+        return numClasses;
+    }
+
+    /**
+     * Get the size of the smallest cells, in full-resolution pixels.
+     * For non-square cells, the larger of the width and height is used.
+     * @return
+     */
+    double getCellSize() {
+        double size = Double.POSITIVE_INFINITY;
+        for (var layer : layers)
+            size = Math.min(size, Math.max(layer.cellWidth, layer.cellHeight));
+        return Double.isFinite(size) ? size : 1;
+    }
+
+    /**
+     * Get the number of layers, i.e. distinct tilings.
+     * @return
+     */
+    int getLayerCount() {
+        return layers.size();
+    }
+
+    /**
+     * Builder to create a grid from tile ROIs.
+     */
+    static class Builder {
+
+        private final int numClasses;
+        private final Map<LayerKey, double[]> bounds = new LinkedHashMap<>();
+
+        private Builder(int numClasses) {
+            this.numClasses = numClasses;
+        }
+
+        /**
+         * Add the ROI of a tile.
+         * @param roi
+         * @return this builder
+         */
+        Builder add(ROI roi) {
+            var b = bounds.computeIfAbsent(LayerKey.forROI(roi), k -> new double[] {
+                    Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY});
+            b[0] = Math.min(b[0], roi.getBoundsX());
+            b[1] = Math.min(b[1], roi.getBoundsY());
+            b[2] = Math.max(b[2], roi.getBoundsX() + roi.getBoundsWidth());
+            b[3] = Math.max(b[3], roi.getBoundsY() + roi.getBoundsHeight());
+            return this;
+        }
+
+        /**
+         * Create the grid, with one layer for each tiling.
+         * @return
+         * @throws IllegalArgumentException if no tiles were added
+         */
+        ProbabilityGrid build() {
+            if (bounds.isEmpty())
+                throw new IllegalArgumentException("At least one tile is required");
+            Map<LayerKey, Layer> layers = new LinkedHashMap<>();
+            for (var entry : bounds.entrySet()) {
+                var key = entry.getKey();
+                var b = entry.getValue();
+                int width = Math.max(1, (int)Math.round((b[2] - b[0]) / key.cellWidth()));
+                int height = Math.max(1, (int)Math.round((b[3] - b[1]) / key.cellHeight()));
+                layers.put(key, new Layer(b[0], b[1], key.cellWidth(), key.cellHeight(), width, height, numClasses));
+            }
+            return new ProbabilityGrid(numClasses, layers);
+        }
+
+    }
+
+    /**
+     * Key identifying a tiling, from the size of the tiles and their offset from the image origin.
+     */
+    private record LayerKey(double cellWidth, double cellHeight, double phaseX, double phaseY) {
+
+        private static LayerKey forROI(ROI roi) {
+            double cellWidth = Math.max(1, roi.getBoundsWidth());
+            double cellHeight = Math.max(1, roi.getBoundsHeight());
+            return new LayerKey(cellWidth, cellHeight,
+                    phase(roi.getBoundsX(), cellWidth), phase(roi.getBoundsY(), cellHeight));
+        }
+
+        private static double phase(double value, double size) {
+            return value - Math.floor(value / size) * size;
+        }
+
+    }
+
+    /**
+     * A dense grid for the tiles of a single tiling.
+     */
+    private static class Layer {
+
+        private final double originX;
+        private final double originY;
+        private final double cellWidth;
+        private final double cellHeight;
+        private final int width;
+        private final int height;
+        private final int numClasses;
+        private final float[] values;
+
+        private Layer(double originX, double originY, double cellWidth, double cellHeight,
+                      int width, int height, int numClasses) {
+            this.originX = originX;
+            this.originY = originY;
+            this.cellWidth = cellWidth;
+            this.cellHeight = cellHeight;
+            this.width = width;
+            this.height = height;
+            this.numClasses = numClasses;
+            this.values = new float[Math.multiplyExact(Math.multiplyExact(width, height), numClasses)];
+            Arrays.fill(values, Float.NaN);
+        }
+
+        /**
+         * Get the offset of the first value for the cell containing a location, or -1 if it is outside the layer.
+         */
+        private int offset(double x, double y) {
+            int gx = (int)Math.floor((x - originX) / cellWidth);
+            int gy = (int)Math.floor((y - originY) / cellHeight);
+            if (gx < 0 || gy < 0 || gx >= width || gy >= height)
+                return -1;
+            return (gy * width + gx) * numClasses;
+        }
+
+        /**
+         * Fill any output pixels without a prediction, if their centers fall within this layer.
+         */
+        private void read(double x, double y, double downsample, int outWidth, int outHeight, float[][] banks) {
+            int x0 = Math.max(0, firstPixel(originX, x, downsample));
+            int x1 = Math.min(outWidth, firstPixel(originX + width * cellWidth, x, downsample));
+            int y0 = Math.max(0, firstPixel(originY, y, downsample));
+            int y1 = Math.min(outHeight, firstPixel(originY + height * cellHeight, y, downsample));
+            for (int j = y0; j < y1; j++) {
+                int gy = clip((int)Math.floor((y + (j + 0.5) * downsample - originY) / cellHeight), height);
+                for (int i = x0; i < x1; i++) {
+                    int ind = j * outWidth + i;
+                    if (!Float.isNaN(banks[0][ind]))
+                        continue;
+                    int gx = clip((int)Math.floor((x + (i + 0.5) * downsample - originX) / cellWidth), width);
+                    int offset = (gy * width + gx) * numClasses;
+                    if (Float.isNaN(values[offset]))
+                        continue;
+                    for (int c = 0; c < numClasses; c++)
+                        banks[c][ind] = values[offset + c];
+                }
+            }
+        }
+
+        /**
+         * Get the index of the first output pixel whose center is at or after a coordinate.
+         */
+        private static int firstPixel(double coordinate, double start, double downsample) {
+            return (int)Math.ceil((coordinate - start) / downsample - 0.5);
+        }
+
+        private static int clip(int value, int size) {
+            return Math.max(0, Math.min(size - 1, value));
+        }
+
+    }
+
+}
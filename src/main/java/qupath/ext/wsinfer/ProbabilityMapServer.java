@@ -0,0 +1,154 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import qupath.lib.color.ColorModelFactory;
+import qupath.lib.images.servers.AbstractTileableImageServer;
+import qupath.lib.images.servers.ImageChannel;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.PixelType;
+import qupath.lib.images.servers.TileRequest;
+import qupath.lib.objects.classes.PathClass;
+
+import java.awt.image.BandedSampleModel;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.WritableRaster;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Image server giving the class probabilities from a {@link ProbabilityGrid} as a float32 image,
+ * with one channel for each class.
+ * <p>
+ * The server has the same size and calibration as the original image, but its highest resolution has one pixel
+ * for each of the smallest tiles.
+ * Lower resolutions are included so that the map can be written as a pyramidal image.
+ * Pixels without a prediction are NaN.
+ * <p>
+ * The server is transient: the probabilities are only held in memory, so it has no {@link ServerBuilder} and
+ * can't be added to a project or recreated after QuPath is closed.
+ * To keep the map, it should be written to a file (see {@link WSInfer#writeProbabilityMap(ImageServer, String)})
+ * and the file opened as a new image.
+ */
+class ProbabilityMapServer extends AbstractTileableImageServer {
+
+    /**
+     * Size of the lowest resolution level, below which no more levels are added.
+     */
+    private static final int MIN_LEVEL_SIZE = 512;
+
+    private final ProbabilityGrid grid;
+    private final List<ImageChannel> channels;
+    private final ImageServerMetadata metadata;
+    private final String id = UUID.randomUUID().toString();
+
+    /**
+     * Create a server for a probability grid.
+     * @param server the server for the image used for inference
+     * @param grid the probabilities
+     * @param classNames the names of the classes, in the same order as the grid
+     * @param name the name of the server
+     */
+    ProbabilityMapServer(ImageServer<BufferedImage> server, ProbabilityGrid grid, List<String> classNames, String name) {
+        this.grid = grid;
+        List<ImageChannel> channels = new ArrayList<>();
+        Map<Integer, PathClass> labels = new LinkedHashMap<>();
+        for (int c = 0; c < classNames.size(); c++) {
+            var pathClass = PathClass.fromString(classNames.get(c));
+            channels.add(ImageChannel.getInstance(classNames.get(c), pathClass.getColor()));
+            labels.put(c, pathClass);
+        }
+        this.channels = List.copyOf(channels);
+
+        List<Double> downsamples = new ArrayList<>();
+        double downsample = grid.getCellSize();
+        downsamples.add(downsample);
+        while (Math.max(server.getWidth(), server.getHeight()) / (downsample * 4) >= MIN_LEVEL_SIZE) {
+            downsample *= 4;
+            downsamples.add(downsample);
+        }
+        var builder = new ImageServerMetadata.Builder()
+                .name(name)
+                .width(server.getWidth())
+                .height(server.getHeight())
+                .channels(this.channels)
+                .channelType(ImageServerMetadata.ChannelType.PROBABILITY)
+                .classificationLabels(labels)
+                .pixelType(PixelType.FLOAT32)
+                .rgb(false)
+                .preferredTileSize(256, 256)
+                .levelsFromDownsamples(downsamples.stream().mapToDouble(Double::doubleValue).toArray());
+        var cal = server.getPixelCalibration();
+        if (cal.hasPixelSizeMicrons())
+            builder.pixelSizeMicrons(cal.getPixelWidthMicrons(), cal.getPixelHeightMicrons());
+        this.metadata = builder.build();
+    }
+
+    @Override
+    protected BufferedImage readTile(TileRequest tileRequest) {
+        int width = tileRequest.getTileWidth();
+        int height = tileRequest.getTileHeight();
+        double downsample = tileRequest.getDownsample();
+        int numClasses = grid.getNumClasses();
+        float[][] banks = new float[numClasses][width * height];
+        grid.read(tileRequest.getImageX(), tileRequest.getImageY(), downsample, width, height, banks);
+        var sampleModel = new BandedSampleModel(DataBuffer.TYPE_FLOAT, width, height, numClasses);
+        var raster = WritableRaster.createWritableRaster(sampleModel, new DataBufferFloat(banks, width * height), null);
+        var colorModel = ColorModelFactory.createColorModel(PixelType.FLOAT32, channels);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    /**
+     * Returns null, because the server is transient and can't be recreated.
+     * @return null
+     */
+    @Override
+    protected ServerBuilder<BufferedImage> createServerBuilder() {
+        return null;
+    }
+
+    @Override
+    protected String createID() {
+        return getClass().getName() + ": " + metadata.getName() + " " + id;
+    }
+
+    @Override
+    public Collection<URI> getURIs() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public String getServerType() {
+        return "WSInfer probability map";
+    }
+
+    @Override
+    public ImageServerMetadata getOriginalMetadata() {
+        return metadata;
+    }
+
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.translate.NoBatchifyTranslator;
+import ai.djl.translate.TranslatorContext;
+
+import java.util.List;
+
+/**
+ * Translator for a batch of tiles that have already been preprocessed into a single NCHW tensor
+ * (see {@link TensorPreprocessor}).
+ * <p>
+ * The whole batch is passed through the model with one forward pass.
+ * Softmax and the most probable class are computed on the device, and the output is copied back into a single
+ * {@link BatchPredictions} without creating any objects for individual tiles.
+ * Like {@link MpsSupport.WSInferClassificationTranslator}, this avoids converting probabilities to float64
+ * on the device, so that it can also be used with MPS.
+ * <p>
+ * If test-time augmentation is used, the batch is expanded into all its augmented variants on the device,
+ * and the probabilities for each tile are averaged, along with measures of their uncertainty.
+ * <p>
+ * Inputs are converted to the type required by the {@link InferencePrecision} of the model on the device,
+ * so that tile workers always prepare float32 tensors.
+ */
+class TensorBatchTranslator implements PredictorPool.TensorTranslator<BatchPredictions> {
+
+    /**
+     * Small value added to probabilities before taking the log, to avoid log(0).
+     */
+    private static final float EPSILON = 1e-12f;
+
+    private final List<String> classes;
+    private final boolean applySoftmax;
+    private final TestTimeAugmentation augmentation;
+    private final InferencePrecision precision;
+
+    /**
+     * Create a translator.
+     * @param classes output classification names
+     * @param applySoftmax whether softmax should be applied to the model output to get probabilities
+     */
+    TensorBatchTranslator(List<String> classes, boolean applySoftmax) {
+        this(classes, applySoftmax, TestTimeAugmentation.NONE, InferencePrecision.FP32);
+    }
+
+    /**
+     * Create a translator with test-time augmentation and a specified precision.
+     * @param classes output classification names
+     * @param applySoftmax whether softmax should be applied to the model output to get probabilities
+     * @param augmentation the augmentation to apply to each batch
+     * @param precision the precision of the model
+     */
+    TensorBatchTranslator(List<String> classes, boolean applySoftmax, TestTimeAugmentation augmentation,
+                          InferencePrecision precision) {
+        this.classes = List.copyOf(classes);
+        this.applySoftmax = applySoftmax;
+        this.augmentation = augmentation == null ? TestTimeAugmentation.NONE : augmentation;
+        this.precision = precision == null ? InferencePrecision.FP32 : precision;
+    }
+
+    @Override
+    public NDList processInput(TranslatorContext ctx, NDList input) {
+        if (augmentation == TestTimeAugmentation.NONE && precision.getInputType() == DataType.FLOAT32)
+            return input;
+        NDArray array = precision.toInputType(input.singletonOrThrow());
+        return new NDList(augmentation.augment(array));
+    }
+
+    @Override
+    public BatchPredictions processOutput(TranslatorContext ctx, NDList list) {
+        return toOutput(toProbabilities(list));
+    }
+
+    /**
+     * Create a translator that leaves the probabilities on the device, so that they can be converted to
+     * predictions separately with {@link #toOutput(NDList)}.
+     * The output is detached from the predictor, and must be closed by the caller.
+     * @return
+     */
+    @Override
+    public NoBatchifyTranslator<NDList, NDList> deviceOutputTranslator() {
+        return new NoBatchifyTranslator<>() {
+            @Override
+            public NDList processInput(TranslatorContext ctx, NDList input) {
+                return TensorBatchTranslator.this.processInput(ctx, input);
+            }
+
+            @Override
+            public NDList processOutput(TranslatorContext ctx, NDList list) {
+                NDList output = toProbabilities(list);
+                output.detach();
+                return output;
+            }
+        };
+    }
+
+    /**
+     * Get the class names.
+     * @return
+     */
+    List<String> getClasses() {
+        return classes;
+    }
+
+    /**
+     * Get the probabilities from the model output, along with the index of the most probable class for each tile.
+     * With test-time augmentation, the probabilities are averaged over the variants of each tile, and the list also
+     * contains the variance (averaged over classes) and entropy for each tile.
+     * @param list
+     * @return
+     */
+    private NDList toProbabilities(NDList list) {
+        NDArray probabilitiesNd = list.singletonOrThrow();
+        // Reduced precision models output reduced precision logits, but probabilities are always computed as float32
+        if (probabilitiesNd.getDataType() != DataType.FLOAT32)
+            probabilitiesNd = probabilitiesNd.toType(DataType.FLOAT32, false);
+        if (applySoftmax) {
+            probabilitiesNd = probabilitiesNd.softmax(1);
+        }
+        int nVariants = augmentation.getCount();
+        if (nVariants == 1)
+            return new NDList(probabilitiesNd, probabilitiesNd.argMax(1));
+        long nClasses = probabilitiesNd.getShape().get(1);
+        long nTiles = probabilitiesNd.getShape().get(0) / nVariants;
+        NDArray variants = probabilitiesNd.reshape(new Shape(nVariants, nTiles, nClasses));
+        NDArray mean = variants.mean(new int[]{0});
+        NDArray variance = variants.sub(mean).square().mean(new int[]{0}).mean(new int[]{1});
+        NDArray entropy = mean.mul(mean.add(EPSILON).log()).sum(new int[]{1}).neg();
+        return new NDList(mean, mean.argMax(1), variance, entropy);
+    }
+
+    /**
+     * Copy the probabilities for a batch back from the device.
+     * @param probabilities the output of {@link #deviceOutputTranslator()}
+     * @return
+     */
+    @Override
+    public BatchPredictions toOutput(NDList probabilities) {
+        float[] values = toFloatArray(probabilities.get(0));
+        long[] topClasses = probabilities.get(1).toType(DataType.INT64, false).toLongArray();
+        int[] topClassIndices = new int[topClasses.length];
+        for (int i = 0; i < topClasses.length; i++)
+            topClassIndices[i] = (int)topClasses[i];
+        float[] variance = probabilities.size() > 2 ? toFloatArray(probabilities.get(2)) : null;
+        float[] entropy = probabilities.size() > 3 ? toFloatArray(probabilities.get(3)) : null;
+        return new BatchPredictions(classes.size(), values, topClassIndices, variance, entropy);
+    }
+
+    @Override
+    public BatchPredictions empty() {
+        return BatchPredictions.empty(classes.size());
+    }
+
+    private static float[] toFloatArray(NDArray array) {
+        return array.toType(DataType.FLOAT32, false).toFloatArray();
+    }
+
+}
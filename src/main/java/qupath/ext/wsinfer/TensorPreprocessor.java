@@ -0,0 +1,179 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Fused equivalent of the ToTensor and Normalize transforms, which writes RGB pixels directly into a
+ * float32 buffer in CHW order.
+ * <p>
+ * Each value is computed as {@code (pixel / 255 - mean) / std}, which matches applying DJL's
+ * {@link ai.djl.modality.cv.transform.ToTensor} followed by {@link ai.djl.modality.cv.transform.Normalize}.
+ * <p>
+ * Pixels are read directly from the data buffer for common RGB image types, avoiding the conversion to a
+ * DJL image and the intermediate copies made by the translator pipeline.
+ * Other image types fall back to {@link BufferedImage#getRGB(int, int, int, int, int[], int, int)}.
+ */
+class TensorPreprocessor {
+
+    private static final int N_CHANNELS = 3;
+
+    private final float[] scale = new float[N_CHANNELS];
+    private final float[] offset = new float[N_CHANNELS];
+
+    /**
+     * Create a preprocessor.
+     * @param mean per-channel mean values for normalization; if null, no normalization is applied
+     * @param std per-channel standard deviations for normalization; if null, no normalization is applied
+     * @throws IllegalArgumentException if the mean or standard deviation doesn't have exactly one value per channel
+     */
+    TensorPreprocessor(float[] mean, float[] std) throws IllegalArgumentException {
+        checkLength(mean, "mean");
+        checkLength(std, "standard deviation");
+        for (int c = 0; c < N_CHANNELS; c++) {
+            double m = mean == null ? 0 : mean[c];
+            double s = std == null ? 1 : std[c];
+            scale[c] = (float)(1.0 / (255.0 * s));
+            offset[c] = (float)(-m / s);
+        }
+    }
+
+    private static void checkLength(float[] values, String name) {
+        if (values != null && values.length != N_CHANNELS)
+            throw new IllegalArgumentException("Expected " + N_CHANNELS + " values for the " + name + ", but got " + values.length);
+    }
+
+    /**
+     * Get the number of channels written for each pixel.
+     * @return
+     */
+    int getNumChannels() {
+        return N_CHANNELS;
+    }
+
+    /**
+     * Write an image into a buffer as normalized CHW float values.
+     * @param img the image to write
+     * @param buffer the buffer to write into
+     * @param index index of the first element in the buffer that should be written
+     */
+    void write(BufferedImage img, FloatBuffer buffer, int index) {
+        var raster = img.getRaster();
+        var sampleModel = raster.getSampleModel();
+        if (raster.getDataBuffer() instanceof DataBufferByte bytes
+                && sampleModel instanceof ComponentSampleModel componentSampleModel
+                && img.getColorModel() instanceof ComponentColorModel
+                && img.getColorModel().getColorSpace().getType() == ColorSpace.TYPE_RGB
+                && raster.getNumBands() >= N_CHANNELS
+                && Arrays.stream(componentSampleModel.getBankIndices()).allMatch(b -> b == 0)) {
+            writeBytes(raster, bytes, componentSampleModel, buffer, index);
+        } else if (raster.getDataBuffer() instanceof DataBufferInt ints
+                && sampleModel instanceof SinglePixelPackedSampleModel packedSampleModel
+                && (img.getType() == BufferedImage.TYPE_INT_RGB || img.getType() == BufferedImage.TYPE_INT_ARGB)) {
+            writeInts(raster, ints, packedSampleModel, buffer, index);
+        } else {
+            writeRGB(img, buffer, index);
+        }
+    }
+
+    private void writeBytes(WritableRaster raster, DataBufferByte dataBuffer, ComponentSampleModel sampleModel,
+                            FloatBuffer buffer, int index) {
+        byte[] data = dataBuffer.getData();
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        int plane = width * height;
+        int pixelStride = sampleModel.getPixelStride();
+        int scanlineStride = sampleModel.getScanlineStride();
+        int[] bandOffsets = sampleModel.getBandOffsets();
+        int r0 = bandOffsets[0], g0 = bandOffsets[1], b0 = bandOffsets[2];
+        int x0 = -raster.getSampleModelTranslateX();
+        int y0 = -raster.getSampleModelTranslateY();
+        int i = index;
+        for (int y = 0; y < height; y++) {
+            int ind = dataBuffer.getOffset() + (y + y0) * scanlineStride + x0 * pixelStride;
+            for (int x = 0; x < width; x++) {
+                buffer.put(i, (data[ind + r0] & 0xff) * scale[0] + offset[0]);
+                buffer.put(i + plane, (data[ind + g0] & 0xff) * scale[1] + offset[1]);
+                buffer.put(i + 2 * plane, (data[ind + b0] & 0xff) * scale[2] + offset[2]);
+                ind += pixelStride;
+                i++;
+            }
+        }
+    }
+
+    private void writeInts(WritableRaster raster, DataBufferInt dataBuffer, SinglePixelPackedSampleModel sampleModel,
+                           FloatBuffer buffer, int index) {
+        int[] data = dataBuffer.getData();
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        int plane = width * height;
+        int scanlineStride = sampleModel.getScanlineStride();
+        int x0 = -raster.getSampleModelTranslateX();
+        int y0 = -raster.getSampleModelTranslateY();
+        int i = index;
+        for (int y = 0; y < height; y++) {
+            int ind = dataBuffer.getOffset() + (y + y0) * scanlineStride + x0;
+            for (int x = 0; x < width; x++) {
+                writePackedRGB(data[ind++], buffer, i++, plane);
+            }
+        }
+    }
+
+    private void writeRGB(BufferedImage img, FloatBuffer buffer, int index) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int plane = width * height;
+        int[] row = new int[width];
+        int i = index;
+        for (int y = 0; y < height; y++) {
+            img.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                writePackedRGB(row[x], buffer, i++, plane);
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        return obj instanceof TensorPreprocessor other &&
+                Arrays.equals(scale, other.scale) && Arrays.equals(offset, other.offset);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(scale) + Arrays.hashCode(offset);
+    }
+
+    private void writePackedRGB(int rgb, FloatBuffer buffer, int i, int plane) {
+        buffer.put(i, ((rgb >> 16) & 0xff) * scale[0] + offset[0]);
+        buffer.put(i + plane, ((rgb >> 8) & 0xff) * scale[1] + offset[1]);
+        buffer.put(i + 2 * plane, (rgb & 0xff) * scale[2] + offset[2]);
+    }
+
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDArrays;
+import ai.djl.ndarray.NDList;
+
+/**
+ * Test-time augmentation applied to each tile before inference.
+ * <p>
+ * The augmented variants are created from the batch tensor on the model's device, so that each tile only needs
+ * to be read and preprocessed once.
+ * The model output for all the variants of a tile is then averaged.
+ */
+public enum TestTimeAugmentation {
+
+    /**
+     * No augmentation.
+     */
+    NONE(1),
+
+    /**
+     * The original tile, along with horizontal, vertical and combined flips.
+     */
+    FLIPS(4),
+
+    /**
+     * All 8 combinations of 90 degree rotations and flips.
+     */
+    DIHEDRAL(8);
+
+    /**
+     * Axes of the height and width dimensions in an NCHW tensor.
+     */
+    private static final int[] SPATIAL_AXES = {2, 3};
+
+    private final int count;
+
+    TestTimeAugmentation(int count) {
+        this.count = count;
+    }
+
+    /**
+     * Get the number of variants created for each tile, including the original.
+     * @return
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Create the augmented variants of a batch.
+     * @param batch the input batch, in NCHW order
+     * @return a batch containing all the variants, ordered so that the first N tiles are the first variant,
+     *         the next N are the second variant, and so on
+     */
+    NDArray augment(NDArray batch) {
+        NDList variants = new NDList(count);
+        switch (this) {
+            case NONE:
+                return batch;
+            case FLIPS:
+                variants.add(batch);
+                variants.add(batch.flip(3));
+                variants.add(batch.flip(2));
+                variants.add(batch.flip(2, 3));
+                break;
+            case DIHEDRAL:
+                NDArray flipped = batch.flip(3);
+                for (int k = 0; k < 4; k++) {
+                    variants.add(k == 0 ? batch : batch.rotate90(k, SPATIAL_AXES));
+                    variants.add(k == 0 ? flipped : flipped.rotate90(k, SPATIAL_AXES));
+                }
+                break;
+        }
+        return NDArrays.concat(variants, 0);
+    }
+
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of reusable tile buffers, keyed by their dimensions and type (for images) or capacity
+ * (for direct byte buffers used to assemble tensors).
+ * <p>
+ * Buffers are acquired by tile workers, passed to the predictor as part of a batch, and released back to the
+ * pool once the batch has been consumed.
+ * This avoids allocating a new buffer for every tile, which can otherwise create a lot of short-lived garbage
+ * during large runs.
+ * <p>
+ * If the pool is empty a new buffer is allocated; if it is full when a buffer is released, the buffer is
+ * simply discarded.
+ * The number of images is limited for each key, while byte buffers are also limited by their total capacity,
+ * since they can have many sizes (e.g. when the batch size changes) and are allocated outside the heap.
+ */
+class TileBufferPool {
+
+    private final int maxPerKey;
+    private final long maxByteBufferBytes;
+
+    private final Map<ImageKey, Queue<BufferedImage>> images = new ConcurrentHashMap<>();
+    private final Map<Integer, Queue<ByteBuffer>> byteBuffers = new ConcurrentHashMap<>();
+
+    private final AtomicLong retainedBytes = new AtomicLong();
+
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+
+    /**
+     * Create a new pool.
+     * @param maxPerKey maximum number of buffers to retain for each combination of dimensions and type
+     */
+    TileBufferPool(int maxPerKey) {
+        this(maxPerKey, Long.MAX_VALUE);
+    }
+
+    /**
+     * Create a new pool with a limit on the total capacity of the byte buffers that are retained.
+     * @param maxPerKey maximum number of buffers to retain for each combination of dimensions and type
+     * @param maxByteBufferBytes maximum total capacity of the byte buffers to retain
+     */
+    TileBufferPool(int maxPerKey, long maxByteBufferBytes) {
+        this.maxPerKey = Math.max(1, maxPerKey);
+        this.maxByteBufferBytes = Math.max(0, maxByteBufferBytes);
+    }
+
+    /**
+     * Get an image with the specified dimensions and type, reusing a released image if possible.
+     * Note that the pixel values of a reused image are not reset.
+     * @param width
+     * @param height
+     * @param type image type, as used by {@link BufferedImage#BufferedImage(int, int, int)}
+     * @return
+     */
+    BufferedImage acquireImage(int width, int height, int type) {
+        var queue = images.get(new ImageKey(width, height, type));
+        BufferedImage img = queue == null ? null : queue.poll();
+        if (img == null) {
+            allocated.increment();
+            return new BufferedImage(width, height, type);
+        }
+        reused.increment();
+        return img;
+    }
+
+    /**
+     * Return an image to the pool, so that it can be reused.
+     * The caller must not use the image again after it has been released.
+     * @param img
+     */
+    void release(BufferedImage img) {
+        if (img == null)
+            return;
+        images.computeIfAbsent(new ImageKey(img.getWidth(), img.getHeight(), img.getType()),
+                k -> new ArrayBlockingQueue<>(maxPerKey))
+                .offer(img);
+    }
+
+    /**
+     * Get a direct byte buffer with the specified capacity, using the native byte order.
+     * The buffer is reused from the pool if possible, in which case its contents are not reset.
+     * @param capacity capacity in bytes
+     * @return
+     */
+    ByteBuffer acquireByteBuffer(int capacity) {
+        var queue = byteBuffers.get(capacity);
+        ByteBuffer buffer = queue == null ? null : queue.poll();
+        if (buffer == null) {
+            allocated.increment();
+            return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+        }
+        retainedBytes.addAndGet(-capacity);
+        reused.increment();
+        return buffer.clear();
+    }
+
+    /**
+     * Return a byte buffer to the pool, so that it can be reused.
+     * The caller must not use the buffer (or any views of it) again after it has been released.
+     * @param buffer
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer == null)
+            return;
+        int capacity = buffer.capacity();
+        if (retainedBytes.get() + capacity > maxByteBufferBytes)
+            discardOtherByteBuffers(capacity);
+        // The limit is approximate, since other threads may release buffers at the same time
+        if (retainedBytes.get() + capacity > maxByteBufferBytes)
+            return;
+        if (byteBuffers.computeIfAbsent(capacity, k -> new ArrayBlockingQueue<>(maxPerKey)).offer(buffer))
+            retainedBytes.addAndGet(capacity);
+    }
+
+    /**
+     * Discard retained byte buffers with a different capacity, until there is room for a buffer with the
+     * specified capacity.
+     * Buffers of other sizes are likely to have been used for a previous batch size, and so are less likely to be
+     * needed again.
+     * @param capacity
+     */
+    private void discardOtherByteBuffers(int capacity) {
+        for (var entry : byteBuffers.entrySet()) {
+            if (entry.getKey() == capacity)
+                continue;
+            var queue = entry.getValue();
+            ByteBuffer stale;
+            while (retainedBytes.get() + capacity > maxByteBufferBytes && (stale = queue.poll()) != null)
+                retainedBytes.addAndGet(-stale.capacity());
+        }
+    }
+
+    /**
+     * Get the total capacity of the byte buffers currently retained by the pool.
+     * @return
+     */
+    long getRetainedByteBufferBytes() {
+        return retainedBytes.get();
+    }
+
+    /**
+     * Return multiple images to the pool.
+     * @param images
+     */
+    void releaseAll(Collection<? extends BufferedImage> images) {
+        for (var img : images)
+            release(img);
+    }
+
+    /**
+     * Get the number of buffers that have been newly allocated by the pool.
+     * @return
+     */
+    long getAllocatedCount() {
+        return allocated.sum();
+    }
+
+    /**
+     * Get the number of buffers that have been reused from the pool, rather than allocated.
+     * @return
+     */
+    long getReusedCount() {
+        return reused.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TileBufferPool (%d allocated, %d reused)", getAllocatedCount(), getReusedCount());
+    }
+
+    private record ImageKey(int width, int height, int type) {}
+
+}
@@ -18,28 +18,47 @@ package qupath.ext.wsinfer;
 
 import ai.djl.modality.cv.BufferedImageFactory;
 import ai.djl.modality.cv.Image;
+import ai.djl.ndarray.types.Shape;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qupath.lib.awt.common.BufferedImageTools;
 import qupath.lib.common.ThreadTools;
 import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerProvider;
 import qupath.lib.objects.PathObject;
+import qupath.lib.regions.RegionRequest;
 import qupath.lib.roi.interfaces.ROI;
-import qupath.opencv.dnn.DnnTools;
-import qupath.opencv.tools.OpenCVTools;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
 
 /**
  * Helper class to load image tiles in parallel, optionally with batching and resizing.
@@ -48,156 +67,1740 @@ class TileLoader {
 
     private static final Logger logger = LoggerFactory.getLogger(TileLoader.class);
 
-    private final Queue<? extends PathObject> pathObjects;
+    /**
+     * Maximum ratio between the area of a coalesced region request and the total area of the tiles it contains.
+     * Blocks that are sparser than this are read tile-by-tile instead, to avoid decoding pixels that aren't needed.
+     */
+    private static final double MAX_COALESCED_AREA_RATIO = 2.0;
+
+    /**
+     * Relative tolerance when checking if a downsample matches a pyramid level.
+     */
+    private static final double DOWNSAMPLE_TOLERANCE = 1e-3;
+
+    /**
+     * Time the batch assembler waits for a tile before checking if all workers have finished.
+     */
+    private static final long IDLE_POLL_MILLIS = 100;
+
+    /**
+     * Number of tiles for which the bilinear resizer is compared with BufferedImageTools, when debug logging is enabled.
+     */
+    private static final int MAX_RESIZE_VALIDATIONS = 10;
+
+    /**
+     * Default proportion of the maximum heap size that may be used for tiles that are being read
+     * when reads are performed using virtual threads.
+     */
+    private static final double DEFAULT_READ_MEMORY_FRACTION = 0.125;
+
+    /**
+     * Maximum number of batches that may be queued when the queue size is derived from a memory budget.
+     */
+    private static final int MAX_QUEUED_BATCHES = 64;
+
+    /**
+     * Interval at which reads that have been throttled because of low memory check again.
+     */
+    private static final long THROTTLE_POLL_MILLIS = 50;
+
+    /**
+     * Maximum time a single read may be delayed because of low memory, to ensure we can't stall indefinitely.
+     */
+    private static final long MAX_THROTTLE_MILLIS = 5000;
+
+    /**
+     * Maximum total time that reads may be delayed because of low memory during a run.
+     * After this, reads are no longer throttled, since memory is evidently not being freed by the consumer.
+     */
+    private static final long MAX_TOTAL_THROTTLE_MILLIS = 30_000;
+
+    private final BlockingQueue<List<PathObject>> tileGroups;
+    private final int runLength;
     private final int maxBatchSize;
+    private volatile int batchSize;
 
     private final ImageServer<BufferedImage> server;
     private final double downsample;
+    private final double readDownsample;
+    private final boolean readAtNativeLevel;
     private final int width;
     private final int height;
 
-    private final int resizeWidth;
-    private final int resizeHeight;
+    private final int outputWidth;
+    private final int outputHeight;
+
+    private final BackgroundDetector backgroundDetector;
+
+    private final TilePadding padding;
+
+    private final BilinearResizer resizer;
+
+    private final PatchCache patchCache;
+    private final AtomicInteger validatedResizes = new AtomicInteger();
+
+    private final Map<RegionRequest, BufferedImage> tileCache = ImageServerProvider.getCache(BufferedImage.class);
+
+    private final TensorPreprocessor tensorPreprocessor;
+    private final int tensorTileLength;
+
+    private final TileBufferPool bufferPool;
+
+    private final Statistics statistics;
+
+    private final BlockingQueue<LoadedTile> tileQueue;
+    private final BlockingQueue<TileBatch> batchQueue;
+    private final long maxBatchWaitMillis;
+
+    private final List<PathObject> allTiles;
+    private final Queue<WSInferResults.TileFailure> failures = new ConcurrentLinkedQueue<>();
+    private final int maxRetries;
+    private final long retryDelayMillis;
+    private final long stallTimeoutMillis;
+    private final double minAvailableMemoryFraction;
+
+    private final int numWorkers;
+    private volatile int workerLimit;
+    // Used to park workers that are beyond the worker limit, rather than polling
+    private final Object workerLimitLock = new Object();
+    private final AtomicInteger activeWorkers;
+    // Set when no more tiles will be taken from the tile queue, so that workers don't block trying to add them
+    private volatile boolean closed;
+    private final ExecutorService pool;
+    private final Thread assemblerThread;
+
+    private final ExecutorService readExecutor;
+    private final Semaphore readPermits;
+    private final Semaphore memoryPermits;
+    private final int maxTilesInFlight;
+    private final AtomicInteger readsInFlight = new AtomicInteger();
+    private final AtomicBoolean throttleLimitLogged = new AtomicBoolean();
+
+    private TileLoader(Builder builder) {
+        this.server = builder.server;
+        this.downsample = builder.downsample;
+        this.readDownsample = builder.readAtPyramidLevel ? findPyramidDownsample(server, downsample) : downsample;
+        this.readAtNativeLevel = isPyramidDownsample(server, readDownsample);
+        List<List<PathObject>> groups;
+        // Only coalesce when reading directly from a pyramid level - otherwise the server resamples each request,
+        // and the interpolation for a large region would not match that used for each tile
+        if (builder.coalesceTiles > 1 && readAtNativeLevel)
+            groups = groupTiles(builder.pathObjects, builder.width * builder.coalesceTiles, builder.height * builder.coalesceTiles);
+        else
+            groups = builder.pathObjects.stream()
+                    .map(p -> List.<PathObject>of(p))
+                    .collect(Collectors.toCollection(ArrayList::new));
+        builder.tileOrder.sort(groups, TileLoader::getMeanCentroidX, TileLoader::getMeanCentroidY);
+        this.tileGroups = new LinkedBlockingQueue<>(groups);
+        // When tiles are sorted by location, each worker should claim a contiguous run of the ordering
+        // so that its reads share cached source tiles
+        int initialBatchSize = builder.initialBatchSize > 0 ? Math.min(builder.initialBatchSize, builder.batchSize) : builder.batchSize;
+        this.runLength = builder.tileOrder == TileOrder.HIERARCHY ? 1 : initialBatchSize;
+        this.width = builder.width;
+        this.height = builder.height;
+        if (builder.resizeWidth > 0 && builder.resizeHeight > 0) {
+            this.outputWidth = builder.resizeWidth;
+            this.outputHeight = builder.resizeHeight;
+        } else {
+            this.outputWidth = (int)Math.max(1, Math.round(width / downsample));
+            this.outputHeight = (int)Math.max(1, Math.round(height / downsample));
+        }
+        this.backgroundDetector = builder.backgroundDetector;
+        this.padding = builder.padding;
+        this.resizer = builder.bilinearResize ? new BilinearResizer() : null;
+        this.patchCache = openPatchCache(builder.patchCacheDir, builder.patchCacheMaxBytes, builder.coalesceTiles);
+        this.tensorPreprocessor = builder.tensorPreprocessor;
+        this.tensorTileLength = tensorPreprocessor == null ? 0 : tensorPreprocessor.getNumChannels() * outputWidth * outputHeight;
+        if (readDownsample != downsample)
+            logger.debug("Reading tiles at pyramid downsample {} (requested {})", readDownsample, downsample);
+        if (builder.coalesceTiles > 1 && !readAtNativeLevel)
+            logger.debug("Tiles will not be coalesced because downsample {} is not a pyramid level", readDownsample);
+
+        this.numWorkers = builder.numWorkers;
+        this.workerLimit = builder.initialWorkers > 0 ? Math.min(builder.initialWorkers, numWorkers) : numWorkers;
+        // Queues and pools are sized for the initial batch size and number of workers, rather than the maximum
+        // values that may be used if these are adjusted while running, so that memory isn't reserved for
+        // settings that may never be used
+        int tileQueueCapacity = Math.max(workerLimit, initialBatchSize);
+        int batchQueueCapacity = workerLimit * builder.numPrefetch;
+        int maxBatchSize = builder.batchSize;
+        long readMemoryBudget = builder.readMemoryBudget;
+        long memoryBudget = builder.memoryBudget;
+        if (memoryBudget > 0) {
+            // Half the budget is used for tiles that are queued for inference, and half for tiles being read
+            long queuedTiles = memoryBudget / 2 / estimateQueuedBytesPerTile();
+            batchQueueCapacity = (int)Math.max(1, Math.min(MAX_QUEUED_BATCHES, (queuedTiles - tileQueueCapacity) / initialBatchSize));
+            // The batch size shouldn't be increased beyond what a full batch queue can hold within the budget
+            maxBatchSize = (int)Math.max(initialBatchSize, Math.min(maxBatchSize, (queuedTiles - tileQueueCapacity) / batchQueueCapacity));
+            if (readMemoryBudget <= 0)
+                readMemoryBudget = memoryBudget - memoryBudget / 2;
+            logger.debug("Memory budget {} MB: up to {} batches queued (~{} KB per tile)",
+                    memoryBudget / (1024 * 1024), batchQueueCapacity, estimateQueuedBytesPerTile() / 1024);
+        }
+        this.maxBatchSize = maxBatchSize;
+        this.batchSize = initialBatchSize;
+        this.tileQueue = new ArrayBlockingQueue<>(tileQueueCapacity);
+        this.batchQueue = new ArrayBlockingQueue<>(batchQueueCapacity);
+        this.maxBatchWaitMillis = builder.maxBatchWaitMillis;
+        this.allTiles = List.copyOf(builder.pathObjects);
+        this.maxRetries = builder.maxRetries;
+        this.retryDelayMillis = builder.retryDelayMillis;
+        this.stallTimeoutMillis = builder.stallTimeoutMillis;
+        this.minAvailableMemoryFraction = builder.minAvailableMemoryFraction;
+        // Enough buffers for every batch that may be in the queue, plus those being filled and consumed.
+        // Tensors need room for both the tiles and the batches that they are copied into.
+        int maxPooledTiles = (batchQueueCapacity + workerLimit + 1) * initialBatchSize;
+        this.bufferPool = new TileBufferPool(maxPooledTiles, 2L * maxPooledTiles * tensorTileLength * Float.BYTES);
+        this.statistics = new Statistics(bufferPool);
+        this.pool = Executors.newFixedThreadPool(builder.numWorkers,
+                ThreadTools.createThreadFactory("wsinfer-tiles", true));
+
+        boolean virtualReads = builder.maxConcurrentReads > 0;
+        if (virtualReads && readMemoryBudget <= 0)
+            readMemoryBudget = (long)(Runtime.getRuntime().maxMemory() * DEFAULT_READ_MEMORY_FRACTION);
+        if (readMemoryBudget > 0) {
+            this.maxTilesInFlight = (int)Math.max(1, Math.min(Integer.MAX_VALUE, readMemoryBudget / estimateBytesPerTile()));
+            this.memoryPermits = new Semaphore(maxTilesInFlight);
+        } else {
+            this.maxTilesInFlight = 0;
+            this.memoryPermits = null;
+        }
+
+        if (virtualReads) {
+            // Reads are performed on virtual threads, while the platform pool is only used for processing
+            // the tiles that have been read (e.g. resizing and preprocessing)
+            this.readPermits = new Semaphore(builder.maxConcurrentReads);
+            this.readExecutor = Executors.newThreadPerTaskExecutor(
+                    Thread.ofVirtual().name("wsinfer-read-", 0).factory());
+            logger.debug("Reading tiles with virtual threads (max {} concurrent reads, max {} tiles in flight)",
+                    builder.maxConcurrentReads, maxTilesInFlight);
+            // The dispatcher counts as an active worker until it has submitted all the reads
+            this.activeWorkers = new AtomicInteger(1);
+            this.readExecutor.execute(new ReadDispatcher());
+        } else {
+            this.readPermits = null;
+            this.readExecutor = null;
+            this.activeWorkers = new AtomicInteger(builder.numWorkers);
+            for (int i = 0; i < builder.numWorkers; i++) {
+                this.pool.execute(new TileWorker(i));
+            }
+            this.pool.shutdown();
+        }
+
+        this.assemblerThread = ThreadTools.createThreadFactory("wsinfer-batches", true)
+                .newThread(new BatchAssembler());
+        this.assemblerThread.start();
+    }
+
+    /**
+     * Get the queue containing batches.
+     * <p>
+     * Every batch contains exactly the current batch size of tiles for inference, except possibly the last
+     * (or any batch emitted because the maximum wait time was exceeded).
+     * <p>
+     * After the last batch, a batch for which {@link TileBatch#isEndOfStream()} returns true is added to the queue
+     * to indicate that all tiles have been loaded.
+     * @return
+     */
+    public BlockingQueue<TileBatch> getBatchQueue() {
+        return batchQueue;
+    }
+
+    /**
+     * Stop loading tiles, interrupting any workers that are still running.
+     * This should be called if the batches will not all be consumed, e.g. because inference was cancelled.
+     */
+    public void shutdown() {
+        closed = true;
+        pool.shutdownNow();
+        if (readExecutor != null)
+            readExecutor.shutdownNow();
+        assemblerThread.interrupt();
+        discardQueuedTiles();
+        closePatchCache();
+    }
+
+    /**
+     * Remove any tiles from the tile queue after it has been closed, returning their buffers to the pool.
+     */
+    private void discardQueuedTiles() {
+        LoadedTile tile;
+        while ((tile = tileQueue.poll()) != null) {
+            if (tile.tensor != null)
+                bufferPool.release(tile.tensor);
+            if (tile.pooled)
+                bufferPool.release(tile.image);
+        }
+    }
+
+    /**
+     * Add a tile to the tile queue, waiting for space if necessary.
+     * This doesn't rely only on interruption to stop waiting once the queue has been closed, since a worker
+     * may not see the interrupt if it is lost while reading (e.g. by a server that swallows it).
+     * @param tile
+     * @throws InterruptedException if the thread is interrupted, or the queue has been closed
+     */
+    private void putTile(LoadedTile tile) throws InterruptedException {
+        while (!tileQueue.offer(tile, IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (closed)
+                throw new InterruptedException("Tile queue has been closed");
+        }
+        // The queue may have been drained while the tile was being added
+        if (closed)
+            discardQueuedTiles();
+    }
+
+    /**
+     * Query whether tiles are still being loaded, or batches may still be added to the queue.
+     * If this returns false and the batch queue is empty, no more batches will be added.
+     * @return
+     */
+    public boolean isRunning() {
+        return assemblerThread.isAlive();
+    }
+
+    /**
+     * Get the tiles that could not be loaded, e.g. because reading failed after all retries,
+     * or tile loading stalled.
+     * @return
+     */
+    public List<WSInferResults.TileFailure> getFailures() {
+        return List.copyOf(failures);
+    }
+
+    /**
+     * Get statistics describing how tiles have been read so far.
+     * @return
+     */
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Get the original number of workers requested.
+     * Not all workers may be active (i.e. some may have finished).
+     * @return
+     */
+    public int getNumWorkers() {
+        return numWorkers;
+    }
+
+    /**
+     * Get the number of workers that are currently permitted to read tiles.
+     * @return
+     */
+    int getWorkerLimit() {
+        return workerLimit;
+    }
+
+    /**
+     * Set the number of workers that are permitted to read tiles, which can be used to adjust loading
+     * while it is in progress.
+     * Other workers pause before reading their next group of tiles.
+     * This has no effect if reads are performed using virtual threads.
+     * @param limit the number of workers, which is clipped to the range 1 to {@link #getNumWorkers()}
+     */
+    void setWorkerLimit(int limit) {
+        synchronized (workerLimitLock) {
+            this.workerLimit = Math.max(1, Math.min(numWorkers, limit));
+            // Wake any paused workers that are now within the limit
+            workerLimitLock.notifyAll();
+        }
+    }
+
+    /**
+     * Query whether the number of workers reading tiles can be changed with {@link #setWorkerLimit(int)}.
+     * @return
+     */
+    boolean canAdjustWorkers() {
+        return readExecutor == null && numWorkers > 1;
+    }
+
+    /**
+     * Get the number of tiles currently used for each batch.
+     * @return
+     */
+    int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Get the maximum number of tiles that may be used for each batch.
+     * @return
+     */
+    int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Set the number of tiles to use for each batch.
+     * This takes effect from the next batch to be started.
+     * @param batchSize the batch size, which is clipped to the range 1 to {@link #getMaxBatchSize()}
+     */
+    void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, Math.min(maxBatchSize, batchSize));
+    }
+
+    /**
+     * Get the proportion of the batch queue that is currently occupied.
+     * Values close to 1 indicate that tiles are loaded faster than they are consumed, while values close to 0
+     * indicate that inference is waiting for tiles.
+     * @return
+     */
+    double getBatchQueueOccupancy() {
+        int size = batchQueue.size();
+        int capacity = size + batchQueue.remainingCapacity();
+        return capacity == 0 ? 0 : size / (double)capacity;
+    }
+
+    /**
+     * Find the downsample of the highest-resolution pyramid level that is no more than the requested downsample,
+     * i.e. the level that should be read to avoid any loss of resolution.
+     * If no such level exists, the lowest available downsample is used.
+     * @param server
+     * @param downsample
+     * @return
+     */
+    private static double findPyramidDownsample(ImageServer<?> server, double downsample) {
+        double[] levels = server.getPreferredDownsamples();
+        double best = -1;
+        double lowest = Double.POSITIVE_INFINITY;
+        for (double level : levels) {
+            if (level <= downsample * (1 + DOWNSAMPLE_TOLERANCE) && level > best)
+                best = level;
+            lowest = Math.min(lowest, level);
+        }
+        if (best > 0)
+            return best;
+        return Double.isFinite(lowest) ? lowest : downsample;
+    }
+
+    /**
+     * Check if a downsample corresponds to one of the server's pyramid levels, so that pixels can be read
+     * without the server needing to resample them.
+     * @param server
+     * @param downsample
+     * @return
+     */
+    private static boolean isPyramidDownsample(ImageServer<?> server, double downsample) {
+        for (double level : server.getPreferredDownsamples()) {
+            if (Math.abs(level - downsample) <= level * DOWNSAMPLE_TOLERANCE)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Open the patch cache for the current image and tile parameters.
+     * @param cacheDir the cache directory, or null if no cache should be used
+     * @param maxBytes maximum size of the cache
+     * @param coalesceTiles number of tiles along each side of a coalesced read
+     * @return the cache, or null if no cache should be used (or it couldn't be opened)
+     */
+    private PatchCache openPatchCache(Path cacheDir, long maxBytes, int coalesceTiles) {
+        if (cacheDir == null || maxBytes <= 0)
+            return null;
+        // Everything that can influence the pixels of a patch needs to be part of the key
+        String key = String.join("|",
+                server.getPath(),
+                "downsample=" + downsample,
+                "readDownsample=" + readDownsample,
+                "tile=" + width + "x" + height,
+                "output=" + outputWidth + "x" + outputHeight,
+                "resize=" + (resizer == null ? "BufferedImageTools" : "bilinear"),
+                "padding=" + padding,
+                "coalesce=" + coalesceTiles,
+                // Background tiles are recorded in the cache, so the detector parameters matter too
+                "background=" + (backgroundDetector == null ? "none" : backgroundDetector));
+        try {
+            return PatchCache.open(cacheDir, key, maxBytes);
+        } catch (IOException e) {
+            logger.warn("Unable to open patch cache: {}", e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Close the patch cache, if there is one.
+     */
+    private void closePatchCache() {
+        if (patchCache == null)
+            return;
+        try {
+            patchCache.close();
+        } catch (IOException e) {
+            logger.debug("Error closing patch cache: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Estimate the number of bytes needed to hold a single tile while it is being read and processed,
+     * including both the image read from the server and the resized output.
+     * @return
+     */
+    private long estimateBytesPerTile() {
+        long bytesPerPixel = (long)server.nChannels() * Math.max(1, server.getPixelType().getBytesPerPixel());
+        long readPixels = Math.round(width / readDownsample) * Math.round(height / readDownsample);
+        long outputPixels = (long)outputWidth * outputHeight;
+        return Math.max(1, (readPixels + outputPixels) * bytesPerPixel);
+    }
+
+    /**
+     * Estimate the number of bytes needed to hold a single tile after it has been processed,
+     * while it waits in a queue for inference.
+     * @return
+     */
+    private long estimateQueuedBytesPerTile() {
+        if (tensorPreprocessor != null)
+            return (long)tensorTileLength * Float.BYTES;
+        long bytesPerPixel = (long)server.nChannels() * Math.max(1, server.getPixelType().getBytesPerPixel());
+        // DJL may need to convert the image to a tensor before inference, so allow for float pixels too
+        return (long)outputWidth * outputHeight * (bytesPerPixel + (long)server.nChannels() * Float.BYTES);
+    }
+
+    /**
+     * Delay reading more tiles if the available heap memory is low, to give the consumer of the batches
+     * a chance to catch up.
+     * Reads are only delayed for a limited time, both per read and in total across all workers,
+     * so that we continue to make progress even if memory remains low.
+     * @throws InterruptedException
+     */
+    private void throttleIfLowMemory() throws InterruptedException {
+        if (minAvailableMemoryFraction <= 0 || !isMemoryLow())
+            return;
+        long maxMillis = Math.min(MAX_THROTTLE_MILLIS, MAX_TOTAL_THROTTLE_MILLIS - statistics.throttledMillis.sum());
+        if (maxMillis <= 0)
+            return;
+        statistics.throttledReads.increment();
+        long start = System.currentTimeMillis();
+        long elapsed = 0;
+        while (elapsed < maxMillis && isMemoryLow()) {
+            Thread.sleep(THROTTLE_POLL_MILLIS);
+            elapsed = System.currentTimeMillis() - start;
+        }
+        statistics.throttledMillis.add(elapsed);
+        if (statistics.throttledMillis.sum() >= MAX_TOTAL_THROTTLE_MILLIS && throttleLimitLogged.compareAndSet(false, true))
+            logger.warn("Memory is still low after delaying reads for {} s - reads will no longer be delayed",
+                    MAX_TOTAL_THROTTLE_MILLIS / 1000);
+    }
+
+    /**
+     * Check whether the memory available to the JVM is below the threshold.
+     * Note that this needs to consider the maximum heap size, not only {@link Runtime#freeMemory()},
+     * since the heap may not have been fully expanded.
+     * @return
+     */
+    private boolean isMemoryLow() {
+        var runtime = Runtime.getRuntime();
+        long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return available < runtime.maxMemory() * minAvailableMemoryFraction;
+    }
+
+    /**
+     * Group tiles according to the block of the image that contains their centroid.
+     * Tiles on different z-slices or timepoints are never grouped together, since they can't be read as one region.
+     * Groups are returned in the order in which they are first encountered.
+     * @param pathObjects the tiles to group
+     * @param blockWidth width of each block, in full-resolution pixels
+     * @param blockHeight height of each block, in full-resolution pixels
+     * @return
+     */
+    private static List<List<PathObject>> groupTiles(Collection<? extends PathObject> pathObjects, int blockWidth, int blockHeight) {
+        Map<BlockKey, List<PathObject>> groups = new LinkedHashMap<>();
+        for (PathObject pathObject : pathObjects) {
+            ROI roi = pathObject.getROI();
+            long bx = (long)Math.floor(roi.getCentroidX() / blockWidth);
+            long by = (long)Math.floor(roi.getCentroidY() / blockHeight);
+            groups.computeIfAbsent(new BlockKey(roi.getZ(), roi.getT(), bx, by), k -> new ArrayList<>()).add(pathObject);
+        }
+        return new ArrayList<>(groups.values());
+    }
+
+    private static double getMeanCentroidX(List<PathObject> group) {
+        return group.stream().mapToDouble(p -> p.getROI().getCentroidX()).average().orElse(0);
+    }
+
+    private static double getMeanCentroidY(List<PathObject> group) {
+        return group.stream().mapToDouble(p -> p.getROI().getCentroidY()).average().orElse(0);
+    }
+
+    /**
+     * Get the next group of tiles to read, claiming a new run of groups from the shared queue if needed.
+     * @param claimedGroups groups already claimed by the calling worker
+     * @return the next group, or null if there are no more tiles to read
+     */
+    private List<PathObject> nextGroup(Queue<List<PathObject>> claimedGroups) {
+        if (claimedGroups.isEmpty() && tileGroups.drainTo(claimedGroups, runLength) > 0 && tileGroups.isEmpty()) {
+            // Paused workers can finish, since there are no more tiles to read
+            synchronized (workerLimitLock) {
+                workerLimitLock.notifyAll();
+            }
+        }
+        return claimedGroups.poll();
+    }
+
+    /**
+     * Convert a loaded tile into the form needed to add it to a batch.
+     * If we are using a tensor preprocessor, this writes the pixels into a tensor buffer for the tile
+     * and recycles the image immediately.
+     * @param tile
+     * @return
+     */
+    private LoadedTile toInput(LoadedTile tile) {
+        if (tensorPreprocessor == null || tile.isBackground())
+            return tile;
+        long startTime = System.nanoTime();
+        ByteBuffer tensor = bufferPool.acquireByteBuffer(tensorTileLength * Float.BYTES);
+        tensorPreprocessor.write(tile.image, tensor.asFloatBuffer(), 0);
+        statistics.preprocessedTiles.increment();
+        statistics.preprocessNanos.add(System.nanoTime() - startTime);
+        if (tile.pooled)
+            bufferPool.release(tile.image);
+        return new LoadedTile(tile.pathObject, null, false, tensor);
+    }
+
+    /**
+     * Prepare a tile that has been read for inference, by applying all the CPU-intensive processing
+     * (background detection, resizing and tensor preprocessing).
+     * @param tile
+     * @return
+     */
+    private LoadedTile processTile(RawTile tile) {
+        return toInput(toLoadedTile(tile));
+    }
+
+    /**
+     * Read all the tiles in a group, adding them to the output queue.
+     * If the group contains more than one tile, we try to read them all with a single region request.
+     * @param group
+     * @param output
+     */
+    private void readGroup(List<PathObject> group, Collection<RawTile> output) throws InterruptedException {
+        if (patchCache != null) {
+            group = readCachedTiles(group, output);
+            if (group.isEmpty())
+                return;
+        }
+        statistics.peakReadsInFlight.accumulate(readsInFlight.incrementAndGet());
+        try {
+            readGroupTiles(group, output);
+        } finally {
+            readsInFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Read tiles from the patch cache, if possible.
+     * @param group the tiles to read
+     * @param output collection to which tiles read from the cache should be added
+     * @return the tiles that are not in the cache, and so must be read from the server
+     */
+    private List<PathObject> readCachedTiles(List<PathObject> group, Collection<RawTile> output) {
+        List<PathObject> remaining = new ArrayList<>(group.size());
+        for (PathObject pathObject : group) {
+            ROI roi = pathObject.getROI();
+            int x = getTileX(roi);
+            int y = getTileY(roi);
+            if (backgroundDetector != null && patchCache.isBackground(x, y, roi.getZ(), roi.getT())) {
+                output.add(new RawTile(pathObject, null, false, false, false, true));
+                continue;
+            }
+            BufferedImage img = patchCache.read(x, y, roi.getZ(), roi.getT(), bufferPool);
+            if (img == null)
+                remaining.add(pathObject);
+            else
+                output.add(new RawTile(pathObject, img, false, false, true, true));
+        }
+        return remaining;
+    }
+
+    private int getTileX(ROI roi) {
+        return (int) Math.round(roi.getCentroidX() - width / 2.0);
+    }
+
+    private int getTileY(ROI roi) {
+        return (int) Math.round(roi.getCentroidY() - height / 2.0);
+    }
+
+    private void readGroupTiles(List<PathObject> group, Collection<RawTile> output) throws InterruptedException {
+        if (group.size() > 1) {
+            try {
+                if (readCoalesced(group, output))
+                    return;
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Failed to read coalesced region, will try individual tiles: {}", e.getMessage(), e);
+            }
+        }
+        for (PathObject pathObject : group) {
+            RawTile tile = readTileWithRetries(pathObject);
+            if (tile != null)
+                output.add(tile);
+        }
+    }
+
+    /**
+     * Read a single tile, retrying with an increasing delay if the read fails.
+     * If the read still fails after the maximum number of retries, the tile is recorded as a failure.
+     * @param pathObject
+     * @return the tile, or null if it could not be read
+     * @throws InterruptedException
+     */
+    private RawTile readTileWithRetries(PathObject pathObject) throws InterruptedException {
+        Exception lastException = null;
+        for (int attempt = 0; attempt <= maxRetries; attempt++) {
+            if (attempt > 0) {
+                statistics.retries.increment();
+                Thread.sleep(retryDelayMillis << Math.min(attempt - 1, 16));
+            }
+            try {
+                return readTile(pathObject);
+            } catch (IOException | RuntimeException e) {
+                logger.debug("Failed to read tile (attempt {}/{}): {}", attempt + 1, maxRetries + 1, e.getMessage(), e);
+                lastException = e;
+            }
+        }
+        logger.error("Failed to read tile after {} attempts: {}", maxRetries + 1, lastException.getMessage(), lastException);
+        recordFailure(pathObject, lastException);
+        return null;
+    }
+
+    private void recordFailure(PathObject pathObject, Throwable cause) {
+        String reason = cause == null ? "Unknown error" : cause.getClass().getSimpleName() + ": " + cause.getMessage();
+        failures.add(new WSInferResults.TileFailure(pathObject, reason));
+    }
+
+    /**
+     * Process tiles that have been read and add them to the tile queue.
+     * Tiles that can't be processed are recorded as failures.
+     * @param tiles
+     * @param queued optional collection to which the objects for all queued or failed tiles should be added
+     * @throws InterruptedException
+     */
+    private void queueTiles(List<RawTile> tiles, Collection<PathObject> queued) throws InterruptedException {
+        for (RawTile tile : tiles) {
+            LoadedTile input;
+            try {
+                input = processTile(tile);
+            } catch (RuntimeException e) {
+                logger.error("Failed to process tile: {}", e.getMessage(), e);
+                recordFailure(tile.pathObject, e);
+                if (queued != null)
+                    queued.add(tile.pathObject);
+                continue;
+            }
+            putTile(input);
+            if (queued != null)
+                queued.add(tile.pathObject);
+        }
+    }
+
+    /**
+     * Try to read a group of neighbouring tiles using a single region request, and then extract the individual tiles.
+     * This can substantially reduce the decoding needed, since neighbouring tiles often share the same
+     * tiles in the underlying image file.
+     * <p>
+     * This is only used when reading at a pyramid level; at other downsamples the interpolation used for the large
+     * region could differ from that used when requesting each tile individually.
+     * @param group
+     * @param output
+     * @return true if the tiles were read and added to the output, false if the group is not suitable for coalescing
+     *         (because it is too sparse, it extends beyond the image bounds, or it would need to be resampled)
+     * @throws IOException
+     */
+    private boolean readCoalesced(List<PathObject> group, Collection<RawTile> output) throws IOException {
+        if (!readAtNativeLevel)
+            return false;
+        int n = group.size();
+        int[] xs = new int[n];
+        int[] ys = new int[n];
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            ROI roi = group.get(i).getROI();
+            xs[i] = getTileX(roi);
+            ys[i] = getTileY(roi);
+            minX = Math.min(minX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxX = Math.max(maxX, xs[i] + width);
+            maxY = Math.max(maxY, ys[i] + height);
+        }
+        if (isOutOfBounds(minX, minY, maxX - minX, maxY - minY))
+            return false;
+        double regionArea = (double)(maxX - minX) * (maxY - minY);
+        if (regionArea > MAX_COALESCED_AREA_RATIO * n * width * height)
+            return false;
+
+        // All tiles in a group share the same plane
+        ROI first = group.get(0).getROI();
+        var request = RegionRequest.createInstance(server.getPath(), readDownsample,
+                minX, minY, maxX - minX, maxY - minY, first.getZ(), first.getT());
+        updateCacheStatistics(request);
+        BufferedImage region = server.readRegion(request);
+        int tileWidth = (int)Math.max(1, Math.round(width / readDownsample));
+        int tileHeight = (int)Math.max(1, Math.round(height / readDownsample));
+        // Only add tiles to the output once they have all been extracted successfully
+        List<RawTile> tiles = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int sx = Math.min((int)Math.round((xs[i] - minX) / readDownsample), region.getWidth() - tileWidth);
+            int sy = Math.min((int)Math.round((ys[i] - minY) / readDownsample), region.getHeight() - tileHeight);
+            BufferedImage img = region.getSubimage(Math.max(0, sx), Math.max(0, sy),
+                    Math.min(tileWidth, region.getWidth()), Math.min(tileHeight, region.getHeight()));
+            tiles.add(new RawTile(group.get(i), img, readAtNativeLevel, true, false));
+        }
+        output.addAll(tiles);
+        return true;
+    }
+
+    /**
+     * Check how many of the source tiles needed for a region request are already in the image server's cache,
+     * so that the effect of the tile order can be assessed.
+     */
+    private void updateCacheStatistics(RegionRequest request) {
+        if (tileCache == null)
+            return;
+        try {
+            for (var tileRequest : server.getTileRequestManager().getTileRequests(request)) {
+                statistics.sourceTileRequests.increment();
+                if (tileCache.containsKey(tileRequest.getRegionRequest()))
+                    statistics.sourceTileCacheHits.increment();
+            }
+        } catch (Exception e) {
+            logger.debug("Unable to check tile cache: {}", e.getMessage(), e);
+        }
+    }
+
+    private boolean isOutOfBounds(int x, int y, int w, int h) {
+        return x < 0 || y < 0 || x + w >= server.getWidth() || y + h >= server.getHeight();
+    }
+
+    private RawTile readTile(PathObject pathObject) throws IOException {
+        ROI roi = pathObject.getROI();
+        int x = getTileX(roi);
+        int y = getTileY(roi);
+        if (isOutOfBounds(x, y, width, height)) {
+            // Handle out-of-bounds coordinates
+            statistics.outOfBoundsTiles.increment();
+            logger.trace("Padding out-of-bounds tile request ({}, {}, {}, {})", x, y, width, height);
+            return readPaddedTile(pathObject, x, y);
+        }
+        // Handle normal case of within-bounds coordinates
+        var request = RegionRequest.createInstance(server.getPath(), readDownsample,
+                x, y, width, height, roi.getZ(), roi.getT());
+        updateCacheStatistics(request);
+        BufferedImage img = server.readRegion(request);
+        return new RawTile(pathObject, img, readAtNativeLevel, false, false);
+    }
+
+    /**
+     * Read a tile that extends beyond the image bounds.
+     * This requests only the part of the tile that is inside the image, and then pads it into a pooled image.
+     * <p>
+     * The region request and padding follow {@code DnnTools.readPatch}, but avoid the conversion to and from
+     * an OpenCV Mat.
+     * @param pathObject
+     * @param x
+     * @param y
+     * @return
+     * @throws IOException
+     */
+    private RawTile readPaddedTile(PathObject pathObject, int x, int y) throws IOException {
+        ROI roi = pathObject.getROI();
+        int x2 = x + width;
+        int y2 = y + height;
+        int xStart = Math.max(0, x);
+        int yStart = Math.max(0, y);
+        int xEnd = Math.min(server.getWidth(), x2);
+        int yEnd = Math.min(server.getHeight(), y2);
+        if (xEnd <= xStart || yEnd <= yStart)
+            throw new IOException("Tile " + pathObject + " is entirely outside the image bounds");
+
+        var request = RegionRequest.createInstance(server.getPath(), readDownsample,
+                xStart, yStart, xEnd - xStart, yEnd - yStart, roi.getZ(), roi.getT());
+        BufferedImage img = server.readRegion(request);
+
+        int left = (int)Math.round((xStart - x) / readDownsample);
+        int top = (int)Math.round((yStart - y) / readDownsample);
+        int right = (int)Math.round((x2 - xEnd) / readDownsample);
+        int bottom = (int)Math.round((y2 - yEnd) / readDownsample);
+        if (left == 0 && top == 0 && right == 0 && bottom == 0)
+            return new RawTile(pathObject, img, readAtNativeLevel, false, false);
+
+        int paddedWidth = img.getWidth() + left + right;
+        int paddedHeight = img.getHeight() + top + bottom;
+        BufferedImage padded;
+        boolean pooled = img.getType() != BufferedImage.TYPE_CUSTOM;
+        if (pooled)
+            padded = bufferPool.acquireImage(paddedWidth, paddedHeight, img.getType());
+        else
+            padded = new BufferedImage(img.getColorModel(),
+                    img.getRaster().createCompatibleWritableRaster(paddedWidth, paddedHeight),
+                    img.isAlphaPremultiplied(), null);
+        padding.pad(img.getRaster(), padded.getRaster(), left, top);
+        return new RawTile(pathObject, padded, readAtNativeLevel, false, pooled);
+    }
+
+    /**
+     * Prepare a tile for inference, adding it to the patch cache if required.
+     * @param tile
+     * @return
+     */
+    private LoadedTile toLoadedTile(RawTile tile) {
+        if (tile.cached) {
+            statistics.patchCacheHits.increment();
+            if (tile.image == null) {
+                // Tile was recorded as background by a previous run
+                statistics.tilesRead.increment();
+                statistics.backgroundTiles.increment();
+                return new LoadedTile(tile.pathObject, null, false, null);
+            }
+        }
+        LoadedTile loaded = prepareTile(tile.pathObject, tile.image, tile.nativeRead, tile.isView, tile.pooled);
+        if (patchCache != null && !tile.cached) {
+            ROI roi = tile.pathObject.getROI();
+            int x = getTileX(roi);
+            int y = getTileY(roi);
+            if (loaded.isBackground())
+                patchCache.writeBackground(x, y, roi.getZ(), roi.getT());
+            else if (loaded.image != null)
+                patchCache.write(x, y, roi.getZ(), roi.getT(), loaded.image);
+        }
+        return loaded;
+    }
+
+    /**
+     * Prepare a tile that has been read for inference, by checking if it is background and resizing if needed.
+     * @param pathObject the object associated with the tile
+     * @param img the tile as read from the server
+     * @param nativeRead true if the tile was read at the native resolution of a pyramid level
+     * @param isView true if the image shares its raster with a larger image (e.g. a coalesced region)
+     * @param pooled true if the image was acquired from the buffer pool
+     * @return
+     */
+    private LoadedTile prepareTile(PathObject pathObject, BufferedImage img, boolean nativeRead, boolean isView, boolean pooled) {
+        statistics.tilesRead.increment();
+        if (backgroundDetector != null && backgroundDetector.isBackground(img)) {
+            statistics.backgroundTiles.increment();
+            if (pooled)
+                bufferPool.release(img);
+            return new LoadedTile(pathObject, null, false, null);
+        }
+        if (resizer != null && img.getType() != BufferedImage.TYPE_CUSTOM && resizer.canResize(img)
+                && (img.getWidth() != outputWidth || img.getHeight() != outputHeight)) {
+            // Resize directly into a pooled image
+            BufferedImage resized = bufferPool.acquireImage(outputWidth, outputHeight, img.getType());
+            resizer.resize(img, resized);
+            updateResizeStatistics(nativeRead, true);
+            validateResize(img, resized);
+            if (pooled)
+                bufferPool.release(img);
+            return new LoadedTile(pathObject, resized, true, null);
+        }
+        BufferedImage output = resizeIfNeeded(img, nativeRead);
+        if (pooled) {
+            if (output == img)
+                return new LoadedTile(pathObject, img, true, null);
+            bufferPool.release(img);
+        } else if (output == img && isView && img.getType() != BufferedImage.TYPE_CUSTOM) {
+            // Copy into a compact, pooled image so that we don't keep the full region in memory
+            // until the batch has been processed
+            BufferedImage copy = bufferPool.acquireImage(img.getWidth(), img.getHeight(), img.getType());
+            copy.getRaster().setRect(img.getRaster());
+            return new LoadedTile(pathObject, copy, true, null);
+        }
+        return new LoadedTile(pathObject, output, false, null);
+    }
+
+    /**
+     * Resize a tile to the output size, if it doesn't match already.
+     * When reading from a pyramid level, this is the only resampling that is applied.
+     * @param img the tile as read from the server
+     * @param nativeRead true if the tile was read at the native resolution of a pyramid level
+     * @return
+     */
+    private BufferedImage resizeIfNeeded(BufferedImage img, boolean nativeRead) {
+        boolean rescale = img.getWidth() != outputWidth || img.getHeight() != outputHeight;
+        updateResizeStatistics(nativeRead, rescale);
+        if (rescale) {
+            // Using OpenCV is much faster tha BufferedImageTools/ImageJ,
+            // but using BufferedImageTools (and ImageJ) seems to give more similar results to WSInfer Python.
+            // For example, using the Python WSInfer 0.5.0 output for the image at
+            // https://github.com/qupath/qupath-docs/issues/89 (30619 tiles):
+            //  BufferedImageTools Tumor prob Mean Absolute Difference: 0.0026328298250342763
+            //  OpenCV Tumor prob Mean Absolute Difference:             0.07625036735485102
+            //
+            // Note: If we activate this, then we should handle the if/else in readTile separately to avoid
+            // regenerating a Mat unnecessarily.
+//                var mat = OpenCVTools.imageToMat(img);
+//                var size = new Size(resizeWidth, resizeHeight);
+//                opencv_imgproc.resize(mat, mat, size, 0, 0, opencv_imgproc.INTER_LINEAR);
+//                img = OpenCVTools.matToBufferedImage(mat);
+//                size.close();
+//                mat.close();
+            img = BufferedImageTools.resize(img, outputWidth, outputHeight, true);
+        }
+        return img;
+    }
+
+    private void updateResizeStatistics(boolean nativeRead, boolean rescale) {
+        if (nativeRead)
+            statistics.nativeLevelReads.increment();
+        if (rescale)
+            statistics.rescaledTiles.increment();
+        else if (nativeRead)
+            statistics.fastPathTiles.increment();
+    }
+
+    /**
+     * Compare the output of the bilinear resizer with {@link BufferedImageTools#resize(BufferedImage, int, int, boolean)}
+     * for the first few tiles, if debug logging is enabled.
+     * @param img the original image
+     * @param resized the output of the bilinear resizer
+     */
+    private void validateResize(BufferedImage img, BufferedImage resized) {
+        if (!logger.isDebugEnabled() || validatedResizes.getAndIncrement() >= MAX_RESIZE_VALIDATIONS)
+            return;
+        var expected = BufferedImageTools.resize(img, outputWidth, outputHeight, true).getRaster();
+        var actual = resized.getRaster();
+        int nBands = Math.min(expected.getNumBands(), actual.getNumBands());
+        double sum = 0;
+        int maxDiff = 0;
+        for (int b = 0; b < nBands; b++) {
+            int[] e = expected.getSamples(0, 0, outputWidth, outputHeight, b, (int[])null);
+            int[] a = actual.getSamples(0, 0, outputWidth, outputHeight, b, (int[])null);
+            for (int i = 0; i < e.length; i++) {
+                int diff = Math.abs(e[i] - a[i]);
+                sum += diff;
+                maxDiff = Math.max(maxDiff, diff);
+            }
+        }
+        logger.debug("Bilinear resize vs BufferedImageTools: mean absolute difference {}, max difference {}",
+                sum / ((double)nBands * outputWidth * outputHeight), maxDiff);
+    }
+
+    /**
+     * Key for the block of an image plane that contains a tile's centroid, used to group tiles for coalesced reads.
+     */
+    private record BlockKey(int z, int t, long bx, long by) {}
+
+    /**
+     * A tile as read from the server, before any processing has been applied.
+     * @param pathObject the object associated with the tile
+     * @param image the tile as read from the server
+     * @param nativeRead true if the tile was read at the native resolution of a pyramid level
+     * @param isView true if the image shares its raster with a larger image (e.g. a coalesced region)
+     * @param pooled true if the image was acquired from the buffer pool
+     * @param cached true if the tile was read from the patch cache, in which case it already has the output size
+     *               (or the image is null if the tile is background)
+     */
+    private record RawTile(PathObject pathObject, BufferedImage image, boolean nativeRead, boolean isView, boolean pooled,
+                           boolean cached) {
+
+        private RawTile(PathObject pathObject, BufferedImage image, boolean nativeRead, boolean isView, boolean pooled) {
+            this(pathObject, image, nativeRead, isView, pooled, false);
+        }
+
+    }
+
+    /**
+     * A tile that has been read (and resized, if required), but not yet added to a batch.
+     * <p>
+     * The tile provides either an image or (if a tensor preprocessor is used) a tensor buffer.
+     * Both are null if the tile was found to be background.
+     * If the image was acquired from the buffer pool, it must be released once the batch has been consumed.
+     */
+    private record LoadedTile(PathObject pathObject, BufferedImage image, boolean pooled, ByteBuffer tensor) {
+
+        boolean isBackground() {
+            return image == null && tensor == null;
+        }
+
+    }
+
+    /**
+     * Worker that reads tiles and adds them individually to the tile queue.
+     */
+    class TileWorker implements Runnable {
+
+        private final Logger logger = LoggerFactory.getLogger(TileWorker.class);
+
+        private final Queue<List<PathObject>> claimedGroups = new ArrayDeque<>();
+        private final List<RawTile> loaded = new ArrayList<>();
+
+        private final int index;
+        private List<PathObject> currentGroup;
+        private final List<PathObject> queued = new ArrayList<>();
+
+        TileWorker(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    try {
+                        readAll();
+                        break;
+                    } catch (RuntimeException e) {
+                        // Record the tiles we were working on as failed, then restart with the next group
+                        logger.error("Tile worker failed, restarting: {}", e.getMessage(), e);
+                        statistics.workerRestarts.increment();
+                        if (currentGroup != null) {
+                            for (PathObject pathObject : currentGroup) {
+                                if (!queued.contains(pathObject))
+                                    recordFailure(pathObject, e);
+                            }
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                logger.debug("Tile worker interrupted: {}", e.getMessage(), e);
+            } finally {
+                // The assembler uses this to identify when all tiles have been added to the tile queue
+                activeWorkers.decrementAndGet();
+            }
+        }
+
+        /**
+         * Query whether this worker should pause before claiming more tiles, because it is beyond the current
+         * worker limit.
+         * Groups that have already been claimed are always read, so that they aren't left behind.
+         * @return
+         */
+        private boolean isSuspended() {
+            return index >= workerLimit && claimedGroups.isEmpty() && !tileGroups.isEmpty();
+        }
+
+        /**
+         * Wait until this worker is within the worker limit, or there are no more tiles to read.
+         * @throws InterruptedException
+         */
+        private void awaitResume() throws InterruptedException {
+            synchronized (workerLimitLock) {
+                while (isSuspended())
+                    workerLimitLock.wait();
+            }
+        }
+
+        private void readAll() throws InterruptedException {
+            List<PathObject> group;
+            while (!Thread.currentThread().isInterrupted()) {
+                if (isSuspended()) {
+                    awaitResume();
+                    continue;
+                }
+                if ((group = nextGroup(claimedGroups)) == null)
+                    break;
+                currentGroup = group;
+                queued.clear();
+                throttleIfLowMemory();
+                // If we have a memory budget, limit the number of tiles read but not yet queued across all workers
+                int permits = memoryPermits == null ? 0 : Math.min(group.size(), maxTilesInFlight);
+                if (permits > 0)
+                    memoryPermits.acquire(permits);
+                try {
+                    long allocatedBefore = getThreadAllocatedBytes();
+                    readGroup(group, loaded);
+                    queueTiles(loaded, queued);
+                    if (allocatedBefore >= 0)
+                        statistics.allocatedBytes.add(getThreadAllocatedBytes() - allocatedBefore);
+                } finally {
+                    loaded.clear();
+                    if (permits > 0)
+                        memoryPermits.release(permits);
+                }
+                currentGroup = null;
+            }
+        }
+    }
+
+    /**
+     * Task that submits a read for every group of tiles to the virtual thread executor.
+     * The number of reads that may be in progress at any time is limited by the maximum number of concurrent
+     * reads, while the number of tiles that have been read but not yet added to the tile queue is limited
+     * by the memory budget.
+     */
+    class ReadDispatcher implements Runnable {
+
+        private final Logger logger = LoggerFactory.getLogger(ReadDispatcher.class);
+
+        @Override
+        public void run() {
+            try {
+                List<PathObject> group;
+                while (!Thread.currentThread().isInterrupted() && (group = tileGroups.poll()) != null) {
+                    throttleIfLowMemory();
+                    // A single group may exceed the budget, but it shouldn't be able to block forever
+                    int permits = Math.min(group.size(), maxTilesInFlight);
+                    memoryPermits.acquire(permits);
+                    try {
+                        readPermits.acquire();
+                    } catch (InterruptedException e) {
+                        memoryPermits.release(permits);
+                        throw e;
+                    }
+                    activeWorkers.incrementAndGet();
+                    var task = new ReadTask(group, permits);
+                    try {
+                        readExecutor.execute(task);
+                    } catch (RejectedExecutionException e) {
+                        // We have been shut down
+                        task.finish(true);
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                logger.debug("Read dispatcher interrupted: {}", e.getMessage(), e);
+            } finally {
+                activeWorkers.decrementAndGet();
+            }
+        }
+
+    }
+
+    /**
+     * Task to read a group of tiles on a virtual thread, and then pass them to the platform pool for processing.
+     */
+    class ReadTask implements Runnable {
+
+        private final Logger logger = LoggerFactory.getLogger(ReadTask.class);
+
+        private final List<PathObject> group;
+        private final int memoryPermitCount;
+        private final List<RawTile> loaded = new ArrayList<>();
+
+        private ReadTask(List<PathObject> group, int memoryPermitCount) {
+            this.group = group;
+            this.memoryPermitCount = memoryPermitCount;
+        }
+
+        @Override
+        public void run() {
+            boolean submitted = false;
+            try {
+                try {
+                    readGroup(group, loaded);
+                } finally {
+                    readPermits.release();
+                }
+                pool.execute(this::process);
+                submitted = true;
+            } catch (InterruptedException e) {
+                logger.debug("Tile read interrupted: {}", e.getMessage(), e);
+            } catch (RejectedExecutionException e) {
+                logger.debug("Unable to process tiles - loader has been shut down");
+            } catch (RuntimeException e) {
+                logger.error("Failed to read tiles: {}", e.getMessage(), e);
+                for (PathObject pathObject : group)
+                    recordFailure(pathObject, e);
+            } finally {
+                if (!submitted)
+                    finish(false);
+            }
+        }
+
+        private void process() {
+            try {
+                long allocatedBefore = getThreadAllocatedBytes();
+                queueTiles(loaded, null);
+                if (allocatedBefore >= 0)
+                    statistics.allocatedBytes.add(getThreadAllocatedBytes() - allocatedBefore);
+            } catch (InterruptedException e) {
+                logger.debug("Tile processing interrupted: {}", e.getMessage(), e);
+            } finally {
+                finish(false);
+            }
+        }
+
+        /**
+         * Release any permits held by this task, and mark it as complete.
+         * @param releaseReadPermit true if the read permit has not already been released
+         */
+        private void finish(boolean releaseReadPermit) {
+            loaded.clear();
+            if (releaseReadPermit)
+                readPermits.release();
+            memoryPermits.release(memoryPermitCount);
+            activeWorkers.decrementAndGet();
+        }
+
+    }
+
+    /**
+     * Single task that takes tiles from the tile queue and assembles them into batches.
+     * This ensures that all batches are full (except possibly the last), regardless of how
+     * the work is divided between workers.
+     */
+    class BatchAssembler implements Runnable {
+
+        private final Logger logger = LoggerFactory.getLogger(BatchAssembler.class);
+
+        private BatchBuilder builder = new BatchBuilder();
+
+        private final Set<PathObject> received = Collections.newSetFromMap(new IdentityHashMap<>());
+        private long lastProgress = System.currentTimeMillis();
+
+        @Override
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    LoadedTile tile = pollTile();
+                    if (tile == null) {
+                        if (!builder.isEmpty() && builder.isExpired()) {
+                            emitBatch();
+                        } else if (activeWorkers.get() == 0 && tileQueue.isEmpty()) {
+                            // All workers have finished, and all their tiles have been taken
+                            break;
+                        } else if (isStalled()) {
+                            handleStall();
+                            break;
+                        }
+                        continue;
+                    }
+                    addTile(tile);
+                }
+                if (!Thread.currentThread().isInterrupted())
+                    recordMissingTiles("Tile was not loaded");
+                // No more tasks will be submitted
+                pool.shutdown();
+                if (readExecutor != null)
+                    readExecutor.shutdown();
+                closePatchCache();
+                if (!builder.isEmpty())
+                    emitBatch();
+                batchQueue.put(TileBatch.END_OF_STREAM);
+            } catch (InterruptedException e) {
+                logger.debug("Batch assembler interrupted: {}", e.getMessage(), e);
+                batchQueue.offer(TileBatch.END_OF_STREAM);
+            } catch (RuntimeException e) {
+                // Consumers check whether the assembler is still running, so won't wait forever for the end of the stream
+                logger.error("Batch assembler failed: {}", e.getMessage(), e);
+                batchQueue.offer(TileBatch.END_OF_STREAM);
+            }
+        }
+
+        private void addTile(LoadedTile tile) throws InterruptedException {
+            lastProgress = System.currentTimeMillis();
+            received.add(tile.pathObject);
+            builder.add(tile);
+            if (builder.isFull())
+                emitBatch();
+        }
+
+        private boolean isStalled() {
+            return stallTimeoutMillis > 0 && System.currentTimeMillis() - lastProgress > stallTimeoutMillis;
+        }
+
+        /**
+         * Stop all the workers if no tiles have been loaded within the stall timeout,
+         * and record all tiles that haven't been loaded as failures.
+         */
+        private void handleStall() throws InterruptedException {
+            logger.error("No tiles loaded for {} seconds - stopping tile loading. {}",
+                    stallTimeoutMillis / 1000.0, statistics);
+            statistics.stalls.increment();
+            closed = true;
+            pool.shutdownNow();
+            if (readExecutor != null)
+                readExecutor.shutdownNow();
+            // Keep any tiles that were loaded before the workers were stopped
+            LoadedTile tile;
+            while ((tile = tileQueue.poll()) != null)
+                addTile(tile);
+            recordMissingTiles("Tile loading stalled");
+        }
+
+        /**
+         * Record any tiles that were neither loaded nor already recorded as failures.
+         * @param reason
+         */
+        private void recordMissingTiles(String reason) {
+            Set<PathObject> failed = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (var failure : failures)
+                failed.add(failure.tile());
+            int nMissing = 0;
+            for (PathObject pathObject : allTiles) {
+                if (!received.contains(pathObject) && !failed.contains(pathObject)) {
+                    failures.add(new WSInferResults.TileFailure(pathObject, reason));
+                    nMissing++;
+                }
+            }
+            if (nMissing > 0)
+                logger.error("{} tiles could not be loaded: {}", nMissing, reason);
+        }
+
+        private LoadedTile pollTile() throws InterruptedException {
+            long timeout = IDLE_POLL_MILLIS;
+            if (maxBatchWaitMillis > 0 && !builder.isEmpty())
+                timeout = Math.max(0, Math.min(timeout, builder.getRemainingWaitMillis()));
+            return tileQueue.poll(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        private void emitBatch() throws InterruptedException {
+            int targetSize = builder.targetSize;
+            TileBatch batch = builder.build();
+            if (batch.size() > 0 && batch.size() < targetSize)
+                statistics.partialBatches.increment();
+            builder = new BatchBuilder();
+            batchQueue.put(batch);
+            // We may have been blocked waiting for the consumer, which shouldn't count as a stall
+            lastProgress = System.currentTimeMillis();
+        }
+
+    }
+
+    /**
+     * Helper class to accumulate tiles for a single batch.
+     */
+    private class BatchBuilder {
+
+        private final long startTime = System.currentTimeMillis();
+        // Changes to the batch size take effect from the next batch
+        private final int targetSize = batchSize;
+
+        private final List<Image> inputs = new ArrayList<>();
+        private final List<PathObject> pathObjects = new ArrayList<>();
+        private final List<PathObject> backgroundPathObjects = new ArrayList<>();
+        private final List<BufferedImage> pooledImages = new ArrayList<>();
+        private ByteBuffer tensor;
+
+        void add(LoadedTile tile) {
+            if (tile.isBackground()) {
+                backgroundPathObjects.add(tile.pathObject);
+                return;
+            }
+            if (tile.tensor != null) {
+                // Copy the preprocessed tile into the batch tensor
+                int tileBytes = tensorTileLength * Float.BYTES;
+                if (tensor == null)
+                    // Sized for the batch size when the batch was started, so a new buffer is used if this increases
+                    tensor = bufferPool.acquireByteBuffer(targetSize * tileBytes);
+                tensor.put(pathObjects.size() * tileBytes, tile.tensor, 0, tileBytes);
+                bufferPool.release(tile.tensor);
+            } else {
+                inputs.add(BufferedImageFactory.getInstance().fromImage(tile.image));
+                if (tile.pooled)
+                    pooledImages.add(tile.image);
+            }
+            pathObjects.add(tile.pathObject);
+        }
+
+        boolean isEmpty() {
+            return pathObjects.isEmpty() && backgroundPathObjects.isEmpty();
+        }
+
+        boolean isFull() {
+            // Background tiles don't need inference, but we shouldn't let them accumulate indefinitely
+            return pathObjects.size() >= targetSize ||
+                    (pathObjects.isEmpty() && backgroundPathObjects.size() >= targetSize);
+        }
+
+        long getRemainingWaitMillis() {
+            return startTime + maxBatchWaitMillis - System.currentTimeMillis();
+        }
+
+        boolean isExpired() {
+            return maxBatchWaitMillis > 0 && getRemainingWaitMillis() <= 0;
+        }
+
+        TileBatch build() {
+            if (tensor != null)
+                return new TileBatch(tensor, pathObjects.size() * tensorTileLength * Float.BYTES,
+                        new Shape(pathObjects.size(), tensorPreprocessor.getNumChannels(), outputHeight, outputWidth),
+                        pathObjects, backgroundPathObjects, bufferPool);
+            else
+                return new TileBatch(inputs, pathObjects, backgroundPathObjects, pooledImages, bufferPool);
+        }
+
+    }
+
+    /**
+     * Get the number of bytes allocated by the current thread so far, if this is supported by the JVM.
+     * @return the number of bytes allocated, or -1 if this can't be measured
+     */
+    private static long getThreadAllocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+                && bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled())
+            return bean.getCurrentThreadAllocatedBytes();
+        return -1;
+    }
+
+    /**
+     * Statistics describing how tiles were read and resampled.
+     * These are updated while tiles are being loaded, and so can be queried during or after inference.
+     */
+    static class Statistics {
+
+        private final LongAdder tilesRead = new LongAdder();
+        private final LongAdder nativeLevelReads = new LongAdder();
+        private final LongAdder rescaledTiles = new LongAdder();
+        private final LongAdder fastPathTiles = new LongAdder();
+        private final LongAdder backgroundTiles = new LongAdder();
+        private final LongAdder allocatedBytes = new LongAdder();
+        private final LongAdder sourceTileRequests = new LongAdder();
+        private final LongAdder sourceTileCacheHits = new LongAdder();
+        private final LongAdder partialBatches = new LongAdder();
+        private final LongAdder outOfBoundsTiles = new LongAdder();
+        private final LongAdder patchCacheHits = new LongAdder();
+        private final LongAdder throttledReads = new LongAdder();
+        private final LongAdder throttledMillis = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder workerRestarts = new LongAdder();
+        private final LongAdder stalls = new LongAdder();
+        private final LongAdder preprocessedTiles = new LongAdder();
+        private final LongAdder preprocessNanos = new LongAdder();
+        private final LongAccumulator peakReadsInFlight = new LongAccumulator(Math::max, 0);
+
+        private final TileBufferPool bufferPool;
+
+        private Statistics(TileBufferPool bufferPool) {
+            this.bufferPool = bufferPool;
+        }
+
+        /**
+         * Total number of tiles read so far.
+         * @return
+         */
+        long getTilesRead() {
+            return tilesRead.sum();
+        }
+
+        /**
+         * Number of tiles read at the native resolution of a pyramid level, without resampling by the server.
+         * @return
+         */
+        long getNativeLevelReads() {
+            return nativeLevelReads.sum();
+        }
+
+        /**
+         * Number of tiles that needed to be rescaled after reading to match the required output size.
+         * @return
+         */
+        long getRescaledTiles() {
+            return rescaledTiles.sum();
+        }
+
+        /**
+         * Number of tiles that could be used exactly as read from a pyramid level, without any resampling.
+         * @return
+         */
+        long getFastPathTiles() {
+            return fastPathTiles.sum();
+        }
+
+        /**
+         * Number of tiles identified as background, for which inference should be skipped.
+         * @return
+         */
+        long getBackgroundTiles() {
+            return backgroundTiles.sum();
+        }
+
+        /**
+         * Approximate number of bytes allocated by tile workers per tile read, or -1 if this couldn't be measured.
+         * This can be used to compare the effect of different loading options on garbage collection.
+         * @return
+         */
+        long getAllocatedBytesPerTile() {
+            long n = getTilesRead();
+            long bytes = allocatedBytes.sum();
+            return n == 0 || bytes == 0 ? -1 : bytes / n;
+        }
 
-    private final BlockingQueue<TileBatch> batchQueue;
+        /**
+         * Proportion of the image server tiles needed for our region requests that were already cached
+         * when the request was made, or NaN if this couldn't be determined.
+         * @return
+         */
+        double getCacheHitRate() {
+            long n = sourceTileRequests.sum();
+            return n == 0 ? Double.NaN : sourceTileCacheHits.sum() / (double)n;
+        }
 
-    private final int numWorkers;
-    private final ExecutorService pool;
+        /**
+         * Number of batches containing fewer tiles than the maximum batch size.
+         * This should be at most 1, unless a maximum wait time for batches has been set.
+         * @return
+         */
+        long getPartialBatches() {
+            return partialBatches.sum();
+        }
 
-    private TileLoader(Builder builder) {
-        this.pathObjects = new LinkedBlockingQueue<>(builder.pathObjects);
-        this.maxBatchSize = builder.batchSize;
-        this.server = builder.server;
-        this.downsample = builder.downsample;
-        this.width = builder.width;
-        this.height = builder.height;
-        this.resizeWidth = builder.resizeWidth;
-        this.resizeHeight = builder.resizeHeight;
+        /**
+         * Number of tiles that extended beyond the image bounds, and so needed to be padded.
+         * @return
+         */
+        long getOutOfBoundsTiles() {
+            return outOfBoundsTiles.sum();
+        }
 
-        this.numWorkers = builder.numWorkers;
-        this.batchQueue = new ArrayBlockingQueue<>(builder.numWorkers * builder.numPrefetch);
-        this.pool = Executors.newFixedThreadPool(builder.numWorkers,
-                ThreadTools.createThreadFactory("wsinfer-tiles", true));
+        /**
+         * Number of tiles read from the persistent patch cache, rather than from the image server.
+         * @return
+         */
+        long getPatchCacheHits() {
+            return patchCacheHits.sum();
+        }
 
-        for (int i = 0; i < builder.numWorkers; i++) {
-            this.pool.execute(new TileWorker());
+        /**
+         * Number of reads that were delayed because available memory was low.
+         * @return
+         */
+        long getThrottledReads() {
+            return throttledReads.sum();
         }
-        this.pool.shutdown();
-    }
 
-    /**
-     * Get the queue containing batches.
-     * This queue will be empty when all batches have been processed.
-     * <p>
-     * Each worker will also insert an empty batch into the queue when it finishes,
-     * to indicate that the worker is finished.
-     * <p>
-     * The caller should therefore check that the number of empty batches taken from the
-     * queue matches the number of worker to make sure that no batch is missed.
-     * @return
-     */
-    public BlockingQueue<TileBatch> getBatchQueue() {
-        return batchQueue;
-    }
+        /**
+         * Total time that reads were delayed because available memory was low, in milliseconds.
+         * @return
+         */
+        long getThrottledMillis() {
+            return throttledMillis.sum();
+        }
 
-    /**
-     * Get the original number of workers requested.
-     * Not all workers may be active (i.e. some may have finished).
-     * @return
-     */
-    public int getNumWorkers() {
-        return numWorkers;
-    }
+        /**
+         * Number of times a tile read was retried after a failure.
+         * @return
+         */
+        long getRetries() {
+            return retries.sum();
+        }
 
-    private TileBatch nextBatch() {
-        List<Image> inputs = new ArrayList<>();
-        List<PathObject> pathObjectBatch = new ArrayList<>();
-        while (!pathObjects.isEmpty() && inputs.size() < maxBatchSize) {
-            PathObject pathObject = pathObjects.poll();
-            if (pathObject == null) {
-                break;
-            }
+        /**
+         * Number of times a tile worker was restarted after an unexpected exception.
+         * @return
+         */
+        long getWorkerRestarts() {
+            return workerRestarts.sum();
+        }
 
-            ROI roi = pathObject.getROI();
-            int x = (int) Math.round(roi.getCentroidX() - width / 2.0);
-            int y = (int) Math.round(roi.getCentroidY() - height / 2.0);
-            try {
-                BufferedImage img;
-                if (x < 0 || y < 0 || x + width >= server.getWidth() || y + height >= server.getHeight()) {
-                    // Handle out-of-bounds coordinates
-                    // This reuses code from DnnTools.readPatch, but is not ideal since it uses a trip through OpenCV
-                    var mat = DnnTools.readPatch(server, roi, downsample, width, height);
-                    img = OpenCVTools.matToBufferedImage(mat);
-                    mat.close();
-                    logger.warn("Detected out-of-bounds tile request - results may be influenced by padding ({}, {}, {}, {})", x, y, width, height);
-                } else {
-                    // Handle normal case of within-bounds coordinates
-                    img = server.readRegion(downsample, x, y, width, height);
-                }
-                if (resizeWidth > 0 && resizeHeight > 0) {
-                    // Using OpenCV is much faster tha BufferedImageTools/ImageJ,
-                    // but using BufferedImageTools (and ImageJ) seems to give more similar results to WSInfer Python.
-                    // For example, using the Python WSInfer 0.5.0 output for the image at
-                    // https://github.com/qupath/qupath-docs/issues/89 (30619 tiles):
-                    //  BufferedImageTools Tumor prob Mean Absolute Difference: 0.0026328298250342763
-                    //  OpenCV Tumor prob Mean Absolute Difference:             0.07625036735485102
-                    //
-                    // Note: If we activate this, then we should handle the if/else above separately to avoid
-                    // regenerating a Mat unnecessarily.
-//                        var mat = OpenCVTools.imageToMat(img);
-//                        var size = new Size(resizeWidth, resizeHeight);
-//                        opencv_imgproc.resize(mat, mat, size, 0, 0, opencv_imgproc.INTER_LINEAR);
-//                        img = OpenCVTools.matToBufferedImage(mat);
-//                        size.close();
-//                        mat.close();
-                    img = BufferedImageTools.resize(img, resizeWidth, resizeHeight, true);
-                }
+        /**
+         * Number of times tile loading was stopped because no tiles were loaded within the stall timeout.
+         * @return
+         */
+        long getStalls() {
+            return stalls.sum();
+        }
 
-                Image input = BufferedImageFactory.getInstance().fromImage(img);
-                pathObjectBatch.add(pathObject);
-                inputs.add(input);
-            } catch (IOException e) {
-                logger.error("Failed to read tile: {}", e.getMessage(), e);
-            }
+        /**
+         * Number of tiles converted to normalized tensors by the tile workers, rather than by the predictor.
+         * @return
+         */
+        long getPreprocessedTiles() {
+            return preprocessedTiles.sum();
         }
-        if (inputs.isEmpty())
-            return new TileBatch();
-        else
-            return new TileBatch(inputs, pathObjectBatch);
-    }
 
-    class TileWorker implements Runnable {
+        /**
+         * Average time taken by a tile worker to convert a tile to a normalized tensor, in milliseconds,
+         * or NaN if no tiles were preprocessed.
+         * @return
+         */
+        double getPreprocessMillisPerTile() {
+            long n = getPreprocessedTiles();
+            return n == 0 ? Double.NaN : preprocessNanos.sum() / 1e6 / n;
+        }
 
-        private final Logger logger = LoggerFactory.getLogger(TileWorker.class);
+        /**
+         * Maximum number of region requests that were in progress at the same time.
+         * @return
+         */
+        long getPeakReadsInFlight() {
+            return peakReadsInFlight.get();
+        }
 
         @Override
-        public void run() {
-            try {
-                while (!Thread.currentThread().isInterrupted()) {
-                    TileBatch batch = nextBatch();
-                    batchQueue.put(batch);
-                    if (batch.isEmpty())
-                        return;
-                }
-            } catch (InterruptedException e) {
-                logger.debug("Tile worker interrupted: {}", e.getMessage(), e);
-            }
+        public String toString() {
+            return String.format("%d tiles read (%d at native pyramid level, %d rescaled, %d without resampling, %d background, %d padded), " +
+                            "%d KB allocated per tile, %d buffers allocated, %d reused, %.1f%% source tile cache hits, %d partial batches, " +
+                            "peak %d concurrent reads, %d from patch cache, %d reads throttled (%d ms), " +
+                            "%d retries, %d worker restarts, %d stalls, %d preprocessed by workers (%.3f ms per tile)",
+                    getTilesRead(), getNativeLevelReads(), getRescaledTiles(), getFastPathTiles(), getBackgroundTiles(),
+                    getOutOfBoundsTiles(), getAllocatedBytesPerTile() / 1024, bufferPool.getAllocatedCount(), bufferPool.getReusedCount(),
+                    getCacheHitRate() * 100, getPartialBatches(), getPeakReadsInFlight(), getPatchCacheHits(),
+                    getThrottledReads(), getThrottledMillis(), getRetries(), getWorkerRestarts(), getStalls(),
+                    getPreprocessedTiles(), getPreprocessMillisPerTile());
         }
     }
 
     public static class TileBatch {
 
+        /**
+         * Marker batch used to indicate that there are no more batches.
+         */
+        private static final TileBatch END_OF_STREAM = new TileBatch();
+
         private List<Image> inputs;
         private List<PathObject> tiles;
+        private List<PathObject> backgroundTiles;
+        private List<BufferedImage> pooledImages;
+        private TileBufferPool bufferPool;
+
+        private ByteBuffer tensor;
+        private int tensorBytes;
+        private Shape tensorShape;
+
+        private final AtomicInteger references = new AtomicInteger(1);
 
         private TileBatch() {
             this.inputs = Collections.emptyList();
             this.tiles = Collections.emptyList();
+            this.backgroundTiles = Collections.emptyList();
+            this.pooledImages = Collections.emptyList();
         }
 
-        private TileBatch(List<Image> inputs, List<PathObject> tiles) {
+        private TileBatch(List<Image> inputs, List<PathObject> tiles, List<PathObject> backgroundTiles,
+                          List<BufferedImage> pooledImages, TileBufferPool bufferPool) {
             this.inputs = Collections.unmodifiableList(inputs);
             this.tiles = Collections.unmodifiableList(tiles);
+            this.backgroundTiles = Collections.unmodifiableList(backgroundTiles);
+            this.pooledImages = pooledImages;
+            this.bufferPool = bufferPool;
+        }
+
+        private TileBatch(ByteBuffer tensor, int tensorBytes, Shape tensorShape, List<PathObject> tiles,
+                          List<PathObject> backgroundTiles, TileBufferPool bufferPool) {
+            this.inputs = Collections.emptyList();
+            this.tiles = Collections.unmodifiableList(tiles);
+            this.backgroundTiles = Collections.unmodifiableList(backgroundTiles);
+            this.pooledImages = Collections.emptyList();
+            this.bufferPool = bufferPool;
+            this.tensor = tensor;
+            this.tensorBytes = tensorBytes;
+            this.tensorShape = tensorShape;
+        }
+
+        /**
+         * Query whether the inputs for this batch are provided as a single preprocessed tensor,
+         * rather than as a list of images.
+         * @return
+         */
+        public boolean hasTensor() {
+            return tensor != null;
+        }
+
+        /**
+         * Get the preprocessed inputs as a direct buffer of float32 values in NCHW order, using the native byte order.
+         * @return the tensor buffer, or null if {@link #hasTensor()} returns false
+         * @see #getTensorShape()
+         */
+        public ByteBuffer getTensor() {
+            return tensor == null ? null : tensor.slice(0, tensorBytes).order(ByteOrder.nativeOrder());
+        }
+
+        /**
+         * Get the shape of the tensor returned by {@link #getTensor()}.
+         * @return
+         */
+        public Shape getTensorShape() {
+            return tensorShape;
+        }
+
+        /**
+         * Get the number of tiles for which inference is required (excluding background tiles).
+         * @return
+         */
+        public int size() {
+            return tiles.size();
         }
 
         public List<Image> getInputs() {
@@ -208,8 +1811,51 @@ class TileLoader {
             return tiles;
         }
 
+        /**
+         * Get tiles that were identified as background, and so have no corresponding inputs.
+         * @return
+         */
+        public List<PathObject> getBackgroundTiles() {
+            return backgroundTiles;
+        }
+
         public boolean isEmpty() {
-            return inputs.isEmpty();
+            return tiles.isEmpty() && backgroundTiles.isEmpty();
+        }
+
+        /**
+         * Check if this batch marks the end of the batch queue, i.e. all tiles have been loaded.
+         * @return
+         */
+        public boolean isEndOfStream() {
+            return this == END_OF_STREAM;
+        }
+
+        /**
+         * Add references to the batch, so that it can be shared between several consumers.
+         * Pooled buffers are only released once {@link #release()} has been called for every reference.
+         * @param n the number of references to add
+         */
+        void retain(int n) {
+            references.addAndGet(n);
+        }
+
+        /**
+         * Release any pooled buffers used by the batch, so that they can be reused for later tiles.
+         * This should be called once the inputs have been consumed; the inputs must not be used afterwards.
+         * If the batch is shared, the buffers are only released when the last consumer calls this method.
+         */
+        public void release() {
+            if (references.decrementAndGet() > 0)
+                return;
+            if (bufferPool != null && !pooledImages.isEmpty()) {
+                bufferPool.releaseAll(pooledImages);
+                pooledImages = Collections.emptyList();
+            }
+            if (bufferPool != null && tensor != null) {
+                bufferPool.release(tensor);
+                tensor = null;
+            }
         }
 
     }
@@ -237,6 +1883,38 @@ class TileLoader {
         private int numWorkers = 4;
         private int numPrefetch = 2;
 
+        private int initialWorkers = -1;
+        private int initialBatchSize = -1;
+
+        private int coalesceTiles = 1;
+
+        private boolean readAtPyramidLevel = false;
+
+        private BackgroundDetector backgroundDetector;
+
+        private TilePadding padding = TilePadding.reflect();
+
+        private boolean bilinearResize = false;
+
+        private Path patchCacheDir;
+        private long patchCacheMaxBytes;
+
+        private TensorPreprocessor tensorPreprocessor;
+
+        private TileOrder tileOrder = TileOrder.HIERARCHY;
+
+        private long maxBatchWaitMillis = 0;
+
+        private int maxConcurrentReads = 0;
+        private long readMemoryBudget = -1;
+
+        private long memoryBudget = -1;
+
+        private int maxRetries = 2;
+        private long retryDelayMillis = 100;
+        private long stallTimeoutMillis = 0;
+        private double minAvailableMemoryFraction = 0;
+
         /**
          * Parent tiles; their ROI centroids will be used to select the regions of inference
          * @param tiles
@@ -294,6 +1972,7 @@ class TileLoader {
 
         /**
          * Number of tiles to include in each batch.
+         * If an initial batch size is set, this is the maximum number of tiles.
          * @param batchSize
          * @return
          */
@@ -316,8 +1995,39 @@ class TileLoader {
         }
 
         /**
-         * Number of tile batches for each worker to prefetch.
+         * Number of workers that should initially read tiles, if this should be less than {@link #numWorkers(int)}.
+         * The number can then be adjusted while tiles are loading, up to the total number of workers.
+         * Queue and buffer pool capacities are based on the initial number of workers.
+         * @param initialWorkers the initial number of workers, or &lt;= 0 to use all workers
+         * @return
+         * @see TileLoader#setWorkerLimit(int)
+         */
+        Builder initialWorkers(int initialWorkers) {
+            this.initialWorkers = initialWorkers;
+            return this;
+        }
+
+        /**
+         * Number of tiles to include in each batch initially, if this should be less than {@link #batchSize(int)}.
+         * The batch size can then be adjusted while tiles are loading, up to the full batch size
+         * (or less, if needed to stay within the memory budget).
+         * Queue and buffer pool capacities are based on the initial batch size.
+         * @param initialBatchSize the initial batch size, or &lt;= 0 to use the full batch size
+         * @return
+         * @see TileLoader#setBatchSize(int)
+         */
+        Builder initialBatchSize(int initialBatchSize) {
+            this.initialBatchSize = initialBatchSize;
+            return this;
+        }
+
+        /**
+         * Number of assembled batches that may be prefetched per worker.
+         * Batches are assembled centrally, so this only determines the capacity of the batch queue:
+         * the total number of batches that may be waiting to be consumed is the number of workers multiplied by this value.
          * This must be at least 1.
+         * <p>
+         * This is ignored if a memory budget is set.
          * @param numPrefetch
          * @return
          */
@@ -328,6 +2038,190 @@ class TileLoader {
             return this;
         }
 
+        /**
+         * Number of neighbouring tiles along each side of a block that should be read with a single region request.
+         * For example, a value of 4 means that up to 4x4 adjacent tiles can be read together, and then split
+         * into individual tiles.
+         * Values &lt;= 1 mean that every tile is read separately, as is every tile when not reading at a pyramid level.
+         * @param blockSize
+         * @return
+         */
+        Builder coalesceTiles(int blockSize) {
+            this.coalesceTiles = Math.max(1, blockSize);
+            return this;
+        }
+
+        /**
+         * Request that tiles are read at the downsample of the closest pyramid level with at least the required
+         * resolution, and then rescaled once to the output size.
+         * This avoids the server resampling the image, followed by a second resampling to the resize dimensions.
+         * @param readAtPyramidLevel
+         * @return
+         */
+        Builder readAtPyramidLevel(boolean readAtPyramidLevel) {
+            this.readAtPyramidLevel = readAtPyramidLevel;
+            return this;
+        }
+
+        /**
+         * Optional detector to identify background tiles, which will be returned separately from the inputs
+         * so that inference can be skipped.
+         * @param backgroundDetector the detector, or null if all tiles should be used for inference
+         * @return
+         */
+        Builder backgroundDetector(BackgroundDetector backgroundDetector) {
+            this.backgroundDetector = backgroundDetector;
+            return this;
+        }
+
+        /**
+         * Padding to use for tiles that extend beyond the image bounds.
+         * The default reflects pixels at the boundary, matching {@code DnnTools.readPatch}.
+         * @param padding the padding, or null to use the default
+         * @return
+         */
+        Builder padding(TilePadding padding) {
+            this.padding = padding == null ? TilePadding.reflect() : padding;
+            return this;
+        }
+
+        /**
+         * Request that tiles are resized using antialiased bilinear interpolation following Pillow,
+         * as used by torchvision in Python WSInfer, rather than with {@link BufferedImageTools}.
+         * This is considerably faster, and is used for 8-bit images only.
+         * @param bilinearResize
+         * @return
+         */
+        Builder bilinearResize(boolean bilinearResize) {
+            this.bilinearResize = bilinearResize;
+            return this;
+        }
+
+        /**
+         * Optional persistent cache for tiles that have been read and resized, which can be shared between runs
+         * using the same image and tile parameters.
+         * @param cacheDir the root directory of the cache, or null if no cache should be used
+         * @param maxBytes the maximum size of the cache; least recently used entries are evicted if this is exceeded
+         * @return
+         */
+        Builder patchCache(Path cacheDir, long maxBytes) {
+            this.patchCacheDir = cacheDir;
+            this.patchCacheMaxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Optional preprocessor to write each tile directly into a batch tensor, instead of creating a DJL image.
+         * If this is set, batches provide their inputs through {@link TileBatch#getTensor()}.
+         * @param tensorPreprocessor the preprocessor, or null if batches should contain images
+         * @return
+         */
+        Builder tensorPreprocessor(TensorPreprocessor tensorPreprocessor) {
+            this.tensorPreprocessor = tensorPreprocessor;
+            return this;
+        }
+
+        /**
+         * Order in which tiles should be read.
+         * Ordering by location can improve the use of the image server's tile cache.
+         * @param tileOrder
+         * @return
+         */
+        Builder tileOrder(TileOrder tileOrder) {
+            this.tileOrder = tileOrder == null ? TileOrder.HIERARCHY : tileOrder;
+            return this;
+        }
+
+        /**
+         * Optional maximum time to wait for a batch to be filled, after its first tile has been loaded.
+         * If this is exceeded, a partial batch is emitted.
+         * This can reduce latency when tiles are loaded slowly, at the cost of running the model on smaller batches.
+         * @param maxBatchWaitMillis maximum wait in milliseconds; if &lt;= 0, batches are always filled
+         * @return
+         */
+        Builder maxBatchWait(long maxBatchWaitMillis) {
+            this.maxBatchWaitMillis = maxBatchWaitMillis;
+            return this;
+        }
+
+        /**
+         * Request that tiles are read using virtual threads, so that many reads can be in progress at the same time.
+         * This is useful for image servers where reading is dominated by blocking I/O (e.g. slow network storage).
+         * <p>
+         * In this case, the workers specified by {@link #numWorkers(int)} are only used to process tiles after
+         * they have been read (e.g. resizing and preprocessing).
+         * @param maxConcurrentReads maximum number of region requests that may be in progress at any time;
+         *                           if &lt;= 0, tiles are read by the workers using platform threads
+         * @return
+         */
+        Builder virtualThreadReads(int maxConcurrentReads) {
+            this.maxConcurrentReads = maxConcurrentReads;
+            return this;
+        }
+
+        /**
+         * Approximate maximum number of bytes that may be used by tiles that have been read using virtual threads,
+         * but not yet processed.
+         * This limits the number of tiles in flight, regardless of the maximum number of concurrent reads.
+         * @param bytes the memory budget; if &lt;= 0, a fraction of the maximum heap size is used
+         * @return
+         * @see #virtualThreadReads(int)
+         */
+        Builder readMemoryBudget(long bytes) {
+            this.readMemoryBudget = bytes;
+            return this;
+        }
+
+        /**
+         * Approximate maximum number of bytes that may be used for tiles held by the loader.
+         * If this is set, the number of batches that may be queued and the number of tiles that may be read
+         * at the same time are derived from the estimated size of each tile, rather than from
+         * {@link #numPrefetch(int)}.
+         * @param bytes the memory budget; if &lt;= 0, no budget is used and the queue size is determined by
+         *              {@link #numPrefetch(int)}
+         * @return
+         */
+        Builder memoryBudget(long bytes) {
+            this.memoryBudget = bytes;
+            return this;
+        }
+
+        /**
+         * Delay new reads while the memory available to the JVM is below a proportion of the maximum heap size.
+         * Reads are only delayed for a limited time, so that loading can't stall indefinitely.
+         * @param fraction proportion of the maximum heap size; if &lt;= 0, reads are never delayed
+         * @return
+         */
+        Builder minAvailableMemory(double fraction) {
+            this.minAvailableMemoryFraction = fraction;
+            return this;
+        }
+
+        /**
+         * Number of times a failed tile read should be retried, with an increasing delay between attempts.
+         * Tiles that still can't be read are recorded as failures.
+         * @param maxRetries the maximum number of retries
+         * @param initialDelayMillis the delay before the first retry; this is doubled for each later retry
+         * @return
+         */
+        Builder retries(int maxRetries, long initialDelayMillis) {
+            this.maxRetries = Math.max(0, maxRetries);
+            this.retryDelayMillis = Math.max(0, initialDelayMillis);
+            return this;
+        }
+
+        /**
+         * Maximum time to wait without any tiles being loaded before assuming loading has stalled.
+         * If this is exceeded, all workers are stopped and the remaining tiles are recorded as failures.
+         * Time spent waiting for batches to be consumed does not count towards this limit.
+         * @param stallTimeoutMillis the timeout in milliseconds; if &lt;= 0, loading is never stopped
+         * @return
+         */
+        Builder stallTimeout(long stallTimeoutMillis) {
+            this.stallTimeoutMillis = stallTimeoutMillis;
+            return this;
+        }
+
         /**
          * Build the TileLoader.
          * @return
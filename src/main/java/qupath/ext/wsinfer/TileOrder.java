@@ -0,0 +1,122 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Order in which tiles should be scheduled for reading.
+ * <p>
+ * Ordering tiles along a space-filling curve means that tiles read close together in time are also close
+ * together in the image, which improves the chance that the pixels they need are still in the image server's cache.
+ */
+public enum TileOrder {
+
+    /**
+     * Use the order in which tiles were provided (usually the object hierarchy order).
+     */
+    HIERARCHY,
+
+    /**
+     * Sort tiles along a Hilbert curve according to their centroids.
+     */
+    HILBERT,
+
+    /**
+     * Sort tiles along a Z-order (Morton) curve according to their centroids.
+     */
+    Z_ORDER;
+
+    /**
+     * Number of bits used for each coordinate when computing curve indices.
+     */
+    private static final int BITS = 16;
+
+    /**
+     * Sort a list of items in-place, using this order.
+     * @param items the items to sort
+     * @param xFun function to extract the x coordinate of an item
+     * @param yFun function to extract the y coordinate of an item
+     * @param <T>
+     */
+    <T> void sort(List<T> items, ToDoubleFunction<T> xFun, ToDoubleFunction<T> yFun) {
+        if (this == HIERARCHY || items.size() < 2)
+            return;
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (T item : items) {
+            double x = xFun.applyAsDouble(item);
+            double y = yFun.applyAsDouble(item);
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+        }
+        // Use the same scale for both dimensions, so the curve isn't stretched
+        int maxCoord = (1 << BITS) - 1;
+        double scale = maxCoord / Math.max(1.0, Math.max(maxX - minX, maxY - minY));
+        double x0 = minX;
+        double y0 = minY;
+        Comparator<T> comparator = Comparator.comparingLong(item -> curveIndex(
+                (int)Math.round((xFun.applyAsDouble(item) - x0) * scale),
+                (int)Math.round((yFun.applyAsDouble(item) - y0) * scale)));
+        items.sort(comparator);
+    }
+
+    private long curveIndex(int x, int y) {
+        return this == HILBERT ? hilbertIndex(x, y) : mortonIndex(x, y);
+    }
+
+    /**
+     * Compute the distance along a Hilbert curve for a point on a grid of size 2^BITS.
+     */
+    private static long hilbertIndex(int x, int y) {
+        int n = 1 << BITS;
+        long d = 0;
+        for (int s = n / 2; s > 0; s >>= 1) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += (long)s * s * ((3 * rx) ^ ry);
+            // Rotate the quadrant
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = n - 1 - x;
+                    y = n - 1 - y;
+                }
+                int temp = x;
+                x = y;
+                y = temp;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Compute the Morton code for a point by interleaving the bits of its coordinates.
+     */
+    private static long mortonIndex(int x, int y) {
+        long d = 0;
+        for (int b = 0; b < BITS; b++) {
+            d |= ((long)(x >> b) & 1L) << (2 * b);
+            d |= ((long)(y >> b) & 1L) << (2 * b + 1);
+        }
+        return d;
+    }
+
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+/**
+ * Pad the pixels of a tile that extends beyond the image bounds, without needing to convert to an OpenCV Mat.
+ * <p>
+ * By default, padding uses reflection with the same semantics as OpenCV's {@code BORDER_REFLECT}
+ * (i.e. {@code fedcba|abcdefgh|hgfedcb}), as used by {@code DnnTools.readPatch}.
+ * Alternatively, a constant value can be used for all padded samples.
+ */
+class TilePadding {
+
+    private final boolean reflect;
+    private final double constantValue;
+
+    private TilePadding(boolean reflect, double constantValue) {
+        this.reflect = reflect;
+        this.constantValue = constantValue;
+    }
+
+    /**
+     * Create padding that reflects the pixels at the image boundary, matching OpenCV's {@code BORDER_REFLECT}.
+     * @return
+     */
+    static TilePadding reflect() {
+        return new TilePadding(true, 0);
+    }
+
+    /**
+     * Create padding that sets all padded samples to a constant value.
+     * @param value the value to use for every channel
+     * @return
+     */
+    static TilePadding constant(double value) {
+        return new TilePadding(false, value);
+    }
+
+    /**
+     * Copy the source raster into the destination raster, padding the remaining pixels.
+     * The size of the destination determines the amount of padding on the right and bottom.
+     * @param src the pixels that are within the image bounds
+     * @param dest the padded raster; this must have the same number of bands as the source
+     * @param left number of columns to pad on the left
+     * @param top number of rows to pad at the top
+     */
+    void pad(Raster src, WritableRaster dest, int left, int top) {
+        int srcWidth = src.getWidth();
+        int width = dest.getWidth();
+        int nBands = dest.getNumBands();
+        if (src.getNumBands() != nBands)
+            throw new IllegalArgumentException("Source has " + src.getNumBands() + " bands, but destination has " + nBands);
+
+        int[] xMap = new int[width];
+        for (int x = 0; x < width; x++)
+            xMap[x] = sourceIndex(x - left, srcWidth);
+
+        int transferType = dest.getTransferType();
+        boolean isFloat = transferType == DataBuffer.TYPE_FLOAT || transferType == DataBuffer.TYPE_DOUBLE;
+        if (isFloat)
+            padDouble(src, dest, xMap, top);
+        else
+            padInt(src, dest, xMap, top);
+    }
+
+    private void padInt(Raster src, WritableRaster dest, int[] xMap, int top) {
+        int srcWidth = src.getWidth();
+        int srcHeight = src.getHeight();
+        int width = dest.getWidth();
+        int nBands = dest.getNumBands();
+        int[] srcRow = new int[srcWidth * nBands];
+        int[] row = new int[width * nBands];
+        int constant = (int)constantValue;
+        for (int y = 0; y < dest.getHeight(); y++) {
+            int sy = sourceIndex(y - top, srcHeight);
+            if (sy < 0) {
+                Arrays.fill(row, constant);
+            } else {
+                src.getPixels(src.getMinX(), src.getMinY() + sy, srcWidth, 1, srcRow);
+                for (int x = 0; x < width; x++) {
+                    int sx = xMap[x];
+                    for (int b = 0; b < nBands; b++)
+                        row[x * nBands + b] = sx < 0 ? constant : srcRow[sx * nBands + b];
+                }
+            }
+            dest.setPixels(0, y, width, 1, row);
+        }
+    }
+
+    private void padDouble(Raster src, WritableRaster dest, int[] xMap, int top) {
+        int srcWidth = src.getWidth();
+        int srcHeight = src.getHeight();
+        int width = dest.getWidth();
+        int nBands = dest.getNumBands();
+        double[] srcRow = new double[srcWidth * nBands];
+        double[] row = new double[width * nBands];
+        for (int y = 0; y < dest.getHeight(); y++) {
+            int sy = sourceIndex(y - top, srcHeight);
+            if (sy < 0) {
+                Arrays.fill(row, constantValue);
+            } else {
+                src.getPixels(src.getMinX(), src.getMinY() + sy, srcWidth, 1, srcRow);
+                for (int x = 0; x < width; x++) {
+                    int sx = xMap[x];
+                    for (int b = 0; b < nBands; b++)
+                        row[x * nBands + b] = sx < 0 ? constantValue : srcRow[sx * nBands + b];
+                }
+            }
+            dest.setPixels(0, y, width, 1, row);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return reflect ? "reflect" : "constant(" + constantValue + ")";
+    }
+
+    /**
+     * Get the source index that should be used for a (possibly out-of-bounds) destination index.
+     * @param i the index relative to the start of the source
+     * @param n the length of the source
+     * @return the source index, or -1 if a constant value should be used
+     */
+    private int sourceIndex(int i, int n) {
+        if (i >= 0 && i < n)
+            return i;
+        if (!reflect || n <= 0)
+            return -1;
+        // Reflection repeats with a period of 2n, including the edge pixel each time
+        int period = 2 * n;
+        i = Math.floorMod(i, period);
+        return i < n ? i : period - 1 - i;
+    }
+
+}
@@ -19,18 +19,19 @@ package qupath.ext.wsinfer;
 import ai.djl.Application;
 import ai.djl.Device;
 import ai.djl.MalformedModelException;
-import ai.djl.inference.Predictor;
 import ai.djl.modality.Classifications;
 import ai.djl.modality.cv.Image;
 import ai.djl.modality.cv.transform.Normalize;
 import ai.djl.modality.cv.transform.ToTensor;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.types.DataType;
 import ai.djl.repository.zoo.Criteria;
 import ai.djl.repository.zoo.ModelNotFoundException;
-import ai.djl.repository.zoo.ZooModel;
 import ai.djl.translate.Pipeline;
 import ai.djl.translate.Transform;
 import ai.djl.translate.TranslateException;
 import ai.djl.translate.Translator;
+import javafx.application.Platform;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qupath.ext.wsinfer.models.WSInferModel;
@@ -38,23 +39,41 @@ import qupath.ext.wsinfer.models.WSInferModelConfiguration;
 import qupath.ext.wsinfer.models.WSInferTransform;
 import qupath.ext.wsinfer.models.WSInferUtils;
 import qupath.ext.wsinfer.ui.WSInferPrefs;
+import qupath.fx.dialogs.Dialogs;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.tools.GuiTools;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.PixelCalibration;
+import qupath.lib.images.writers.ImageWriterTools;
 import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
 import qupath.lib.objects.classes.PathClass;
 import qupath.lib.objects.utils.Tiler;
 import qupath.lib.scripting.QP;
 
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 import java.util.stream.Collectors;
 
 /**
@@ -65,6 +84,38 @@ public class WSInfer {
     private static final Logger logger = LoggerFactory.getLogger(WSInfer.class);
     private static final ResourceBundle resources = ResourceBundle.getBundle("qupath.ext.wsinfer.ui.strings");
 
+    /**
+     * When a memory budget is set, tile reads are delayed if the available memory falls below this proportion
+     * of the maximum heap size.
+     */
+    private static final double MIN_AVAILABLE_MEMORY_FRACTION = 0.1;
+
+    /**
+     * Delay before retrying a failed tile read; this is doubled for each subsequent retry.
+     */
+    private static final long RETRY_DELAY_MILLIS = 200;
+
+    /**
+     * Largest batch size that may be tried when batch size and workers are adjusted automatically.
+     */
+    private static final int ADAPTIVE_MAX_BATCH_SIZE = 64;
+
+    /**
+     * Suffix inserted before the extension of a TorchScript file to find the export that returns embeddings.
+     */
+    private static final String EMBEDDING_SUFFIX = ".embedding";
+
+    /**
+     * PyTorch engine class used to set the number of intra-op threads.
+     */
+    private static final String PYTORCH_JNI_CLASS = "ai.djl.pytorch.jni.JniUtils";
+
+    /**
+     * Maximum number of temporary tile objects created at once for a probability map, when tiles aren't
+     * added to the hierarchy.
+     */
+    private static final int MAX_DETACHED_TILES = 20_000;
+
     /**
      * Run inference on the current image data using the given model.
      * @param wsiModel
@@ -138,6 +189,7 @@ public class WSInfer {
      * @throws MalformedModelException
      * @throws IOException
      * @throws TranslateException
+     * @see #runInferenceWithResults(ImageData, WSInferModel)
      */
     public static void runInference(ImageData<BufferedImage> imageData, WSInferModel wsiModel) throws InterruptedException, ModelNotFoundException, MalformedModelException, IOException, TranslateException {
         runInference(imageData, wsiModel, new ProgressLogger(logger));
@@ -153,8 +205,41 @@ public class WSInfer {
      * @throws MalformedModelException
      * @throws IOException
      * @throws TranslateException
+     * @see #runInferenceWithResults(ImageData, WSInferModel, ProgressListener)
      */
     public static void runInference(ImageData<BufferedImage> imageData, WSInferModel wsiModel, ProgressListener progressListener) throws InterruptedException, ModelNotFoundException, MalformedModelException, IOException, TranslateException {
+        runInferenceWithResults(imageData, wsiModel, progressListener);
+    }
+
+    /**
+     * Run inference on the specified image data using the given model, and return a summary of the results.
+     * @param imageData image data to run inference on
+     * @param wsiModel model to use for inference
+     * @return a summary of the results, including any tiles that could not be processed
+     * @throws InterruptedException
+     * @throws ModelNotFoundException
+     * @throws MalformedModelException
+     * @throws IOException
+     * @throws TranslateException
+     */
+    public static WSInferResults runInferenceWithResults(ImageData<BufferedImage> imageData, WSInferModel wsiModel) throws InterruptedException, ModelNotFoundException, MalformedModelException, IOException, TranslateException {
+        return runInferenceWithResults(imageData, wsiModel, new ProgressLogger(logger));
+    }
+
+    /**
+     * Run inference on the specified image data using the given model with a custom progress listener,
+     * and return a summary of the results.
+     * @param imageData image data to run inference on (required)
+     * @param wsiModel model to use for inference (required)
+     * @param progressListener the progress listener to report what is happening (required)
+     * @return a summary of the results, including any tiles that could not be processed
+     * @throws InterruptedException
+     * @throws ModelNotFoundException
+     * @throws MalformedModelException
+     * @throws IOException
+     * @throws TranslateException
+     */
+    public static WSInferResults runInferenceWithResults(ImageData<BufferedImage> imageData, WSInferModel wsiModel, ProgressListener progressListener) throws InterruptedException, ModelNotFoundException, MalformedModelException, IOException, TranslateException {
         Objects.requireNonNull(wsiModel, "Model cannot be null");
         if (imageData == null) {
             GuiTools.showNoImageError(resources.getString("title"));
@@ -162,47 +247,545 @@ public class WSInfer {
 
         // Try to get some tiles we can use
         var tiles = getTilesForInference(imageData, wsiModel.getConfiguration());
+        int numPredictors = Math.max(1, WSInferPrefs.numPredictorsProperty().getValue());
+        return runInference(imageData, List.of(wsiModel), tiles, numPredictors, getPrecision(), progressListener).get(0);
+    }
+
+    /**
+     * Run inference on the specified image data using several models.
+     * @param imageData image data to run inference on
+     * @param wsiModels models to use for inference
+     * @return a summary of the results for each model, in the same order as the models
+     * @throws InterruptedException
+     * @throws ModelNotFoundException
+     * @throws MalformedModelException
+     * @throws IOException
+     * @throws TranslateException
+     * @see #runInference(ImageData, List, ProgressListener)
+     */
+    public static List<WSInferResults> runInference(ImageData<BufferedImage> imageData, List<WSInferModel> wsiModels) throws InterruptedException, ModelNotFoundException, MalformedModelException, IOException, TranslateException {
+        return runInference(imageData, wsiModels, new ProgressLogger(logger));
+    }
+
+    /**
+     * Run inference on the specified image data using several models with a custom progress listener.
+     * <p>
+     * Models that use the same resolution, patch size and resizing share a single pass over the image,
+     * so that each tile is only read once; other models are grouped into as few passes as possible.
+     * <p>
+     * Tiles are created (if needed) according to the first model, and every model is applied to the same tiles.
+     * Measurements are prefixed by the model name (e.g. "modelName: className"), and the classification
+     * of each tile is set according to the first model.
+     * @param imageData image data to run inference on (required)
+     * @param wsiModels models to use for inference (required, not empty)
+     * @param progressListener the progress listener to report what is happening (required)
+     * @return a summary of the results for each model, in the same order as the models
+     * @throws InterruptedException
+     * @throws ModelNotFoundException
+     * @throws MalformedModelException
+     * @throws IOException
+     * @throws TranslateException
+     */
+    public static List<WSInferResults> runInference(ImageData<BufferedImage> imageData, List<WSInferModel> wsiModels, ProgressListener progressListener) throws InterruptedException, ModelNotFoundException, MalformedModelException, IOException, TranslateException {
+        Objects.requireNonNull(wsiModels, "Models cannot be null");
+        if (wsiModels.isEmpty())
+            throw new IllegalArgumentException("At least one model is required");
+        if (wsiModels.size() == 1)
+            return List.of(runInferenceWithResults(imageData, wsiModels.get(0), progressListener));
+        if (imageData == null) {
+            GuiTools.showNoImageError(resources.getString("title"));
+        }
+
+        var tiles = getTilesForInference(imageData, wsiModels.get(0).getConfiguration());
+        int numPredictors = Math.max(1, WSInferPrefs.numPredictorsProperty().getValue());
+        return runInference(imageData, wsiModels, tiles, numPredictors, getPrecision(), progressListener);
+    }
+
+    /**
+     * Measure how inference throughput scales with the number of concurrent predictors.
+     * <p>
+     * Inference is run for the same tiles using 1, 2, ... up to the maximum number of predictors, and the
+     * throughput of each run is logged along with the speedup relative to a single predictor.
+     * An initial warm-up run is made first (and not reported), so that the model and tiles are not
+     * loaded from disk for the first time during one of the measured runs.
+     * Inference is run on detached copies of the tiles, so the hierarchy is not changed
+     * (and no tiles are created for selected annotations).
+     * @param imageData image data to run inference on (required)
+     * @param wsiModel model to use for inference (required)
+     * @param maxPredictors the maximum number of predictors to use
+     * @param maxTiles the maximum number of tiles to process for each run
+     * @return the throughput in tiles per second, keyed by the number of predictors
+     * @throws InterruptedException
+     * @throws ModelNotFoundException
+     * @throws MalformedModelException
+     * @throws IOException
+     * @throws TranslateException
+     */
+    public static Map<Integer, Double> measurePredictorScaling(ImageData<BufferedImage> imageData, WSInferModel wsiModel,
+                                                               int maxPredictors, int maxTiles) throws InterruptedException, ModelNotFoundException, MalformedModelException, IOException, TranslateException {
+        Objects.requireNonNull(imageData, "Image data cannot be null");
+        Objects.requireNonNull(wsiModel, "Model cannot be null");
+        var tiles = getTilesForInference(imageData, wsiModel.getConfiguration(), false);
+        if (tiles.size() > maxTiles)
+            tiles = tiles.subList(0, Math.max(1, maxTiles));
+        tiles = createDetachedCopies(tiles);
+        var progressListener = new ProgressLogger(logger);
+        var precision = getPrecision();
+        runInference(imageData, List.of(wsiModel), tiles, 1, precision, progressListener);
+
+        Map<Integer, Double> throughput = new LinkedHashMap<>();
+        for (int n = 1; n <= Math.max(1, maxPredictors); n++) {
+            var results = runInference(imageData, List.of(wsiModel), tiles, n, precision, progressListener).get(0);
+            double tilesPerSecond = results.getDurationMillis() == 0 ? 0 :
+                    results.getCompletedTiles() * 1000.0 / results.getDurationMillis();
+            throughput.put(n, tilesPerSecond);
+        }
+        double baseline = throughput.get(1);
+        for (var entry : throughput.entrySet()) {
+            logger.info("{} predictor(s): {} tiles/s ({}x)", entry.getKey(),
+                    String.format("%.1f", entry.getValue()),
+                    String.format("%.2f", baseline == 0 ? 0 : entry.getValue() / baseline));
+        }
+        return throughput;
+    }
+
+    /**
+     * Compare the predictions made using a reduced precision with those made using float32, for a sample of tiles.
+     * <p>
+     * This can be used before a full run to check whether the faster inference with a reduced precision model
+     * is accurate enough.
+     * An initial float32 run gives the reference predictions and reads the tiles, and a single batch is run with
+     * the reduced precision to load its model; the throughput of each precision is then measured with another run,
+     * so that it doesn't include the time needed to load the model (if it can be cached) or read the tiles.
+     * Inference is run on detached copies of the sampled tiles, so the hierarchy is not changed
+     * (and no tiles are created for selected annotations).
+     * @param imageData image data to run inference on (required)
+     * @param wsiModel model to use for inference (required)
+     * @param precision the reduced precision to compare with float32
+     * @param maxTiles the maximum number of tiles to sample, spread evenly across all the tiles
+     * @return a summary of the differences between the predictions
+     * @throws InterruptedException
+     * @throws ModelNotFoundException
+     * @throws MalformedModelException
+     * @throws IOException
+     * @throws TranslateException
+     */
+    public static PrecisionComparison comparePrecision(ImageData<BufferedImage> imageData, WSInferModel wsiModel,
+                                                       InferencePrecision precision, int maxTiles) throws InterruptedException, ModelNotFoundException, MalformedModelException, IOException, TranslateException {
+        Objects.requireNonNull(imageData, "Image data cannot be null");
+        Objects.requireNonNull(wsiModel, "Model cannot be null");
+        Objects.requireNonNull(precision, "Precision cannot be null");
+        var effectivePrecision = resolvePrecision(wsiModel, precision, getDevices());
+        var allTiles = getTilesForInference(imageData, wsiModel.getConfiguration(), false);
+        List<PathObject> sample = new ArrayList<>();
+        int nSample = Math.min(Math.max(1, maxTiles), allTiles.size());
+        for (int i = 0; i < nSample; i++)
+            sample.add(allTiles.get((int)((long)i * allTiles.size() / nSample)));
+        var tiles = createDetachedCopies(sample);
+        int numPredictors = Math.max(1, WSInferPrefs.numPredictorsProperty().getValue());
+        var progressListener = new ProgressLogger(logger);
+        var classNames = wsiModel.getConfiguration().getClassNames();
+
+        runInference(imageData, List.of(wsiModel), tiles, numPredictors, InferencePrecision.FP32, progressListener);
+        Map<PathObject, double[]> referenceProbabilities = new LinkedHashMap<>();
+        for (var tile : tiles) {
+            double[] probabilities = getProbabilities(tile, classNames);
+            if (probabilities != null)
+                referenceProbabilities.put(tile, probabilities);
+        }
+        int warmupTiles = Math.min(tiles.size(), Math.max(1, WSInferPrefs.batchSizeProperty().getValue()));
+        runInference(imageData, List.of(wsiModel), createDetachedCopies(tiles.subList(0, warmupTiles)),
+                numPredictors, effectivePrecision, progressListener);
+
+        var reference = runInference(imageData, List.of(wsiModel), tiles, numPredictors, InferencePrecision.FP32, progressListener).get(0);
+        var reduced = runInference(imageData, List.of(wsiModel), tiles, numPredictors, effectivePrecision, progressListener).get(0);
+        var comparison = new PrecisionComparison(wsiModel.getName(), effectivePrecision,
+                getTilesPerSecond(reference), getTilesPerSecond(reduced));
+        for (var entry : referenceProbabilities.entrySet()) {
+            double[] probabilities = getProbabilities(entry.getKey(), classNames);
+            if (probabilities != null)
+                comparison.addTile(entry.getValue(), probabilities);
+        }
+        logger.info("{}", comparison);
+        return comparison;
+    }
+
+    private static double[] getProbabilities(PathObject tile, List<String> classNames) {
+        double[] probabilities = new double[classNames.size()];
+        var measurements = tile.getMeasurements();
+        for (int i = 0; i < probabilities.length; i++) {
+            Number value = measurements.get(classNames.get(i));
+            if (value == null)
+                return null;
+            probabilities[i] = value.doubleValue();
+        }
+        return probabilities;
+    }
+
+    private static double getTilesPerSecond(WSInferResults results) {
+        return results.getDurationMillis() == 0 ? 0 : results.getCompletedTiles() * 1000.0 / results.getDurationMillis();
+    }
+
+    /**
+     * Extract an embedding for each tile using the specified model, writing them to a memory-mapped file.
+     * @param imageData image data to run inference on (required)
+     * @param wsiModel model to use (required)
+     * @param outputPath path of the embedding matrix file (required)
+     * @return a summary of the results, including any tiles that could not be processed
+     * @throws InterruptedException
+     * @throws ModelNotFoundException
+     * @throws MalformedModelException
+     * @throws IOException
+     * @throws TranslateException
+     * @see #extractEmbeddings(ImageData, WSInferModel, Path, ProgressListener)
+     */
+    public static WSInferResults extractEmbeddings(ImageData<BufferedImage> imageData, WSInferModel wsiModel, Path outputPath) throws InterruptedException, ModelNotFoundException, MalformedModelException, IOException, TranslateException {
+        return extractEmbeddings(imageData, wsiModel, outputPath, new ProgressLogger(logger));
+    }
+
+    /**
+     * Extract an embedding for each tile using the specified model with a custom progress listener,
+     * writing them to a memory-mapped file.
+     * <p>
+     * This requires a TorchScript export of the model that returns the embedding (e.g. the output of the
+     * penultimate layer) rather than the classification.
+     * It should be saved alongside the model with {@value #EMBEDDING_SUFFIX} inserted before the extension
+     * (e.g. {@code torchscript_model.embedding.pt}); if it returns several outputs, the last is used.
+     * <p>
+     * Embeddings are written as a float32 matrix with one row per tile, appending each batch as it is completed.
+     * Batches are run with the same predictors and pipelining as classification, so rows may not be in the same order
+     * as the tiles.
+     * A CSV index with the same base name gives the object ID and bounds of the tile for each row,
+     * and a JSON file describes the matrix layout.
+     * Background tiles are skipped, and the classifications and measurements of the tiles are not changed.
+     * @param imageData image data to run inference on (required)
+     * @param wsiModel model to use (required)
+     * @param outputPath path of the embedding matrix file (required)
+     * @param progressListener the progress listener to report what is happening (required)
+     * @return a summary of the results, including any tiles that could not be processed
+     * @throws InterruptedException
+     * @throws ModelNotFoundException if no embedding export is found for the model
+     * @throws MalformedModelException
+     * @throws IOException
+     * @throws TranslateException
+     */
+    public static WSInferResults extractEmbeddings(ImageData<BufferedImage> imageData, WSInferModel wsiModel, Path outputPath,
+                                                   ProgressListener progressListener) throws InterruptedException, ModelNotFoundException, MalformedModelException, IOException, TranslateException {
+        Objects.requireNonNull(imageData, "Image data cannot be null");
+        Objects.requireNonNull(wsiModel, "Model cannot be null");
+        Objects.requireNonNull(outputPath, "Output path cannot be null");
+        File modelFile = getEmbeddingModelFile(wsiModel.getTorchScriptFile());
+        if (!modelFile.isFile())
+            throw new ModelNotFoundException("No embedding model found for " + wsiModel.getName() + " at " + modelFile);
+        var config = wsiModel.getConfiguration();
+        // Embeddings are always computed from the tensors prepared by the tile workers
+        TensorPreprocessor tensorPreprocessor = createTensorPreprocessor(config.getTransform());
+        if (tensorPreprocessor == null)
+            throw new IllegalArgumentException("Embeddings require transforms that can be applied by the tile workers");
+
+        var tiles = getTilesForInference(imageData, config);
         if (tiles.isEmpty()) {
             logger.warn("No tiles to process!");
-            return;
+            return WSInferResults.empty(wsiModel.getName());
         }
+        var device = getDevices().get(0);
+        var tileLoader = createTileLoaderBuilder(imageData.getServer(), createReadKey(config), tiles, tensorPreprocessor,
+                Math.max(1, WSInferPrefs.batchSizeProperty().getValue()), Math.max(1, WSInferPrefs.numWorkersProperty().getValue()))
+                .build();
+        Criteria<NDList, NDList> criteria = Criteria.builder()
+                .setTypes(NDList.class, NDList.class)
+                .optModelPath(modelFile.toPath())
+                .optEngine("PyTorch")
+                .optDevice(device.device())
+                .build();
+        var modelKey = new ModelCache.Key(wsiModel.getName(), modelFile.toPath(), modelFile.lastModified(),
+                device.name(), InferencePrecision.FP32.name(), "embedding");
 
-        Device device = getDevice();
+        long startTime = System.currentTimeMillis();
+        int totalTiles = tiles.size();
+        var completed = new AtomicInteger();
+        var skipped = new AtomicInteger();
+        int numPredictors = Math.max(1, WSInferPrefs.numPredictorsProperty().getValue());
+        boolean pipelined = WSInferPrefs.pipelineInferenceProperty().get();
+        int intraOpThreads = getIntraOpThreads(device.device(), numPredictors);
+        int previousIntraOpThreads = -1;
+        logger.info("Extracting embeddings with {} for {} tiles", wsiModel.getName(), totalTiles);
+        updateProgressForTiles(progressListener, completed.get(), skipped.get(), totalTiles, startTime);
+        try (var lease = ModelCache.getInstance().acquire(modelKey, modelFile.length(), criteria::loadModel);
+             var writer = new EmbeddingWriter(outputPath, wsiModel.getName(), totalTiles)) {
+            if (intraOpThreads > 0)
+                previousIntraOpThreads = setIntraOpThreads(intraOpThreads);
+            var predictorPool = new PredictorPool<>(lease.getModel(), null, new EmbeddingTranslator(),
+                    numPredictors, pipelined);
+            // The writer is thread-safe, but the progress is updated one batch at a time
+            Object lock = new Object();
+            predictorPool.run(tileLoader.getBatchQueue(), tileLoader::isRunning, (batch, embeddings) -> {
+                try {
+                    writer.append(batch.getTiles(), embeddings);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                synchronized (lock) {
+                    skipped.addAndGet(batch.getBackgroundTiles().size());
+                    completed.addAndGet(batch.getTiles().size() + batch.getBackgroundTiles().size());
+                    updateProgressForTiles(progressListener, completed.get(), skipped.get(), totalTiles, startTime);
+                }
+            });
+            logger.info("Embeddings: {}", predictorPool);
+            logger.info("Wrote {} embeddings of length {} to {}", writer.getRows(), writer.getDimension(), outputPath);
+        } catch (InterruptedException e) {
+            logger.error("Embedding extraction interrupted {}", wsiModel.getName(), e);
+            progressListener.updateProgress("Inference interrupted!", 1.0);
+            throw e;
+        } catch (UncheckedIOException e) {
+            logger.error("Error writing embeddings with {}", wsiModel.getName(), e);
+            progressListener.updateProgress("Inference failed!", 1.0);
+            throw e.getCause();
+        } catch (IOException | ModelNotFoundException | MalformedModelException | TranslateException e) {
+            logger.error("Error extracting embeddings with {}", wsiModel.getName(), e);
+            progressListener.updateProgress("Inference failed!", 1.0);
+            throw e;
+        } finally {
+            if (previousIntraOpThreads > 0)
+                setIntraOpThreads(previousIntraOpThreads);
+            tileLoader.shutdown();
+        }
+        return new WSInferResults(wsiModel.getName(), totalTiles, completed.get(), skipped.get(), tileLoader.getFailures(),
+                System.currentTimeMillis() - startTime);
+    }
 
-        Pipeline pipeline = new Pipeline();
-        int resize = -1;
-        for (WSInferTransform transform: wsiModel.getConfiguration().getTransform()) {
-            switch(transform.getName()) {
-                case "Resize":
-                    // Ideally we'd resize with the pipeline, but unfortunately that fails with MPS devides -
-                    // so instead we need to resize first
-//                    int size = ((Double) transform.getArguments().get("size")).intValue();
-//                    builder.addTransform(new Resize(size, size, Image.Interpolation.BILINEAR));
-                    resize = ((Number)transform.getArguments().get("size")).intValue();
-                    logger.debug("Requesting resize to {}", resize);
-                    break;
-                case "ToTensor":
-                    pipeline.add(createToTensorTransform(device));
-                    break;
-                case "Normalize":
-                    pipeline.add(createNormalizeTransform(transform));
-                    break;
-                default:
-                    logger.warn("Ignoring unknown transform: {}", transform.getName());
-                    break;
+    /**
+     * Get the TorchScript file that exports the embeddings for a model.
+     * @param torchScriptFile the TorchScript file of the model
+     * @return the embedding file, which may not exist
+     */
+    private static File getEmbeddingModelFile(File torchScriptFile) {
+        String name = torchScriptFile.getName();
+        int ind = name.lastIndexOf('.');
+        String embeddingName = ind < 0 ? name + EMBEDDING_SUFFIX : name.substring(0, ind) + EMBEDDING_SUFFIX + name.substring(ind);
+        return new File(torchScriptFile.getParentFile(), embeddingName);
+    }
+
+    /**
+     * Run inference for a single model, and create a probability map from the results.
+     * @param imageData image data to run inference on
+     * @param wsiModel model to use for inference
+     * @param createObjects whether tile objects should be added to the hierarchy and updated with the results
+     * @return a server for the probability map
+     * @throws InterruptedException
+     * @throws ModelNotFoundException
+     * @throws MalformedModelException
+     * @throws IOException
+     * @throws TranslateException
+     * @see #createProbabilityMap(ImageData, WSInferModel, boolean, ProgressListener)
+     */
+    public static ImageServer<BufferedImage> createProbabilityMap(ImageData<BufferedImage> imageData, WSInferModel wsiModel,
+                                                                  boolean createObjects) throws InterruptedException, ModelNotFoundException, MalformedModelException, IOException, TranslateException {
+        return createProbabilityMap(imageData, wsiModel, createObjects, new ProgressLogger(logger));
+    }
+
+    /**
+     * Run inference for a single model with a custom progress listener, and create a probability map from the results.
+     * <p>
+     * The map is a float32 image with one channel per class and one pixel per tile, which has the same size
+     * and calibration as the original image so that it can be shown as an overlay or thresholded.
+     * Pixels without a prediction (e.g. background tiles) are NaN.
+     * It can be saved as a pyramidal image with {@link #writeProbabilityMap(ImageServer, String)}.
+     * <p>
+     * If {@code createObjects} is false, neither new tiles nor any selected tiles are added to or updated in
+     * the hierarchy.
+     * For selected annotations, the tile geometry is generated for each annotation, and temporary tile objects
+     * are only created for up to {@value #MAX_DETACHED_TILES} tiles at a time.
+     * This avoids keeping an object with measurements for every tile, which can use a lot of memory
+     * for whole slide images with small tiles.
+     * <p>
+     * The returned server only exists in memory, so it can't be added to a project.
+     * @param imageData image data to run inference on (required)
+     * @param wsiModel model to use for inference (required)
+     * @param createObjects whether tile objects should be added to the hierarchy and updated with the results
+     * @param progressListener the progress listener to report what is happening (required)
+     * @return a server for the probability map, or null if there were no tiles to process
+     * @throws InterruptedException
+     * @throws ModelNotFoundException
+     * @throws MalformedModelException
+     * @throws IOException
+     * @throws TranslateException
+     */
+    public static ImageServer<BufferedImage> createProbabilityMap(ImageData<BufferedImage> imageData, WSInferModel wsiModel,
+                                                                  boolean createObjects, ProgressListener progressListener) throws InterruptedException, ModelNotFoundException, MalformedModelException, IOException, TranslateException {
+        Objects.requireNonNull(imageData, "Image data cannot be null");
+        Objects.requireNonNull(wsiModel, "Model cannot be null");
+        var config = wsiModel.getConfiguration();
+        int numClasses = config.getClassNames().size();
+        int numPredictors = Math.max(1, WSInferPrefs.numPredictorsProperty().getValue());
+        var precision = getPrecision();
+        ProbabilityGrid grid;
+        if (createObjects || !getSelectedTiles(imageData).isEmpty()) {
+            var tiles = getTilesForInference(imageData, config, createObjects);
+            if (tiles.isEmpty()) {
+                logger.warn("No tiles to process!");
+                return null;
+            }
+            grid = ProbabilityGrid.forTiles(tiles, numClasses);
+            runInference(imageData, List.of(wsiModel), tiles, numPredictors, precision, grid, createObjects, progressListener);
+        } else {
+            // Stream the tile geometry, so that we never need an object for every tile
+            var annotations = getSelectedAnnotations(imageData);
+            var tiler = createTiler(imageData, config);
+            var gridBuilder = ProbabilityGrid.builder(numClasses);
+            int totalTiles = 0;
+            for (var annotation : annotations) {
+                for (var roi : tiler.createROIs(annotation.getROI())) {
+                    gridBuilder.add(roi);
+                    totalTiles++;
+                }
+            }
+            if (totalTiles == 0) {
+                logger.warn("No tiles to process!");
+                return null;
+            }
+            grid = gridBuilder.build();
+            int startTiles = 0;
+            for (var annotation : annotations) {
+                var rois = tiler.createROIs(annotation.getROI());
+                for (int i = 0; i < rois.size(); i += MAX_DETACHED_TILES) {
+                    var tiles = rois.subList(i, Math.min(rois.size(), i + MAX_DETACHED_TILES)).stream()
+                            .map(PathObjects::createTileObject)
+                            .toList();
+                    runInference(imageData, List.of(wsiModel), tiles, numPredictors, precision, grid, false,
+                            createChunkProgressListener(progressListener, startTiles, tiles.size(), totalTiles));
+                    startTiles += tiles.size();
+                }
             }
         }
+        return new ProbabilityMapServer(imageData.getServer(), grid, config.getClassNames(),
+                wsiModel.getName() + " probabilities");
+    }
 
-        boolean applySoftmax = true;
-        Translator translator = buildTranslator(wsiModel, pipeline, applySoftmax);
-        Criteria<Image, Classifications> criteria = buildCriteria(wsiModel, translator, device);
-        List<String> classNames = wsiModel.getConfiguration().getClassNames();
-        long startTime = System.currentTimeMillis();
+    /**
+     * Create a progress listener for one chunk of tiles, which reports progress relative to all the tiles.
+     * @param progressListener the listener for all the tiles
+     * @param startTiles the number of tiles in previous chunks
+     * @param chunkTiles the number of tiles in this chunk
+     * @param totalTiles the total number of tiles
+     * @return
+     */
+    private static ProgressListener createChunkProgressListener(ProgressListener progressListener, int startTiles,
+                                                                int chunkTiles, int totalTiles) {
+        if (chunkTiles == totalTiles)
+            return progressListener;
+        return (message, progress) -> progressListener.updateProgress(message,
+                progress == null ? null : (startTiles + progress * chunkTiles) / totalTiles);
+    }
+
+    /**
+     * Write a probability map to a file, using a format determined by the file extension.
+     * Pyramidal formats (e.g. OME-TIFF) include all the resolutions of the map.
+     * @param server the probability map, as returned by {@link #createProbabilityMap(ImageData, WSInferModel, boolean)}
+     * @param path the path of the output file
+     * @throws IOException
+     */
+    public static void writeProbabilityMap(ImageServer<BufferedImage> server, String path) throws IOException {
+        Objects.requireNonNull(server, "Server cannot be null");
+        ImageWriterTools.writeImage(server, path);
+    }
 
-        ImageServer<BufferedImage> server = imageData.getServer();
-        double downsample = wsiModel.getConfiguration().getSpacingMicronPerPixel() / (double)server.getPixelCalibration().getAveragedPixelSize();
-        int width = (int) Math.round(wsiModel.getConfiguration().getPatchSizePixels() * downsample);
-        int height = (int) Math.round(wsiModel.getConfiguration().getPatchSizePixels() * downsample);
+    private static List<WSInferResults> runInference(ImageData<BufferedImage> imageData, List<WSInferModel> wsiModels, List<PathObject> tiles,
+                                                     int numPredictors, InferencePrecision precision, ProgressListener progressListener) throws InterruptedException, ModelNotFoundException, MalformedModelException, IOException, TranslateException {
+        return runInference(imageData, wsiModels, tiles, numPredictors, precision, null, true, progressListener);
+    }
+
+    /**
+     * Run inference for one or more models.
+     * @param imageData
+     * @param wsiModels
+     * @param tiles
+     * @param numPredictors
+     * @param precision
+     * @param probabilityGrid optional grid to store the probabilities of the first model
+     * @param updateObjects whether the tile objects should be updated with the results
+     * @param progressListener
+     */
+    private static List<WSInferResults> runInference(ImageData<BufferedImage> imageData, List<WSInferModel> wsiModels, List<PathObject> tiles,
+                                                     int numPredictors, InferencePrecision precision, ProbabilityGrid probabilityGrid, boolean updateObjects,
+                                                     ProgressListener progressListener) throws InterruptedException, ModelNotFoundException, MalformedModelException, IOException, TranslateException {
+        if (tiles.isEmpty()) {
+            logger.warn("No tiles to process!");
+            return wsiModels.stream().map(m -> WSInferResults.empty(m.getName())).toList();
+        }
+
+        // Each model is loaded once for every device, with all the devices taking batches from the same queue
+        List<DeviceShard> devices = getDevices();
+        if (devices.size() > 1)
+            logger.info("Sharding inference across {} devices: {}", devices.size(),
+                    devices.stream().map(DeviceShard::name).collect(Collectors.joining(", ")));
+
+        // Measurements need to be namespaced by model if we have more than one,
+        // while the first model alone determines the classification
+        boolean namespaceMeasurements = wsiModels.size() > 1;
+        List<ModelRun> runs = new ArrayList<>();
+        for (var wsiModel : wsiModels)
+            runs.add(new ModelRun(wsiModel, devices, resolvePrecision(wsiModel, precision, devices), namespaceMeasurements, runs.isEmpty()));
+        runs.get(0).probabilityGrid = probabilityGrid;
+        for (var run : runs)
+            run.updateObjects = updateObjects;
+
+        // Models that need exactly the same tiles can share a single pass over the image
+        Map<ReadKey, List<ModelRun>> groups = new LinkedHashMap<>();
+        for (var run : runs)
+            groups.computeIfAbsent(run.readKey, k -> new ArrayList<>()).add(run);
+        if (wsiModels.size() > 1)
+            logger.info("Running {} models in {} read pass(es)", wsiModels.size(), groups.size());
+
+        for (var group : groups.values())
+            runGroup(imageData, group, tiles, numPredictors, progressListener);
+
+        if (updateObjects) {
+            // Detached tiles (e.g. used for benchmarking) have no parent, and aren't part of the hierarchy
+            var changed = tiles.stream().filter(p -> p.getParent() != null).toList();
+            if (!changed.isEmpty())
+                imageData.getHierarchy().fireObjectClassificationsChangedEvent(WSInfer.class, changed);
+        }
+        return runs.stream().map(r -> r.results).toList();
+    }
+
+    /**
+     * Run inference for a group of models that can all use the same tiles, reading each tile only once.
+     * @param imageData
+     * @param group
+     * @param tiles
+     * @param numPredictors
+     * @param progressListener
+     */
+    private static void runGroup(ImageData<BufferedImage> imageData, List<ModelRun> group, List<PathObject> tiles,
+                                 int numPredictors, ProgressListener progressListener) throws InterruptedException, ModelNotFoundException, MalformedModelException, IOException, TranslateException {
+        var first = group.get(0);
+        String modelNames = group.stream().map(r -> r.wsiModel.getName()).collect(Collectors.joining(", "));
+
+        // Tiles can only be preprocessed in the workers if every model needs the same preprocessing;
+        // otherwise, each model applies its own transforms to the images
+        TensorPreprocessor tensorPreprocessor = first.tensorPreprocessor;
+        for (var run : group) {
+            if (!Objects.equals(run.tensorPreprocessor, tensorPreprocessor))
+                tensorPreprocessor = null;
+        }
+        if (tensorPreprocessor == null && group.size() > 1 && first.tensorPreprocessor != null)
+            logger.info("Models need different preprocessing, so this will be done by the predictors");
+
+        // Augmented variants are created from the tensors prepared by the tile workers
+        TestTimeAugmentation augmentation = WSInferPrefs.testTimeAugmentationProperty().get();
+        if (augmentation == null)
+            augmentation = TestTimeAugmentation.NONE;
+        if (augmentation != TestTimeAugmentation.NONE && tensorPreprocessor == null) {
+            logger.warn("Test-time augmentation requires tiles to be preprocessed by the tile workers, so it will not be used for {}", modelNames);
+            if (QuPathGUI.getInstance() != null) {
+                String message = String.format(resources.getString("ui.tta-unavailable"), modelNames);
+                Platform.runLater(() -> Dialogs.showWarningNotification(resources.getString("title"), message));
+            }
+            augmentation = TestTimeAugmentation.NONE;
+        }
+
+        long startTime = System.currentTimeMillis();
 
         // Number of workers who will be busy fetching tiles for us while we're busy inferring
         int nWorkers = Math.max(1, WSInferPrefs.numWorkersProperty().getValue());
@@ -210,92 +793,532 @@ public class WSInfer {
         // Set batch size
         // Previously, this *had* to be 1 for MPS - but since DJL 0.24.0 that doesn't seem necessary any more
         int batchSize = Math.max(1, WSInferPrefs.batchSizeProperty().getValue());
+        // With test-time augmentation, each tile is passed to the model several times
+        batchSize = Math.max(1, batchSize / augmentation.getCount());
+        int maxBatchSize = Math.max(batchSize, ADAPTIVE_MAX_BATCH_SIZE / augmentation.getCount());
 
-        // Number of tiles each worker should prefetch
-        int numPrefetch = (int)Math.max(2, Math.ceil((double)batchSize * 2 / nWorkers));
+        // If adaptive, the number of workers and batch size are starting points that can be increased while running
+        boolean adaptive = WSInferPrefs.adaptiveLoadingProperty().get();
 
         int nTiles = tiles.size();
-        logger.info("Running {} for {} tiles", wsiModel.getName(), nTiles);
+        logger.info("Running {} for {} tiles", modelNames, nTiles);
 
-        var tileLoader = TileLoader.builder()
-                .batchSize(batchSize)
-                .numWorkers(nWorkers)
-                .numPrefetch(numPrefetch)
-                .server(server)
-                .tileSize(width, height)
-                .downsample(downsample)
-                .tiles(tiles)
-                .resizeTile(resize, resize)
+        var tileLoader = createTileLoaderBuilder(imageData.getServer(), first.readKey, tiles, tensorPreprocessor, batchSize, nWorkers)
+                .batchSize(adaptive ? maxBatchSize : batchSize)
+                .initialBatchSize(batchSize)
+                .numWorkers(adaptive ? Math.max(nWorkers, Runtime.getRuntime().availableProcessors()) : nWorkers)
+                .initialWorkers(nWorkers)
                 .build();
 
-        int completedTiles = 0;
+        String backgroundClassName = WSInferPrefs.backgroundClassProperty().get();
+        PathClass backgroundClass = backgroundClassName == null || backgroundClassName.isBlank() ?
+                null : PathClass.fromString(backgroundClassName);
+
         int totalTiles = tiles.size();
-        updateProgressForTiles(progressListener, completedTiles, totalTiles, startTime);
-
-        try (ZooModel<Image, Classifications> model = criteria.loadModel()) {
-            try (Predictor<Image, Classifications> predictor = model.newPredictor()) {
-                var batchQueue = tileLoader.getBatchQueue();
-                int pendingWorkers = nWorkers;
-                while (pendingWorkers > 0 && !Thread.currentThread().isInterrupted()) {
-                    var batch = batchQueue.take();
-                    if (batch.isEmpty()) {
-                        // We stop when all the tile workers have returned an empty batch
-                        pendingWorkers--;
-                        continue;
-                    }
+        updateProgressForTiles(progressListener, 0, 0, totalTiles, startTime);
 
-                    List<Image> inputs = batch.getInputs();
-                    List<PathObject> pathObjectBatch = batch.getTiles();
-                    List<Classifications> predictions = predictor.batchPredict(inputs);
-
-                    for (int i = 0; i < inputs.size(); i++) {
-                        PathObject pathObject = pathObjectBatch.get(i);
-                        Classifications classifications = predictions.get(i);
-                        for (String c : classNames) {
-                            double prob = classifications.get(c).getProbability();
-                            pathObject.getMeasurements().put(c, prob);
-                        }
-                        // Set class based upon probability
-                        String name = classifications.topK(1).get(0).getClassName();
-                        if (name == null)
-                            pathObject.resetPathClass();
-                        else
-                            pathObject.setPathClass(PathClass.fromString(name));
+        // Reuse the models from a previous run if possible
+        var modelCache = ModelCache.getInstance();
+        modelCache.setLimits(Math.max(0, WSInferPrefs.modelCacheSizeProperty().getValue()),
+                Math.max(0, WSInferPrefs.modelCacheMaxMBProperty().getValue()) * 1024L * 1024L);
+
+        // The available threads are shared between the predictors for all the models and devices
+        int intraOpThreads = getIntraOpThreads(first.shards.get(0).device, numPredictors * group.size() * first.shards.size());
+        int previousIntraOpThreads = -1;
+        boolean pipelined = WSInferPrefs.pipelineInferenceProperty().get();
+        BatchFanOut fanOut = group.size() > 1 ? new BatchFanOut(tileLoader, group.size()) : null;
+        ExecutorService modelPool = null;
+        // Models may update the measurements of the same objects, so results are applied one batch at a time
+        Object lock = new Object();
+        try {
+            if (intraOpThreads > 0)
+                previousIntraOpThreads = setIntraOpThreads(intraOpThreads);
+            for (var run : group) {
+                run.acquireModels(modelCache);
+                var tensorTranslator = new TensorBatchTranslator(run.classNames, run.applySoftmax, augmentation, run.precision);
+                for (var shard : run.shards)
+                    shard.predictorPool = new PredictorPool<>(shard.lease.getModel(),
+                            shard.translator.batchTranslator(tensorTranslator), tensorTranslator, numPredictors, pipelined);
+            }
+            List<PredictorPool.BatchHandler<BatchPredictions>> handlers = new ArrayList<>();
+            for (var run : group) {
+                handlers.add((batch, predictions) -> {
+                    synchronized (lock) {
+                        run.applyResults(batch, predictions, backgroundClass);
+                        // Report the number of tiles that have been completed by every model
+                        int completed = group.stream().mapToInt(r -> r.completed.get()).min().orElse(0);
+                        int skipped = group.stream().mapToInt(r -> r.skipped.get()).min().orElse(0);
+                        updateProgressForTiles(progressListener, completed, skipped, totalTiles, startTime);
+                    }
+                });
+            }
+            try (var adaptiveController = adaptive ? new AdaptiveController(tileLoader,
+                    group.stream().map(ModelRun::getPredictorPools).toList()) : null) {
+                if (adaptiveController != null)
+                    adaptiveController.start();
+                if (fanOut == null) {
+                    first.run(tileLoader.getBatchQueue(), tileLoader::isRunning, handlers.get(0));
+                } else {
+                    fanOut.start();
+                    modelPool = Executors.newFixedThreadPool(group.size(), ThreadTools.createThreadFactory("wsinfer-models", true));
+                    var completionService = new ExecutorCompletionService<Void>(modelPool);
+                    for (int i = 0; i < group.size(); i++) {
+                        var run = group.get(i);
+                        var queue = fanOut.getQueue(i);
+                        var handler = handlers.get(i);
+                        completionService.submit(() -> {
+                            run.run(queue, fanOut::isRunning, handler);
+                            return null;
+                        });
                     }
-                    completedTiles += inputs.size();
-                    updateProgressForTiles(progressListener, completedTiles, totalTiles, startTime);
+                    PredictorPool.awaitAll(completionService, group.size(), modelPool);
                 }
             }
             long endTime = System.currentTimeMillis();
             long duration = endTime - startTime;
-            updateProgressForTiles(progressListener, completedTiles, totalTiles, startTime);
+            int completedTiles = group.stream().mapToInt(r -> r.completed.get()).min().orElse(0);
+            int skippedTiles = group.stream().mapToInt(r -> r.skipped.get()).min().orElse(0);
+            updateProgressForTiles(progressListener, completedTiles, skippedTiles, totalTiles, startTime);
 
-            imageData.getHierarchy().fireObjectClassificationsChangedEvent(WSInfer.class, tiles);
             long durationSeconds = duration/1000;
             String seconds = durationSeconds == 1 ? "second" : "seconds";
             logger.info("Finished {} tiles in {} {} ({} ms per tile)", nTiles, durationSeconds, seconds, duration/nTiles);
+            logger.info("Tile loading: {}", tileLoader.getStatistics());
+            for (var run : group) {
+                for (var shard : run.shards)
+                    logger.info("Inference ({}, {}): {}", run.wsiModel.getName(), shard.name, shard.predictorPool);
+            }
+            long outOfBoundsTiles = tileLoader.getStatistics().getOutOfBoundsTiles();
+            if (outOfBoundsTiles > 0)
+                logger.warn("{} tiles extended beyond the image bounds - results may be influenced by padding", outOfBoundsTiles);
+            var failures = tileLoader.getFailures();
+            if (!failures.isEmpty())
+                logger.warn("{} tiles could not be processed (e.g. {}: {})", failures.size(),
+                        failures.get(0).tile(), failures.get(0).reason());
+            for (var run : group) {
+                run.results = new WSInferResults(run.wsiModel.getName(), totalTiles, run.completed.get(), run.skipped.get(),
+                        failures, duration);
+            }
         } catch (InterruptedException e) {
-            logger.error("Model inference interrupted {}", wsiModel.getName(), e);
+            logger.error("Model inference interrupted {}", modelNames, e);
             progressListener.updateProgress("Inference interrupted!", 1.0);
             throw e;
         } catch (IOException | ModelNotFoundException | MalformedModelException | TranslateException e) {
-            logger.error("Error running model {}", wsiModel.getName(), e);
+            logger.error("Error running model {}", modelNames, e);
             progressListener.updateProgress("Inference failed!", 1.0);
             throw e;
+        } finally {
+            if (fanOut != null)
+                fanOut.stop();
+            if (modelPool != null)
+                modelPool.shutdownNow();
+            tileLoader.shutdown();
+            for (var run : group)
+                run.releaseModels();
+            if (previousIntraOpThreads > 0)
+                setIntraOpThreads(previousIntraOpThreads);
+        }
+    }
+
+    /**
+     * Create a builder for a tile loader, with the options from the preferences that don't depend on the models.
+     * @param server the server to read tiles from
+     * @param readKey the resolution and size of the tiles
+     * @param tiles the tiles to read
+     * @param tensorPreprocessor the preprocessing to apply in the tile workers, or null if the tiles should be kept as images
+     * @param batchSize the number of tiles in each batch
+     * @param nWorkers the number of tile workers
+     * @return
+     */
+    private static TileLoader.Builder createTileLoaderBuilder(ImageServer<BufferedImage> server, ReadKey readKey,
+                                                              List<PathObject> tiles, TensorPreprocessor tensorPreprocessor,
+                                                              int batchSize, int nWorkers) {
+        double downsample = readKey.spacing() / (double)server.getPixelCalibration().getAveragedPixelSize();
+        int width = (int) Math.round(readKey.patchSize() * downsample);
+        int height = (int) Math.round(readKey.patchSize() * downsample);
+        int resize = readKey.resize();
+
+        // Memory available for loaded tiles - this determines how many batches can be prefetched.
+        // If there is no budget, the number of batches prefetched is based on the batch size and reads are never delayed.
+        long memoryBudget = Math.max(0, WSInferPrefs.memoryBudgetMBProperty().getValue()) * 1024L * 1024L;
+
+        // Number of batches to prefetch for each worker, if there is no memory budget
+        int numPrefetch = (int)Math.max(2, Math.ceil((double)batchSize * 2 / nWorkers));
+
+        // Number of adjacent tiles (along each side) that can be read in a single request
+        int coalesceTiles = Math.max(1, WSInferPrefs.coalesceTilesProperty().getValue());
+
+        // Value used to pad tiles that extend beyond the image, or negative to reflect the boundary pixels
+        int paddingValue = WSInferPrefs.paddingValueProperty().getValue();
+
+        // Optional persistent cache of tiles, which can be reused by later runs
+        long patchCacheBytes = Math.max(0, WSInferPrefs.patchCacheSizeMBProperty().getValue()) * 1024L * 1024L;
+
+        return TileLoader.builder()
+                .batchSize(batchSize)
+                .numWorkers(nWorkers)
+                .numPrefetch(numPrefetch)
+                .memoryBudget(memoryBudget)
+                .minAvailableMemory(memoryBudget > 0 ? MIN_AVAILABLE_MEMORY_FRACTION : 0)
+                .server(server)
+                .tileSize(width, height)
+                .downsample(downsample)
+                .tiles(tiles)
+                .resizeTile(resize, resize)
+                .coalesceTiles(coalesceTiles)
+                .readAtPyramidLevel(WSInferPrefs.readAtPyramidLevelProperty().get())
+                .backgroundDetector(WSInferPrefs.skipBackgroundProperty().get() ? BackgroundDetector.createDefault() : null)
+                .tensorPreprocessor(tensorPreprocessor)
+                .tileOrder(WSInferPrefs.tileOrderProperty().get())
+                .virtualThreadReads(WSInferPrefs.maxConcurrentReadsProperty().getValue())
+                .padding(paddingValue < 0 ? TilePadding.reflect() : TilePadding.constant(paddingValue))
+                .bilinearResize(WSInferPrefs.bilinearResizeProperty().get())
+                .patchCache(patchCacheBytes > 0 ? getPatchCacheDirectory() : null, patchCacheBytes)
+                .retries(Math.max(0, WSInferPrefs.maxRetriesProperty().getValue()), RETRY_DELAY_MILLIS)
+                .stallTimeout(Math.max(0, WSInferPrefs.stallTimeoutSecondsProperty().getValue()) * 1000L);
+    }
+
+    /**
+     * Parameters that determine which tiles are needed by a model, so that models with the same key can share reads.
+     * @param spacing the pixel size required by the model, in microns
+     * @param patchSize the size of the patch read for the model, in pixels at the required spacing
+     * @param resize the size to which patches should be resized, or -1 if no resizing is needed
+     */
+    private record ReadKey(double spacing, double patchSize, int resize) {}
+
+    /**
+     * Get the parameters that determine which tiles are needed by a model.
+     * @param config the model configuration
+     * @return
+     */
+    private static ReadKey createReadKey(WSInferModelConfiguration config) {
+        int resize = -1;
+        for (WSInferTransform transform: config.getTransform()) {
+            switch(transform.getName()) {
+                case "Resize":
+                    // Ideally we'd resize with the pipeline, but unfortunately that fails with MPS devides -
+                    // so instead we need to resize first
+//                    int size = ((Double) transform.getArguments().get("size")).intValue();
+//                    builder.addTransform(new Resize(size, size, Image.Interpolation.BILINEAR));
+                    resize = ((Number)transform.getArguments().get("size")).intValue();
+                    logger.debug("Requesting resize to {}", resize);
+                    break;
+                case "ToTensor":
+                case "Normalize":
+                    break;
+                default:
+                    logger.warn("Ignoring unknown transform: {}", transform.getName());
+                    break;
+            }
+        }
+        return new ReadKey(config.getSpacingMicronPerPixel(), config.getPatchSizePixels(), resize);
+    }
+
+    /**
+     * Everything needed to run a single model, possibly as part of a pass that is shared with other models.
+     */
+    private static class ModelRun {
+
+        private final WSInferModel wsiModel;
+        private final List<ModelShard> shards = new ArrayList<>();
+        private final InferencePrecision precision;
+        private final File modelFile;
+        private final boolean applySoftmax = true;
+        private final List<String> classNames;
+        private final String[] measurementNames;
+        private final PathClass[] pathClasses;
+        private final String varianceMeasurement;
+        private final String entropyMeasurement;
+        private final boolean setsClassification;
+        private final ReadKey readKey;
+        private final TensorPreprocessor tensorPreprocessor;
+
+        private final AtomicInteger completed = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+
+        private ProbabilityGrid probabilityGrid;
+        private boolean updateObjects = true;
+        private WSInferResults results;
+
+        /**
+         * Prepare to run a model.
+         * @param wsiModel the model
+         * @param devices the devices used for inference, each of which gets its own copy of the model
+         * @param precision the precision to use, which should already have been checked with {@link WSInfer#resolvePrecision(WSInferModel, InferencePrecision, List)}
+         * @param namespaceMeasurements whether measurement names should be prefixed by the model name
+         * @param setsClassification whether the model should set the classification of each tile
+         */
+        private ModelRun(WSInferModel wsiModel, List<DeviceShard> devices, InferencePrecision precision, boolean namespaceMeasurements, boolean setsClassification) {
+            this.wsiModel = wsiModel;
+            this.precision = precision;
+            this.modelFile = precision.getModelFile(wsiModel.getTorchScriptFile());
+            this.setsClassification = setsClassification;
+            var config = wsiModel.getConfiguration();
+            this.classNames = config.getClassNames();
+            // Resolve names and classifications once, so that applying results doesn't require lookups for every tile
+            this.measurementNames = new String[classNames.size()];
+            this.pathClasses = new PathClass[classNames.size()];
+            for (int c = 0; c < classNames.size(); c++) {
+                String name = classNames.get(c);
+                measurementNames[c] = namespaceMeasurements ? wsiModel.getName() + ": " + name : name;
+                pathClasses[c] = PathClass.fromString(name);
+            }
+            this.varianceMeasurement = namespaceMeasurements ? wsiModel.getName() + ": TTA variance" : "TTA variance";
+            this.entropyMeasurement = namespaceMeasurements ? wsiModel.getName() + ": TTA entropy" : "TTA entropy";
+
+            this.readKey = createReadKey(config);
+
+            // If we can, we do all the preprocessing in the tile workers and pass tensors directly to the model.
+            // This is also needed for test-time augmentation, which creates its variants from the tensors.
+            boolean directTensors = WSInferPrefs.directTensorsProperty().get() ||
+                    (WSInferPrefs.testTimeAugmentationProperty().get() != null &&
+                            WSInferPrefs.testTimeAugmentationProperty().get() != TestTimeAugmentation.NONE);
+            this.tensorPreprocessor = directTensors ? createTensorPreprocessor(config.getTransform()) : null;
+            if (tensorPreprocessor != null)
+                logger.debug("Using direct tensor preprocessing in {} tile workers", Math.max(1, WSInferPrefs.numWorkersProperty().getValue()));
+            else if (directTensors)
+                logger.info("Transforms can't be applied by tile workers, so preprocessing will be done by the predictor");
+
+            for (var deviceShard : devices) {
+                var device = deviceShard.device();
+                var translator = buildTranslator(wsiModel, createPipeline(device), applySoftmax);
+                shards.add(new ModelShard(deviceShard, translator, buildCriteria(modelFile.toPath(), translator, device)));
+            }
+        }
+
+        /**
+         * Create the pipeline used when the predictor needs to apply the transforms itself.
+         * @param device the device used for inference
+         * @return
+         */
+        private Pipeline createPipeline(Device device) {
+            Pipeline pipeline = new Pipeline();
+            for (WSInferTransform transform: wsiModel.getConfiguration().getTransform()) {
+                switch(transform.getName()) {
+                    case "ToTensor":
+                        pipeline.add(createToTensorTransform(device));
+                        break;
+                    case "Normalize":
+                        pipeline.add(createNormalizeTransform(transform));
+                        break;
+                    default:
+                        break;
+                }
+            }
+            // Reduced precision models may need a different input type
+            if (precision.getInputType() != DataType.FLOAT32)
+                pipeline.add(precision::toInputType);
+            return pipeline;
+        }
+
+        private void acquireModels(ModelCache modelCache) throws ModelNotFoundException, MalformedModelException, IOException {
+            for (var shard : shards) {
+                // Use the shard name rather than the device, so that shards on the same device get their own model
+                var modelKey = new ModelCache.Key(wsiModel.getName(), modelFile.toPath(), modelFile.lastModified(),
+                        shard.name, precision.name(), describeTranslator(wsiModel, applySoftmax));
+                shard.lease = modelCache.acquire(modelKey, modelFile.length(), shard.criteria::loadModel);
+            }
+        }
+
+        private void releaseModels() {
+            for (var shard : shards) {
+                if (shard.lease != null) {
+                    shard.lease.close();
+                    shard.lease = null;
+                }
+            }
+        }
+
+        private List<PredictorPool<?>> getPredictorPools() {
+            return shards.stream().<PredictorPool<?>>map(s -> s.predictorPool).toList();
+        }
+
+        /**
+         * Run inference for all batches in a queue, using the predictors for every device.
+         * @param batchQueue the queue of batches, shared by all the devices
+         * @param isLoaderRunning used to check whether more batches can be expected, if the queue is empty
+         * @param handler handler for the predictions of each batch
+         * @throws InterruptedException
+         * @throws TranslateException
+         */
+        private void run(BlockingQueue<TileLoader.TileBatch> batchQueue, BooleanSupplier isLoaderRunning,
+                         PredictorPool.BatchHandler<BatchPredictions> handler) throws InterruptedException, TranslateException {
+            if (shards.size() == 1) {
+                shards.get(0).predictorPool.run(batchQueue, isLoaderRunning, handler);
+                return;
+            }
+            ExecutorService pool = Executors.newFixedThreadPool(shards.size(), ThreadTools.createThreadFactory("wsinfer-shards", true));
+            try {
+                var completionService = new ExecutorCompletionService<Void>(pool);
+                for (var shard : shards) {
+                    completionService.submit(() -> {
+                        shard.predictorPool.run(batchQueue, isLoaderRunning, handler);
+                        return null;
+                    });
+                }
+                PredictorPool.awaitAll(completionService, shards.size(), pool);
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        /**
+         * Apply the predictions for a batch to the tile objects.
+         * @param batch the batch
+         * @param predictions the predictions for the tiles in the batch that were passed to the model
+         * @param backgroundClass the classification for background tiles, or null if their classification should be reset
+         */
+        private void applyResults(TileLoader.TileBatch batch, BatchPredictions predictions, PathClass backgroundClass) {
+            if (updateObjects) {
+                for (PathObject pathObject : batch.getBackgroundTiles()) {
+                    var measurements = pathObject.getMeasurementList();
+                    for (String name : measurementNames) {
+                        measurements.remove(name);
+                    }
+                    measurements.remove(varianceMeasurement);
+                    measurements.remove(entropyMeasurement);
+                    if (!setsClassification)
+                        continue;
+                    if (backgroundClass == null)
+                        pathObject.resetPathClass();
+                    else
+                        pathObject.setPathClass(backgroundClass);
+                }
+            }
+            skipped.addAndGet(batch.getBackgroundTiles().size());
+            completed.addAndGet(batch.getBackgroundTiles().size());
+
+            List<PathObject> pathObjectBatch = batch.getTiles();
+            for (int i = 0; i < pathObjectBatch.size(); i++) {
+                PathObject pathObject = pathObjectBatch.get(i);
+                if (probabilityGrid != null)
+                    probabilityGrid.set(pathObject.getROI(), predictions, i);
+                if (!updateObjects)
+                    continue;
+                var measurements = pathObject.getMeasurementList();
+                for (int c = 0; c < measurementNames.length; c++) {
+                    measurements.put(measurementNames[c], predictions.getProbability(i, c));
+                }
+                if (predictions.hasUncertainty()) {
+                    measurements.put(varianceMeasurement, predictions.getVariance(i));
+                    measurements.put(entropyMeasurement, predictions.getEntropy(i));
+                } else {
+                    measurements.remove(varianceMeasurement);
+                    measurements.remove(entropyMeasurement);
+                }
+                if (!setsClassification)
+                    continue;
+                // Set class based upon probability
+                pathObject.setPathClass(pathClasses[predictions.getTopClass(i)]);
+            }
+            completed.addAndGet(pathObjectBatch.size());
+        }
+
+    }
+
+    /**
+     * A device specified in the preferences.
+     * @param name the name of the device, which is unique even if several shards use the same device (e.g. "cpu:1")
+     * @param device the device used for inference
+     */
+    private record DeviceShard(String name, Device device) {}
+
+    /**
+     * A copy of a model loaded on one device, with its own predictors.
+     */
+    private static class ModelShard {
+
+        private final String name;
+        private final Device device;
+        private final MpsSupport.WSInferClassificationTranslator translator;
+        private final Criteria<Image, Classifications> criteria;
+
+        private ModelCache.Lease<Image, Classifications> lease;
+        private PredictorPool<BatchPredictions> predictorPool;
+
+        private ModelShard(DeviceShard device, MpsSupport.WSInferClassificationTranslator translator,
+                           Criteria<Image, Classifications> criteria) {
+            this.name = device.name();
+            this.device = device.device();
+            this.translator = translator;
+            this.criteria = criteria;
+        }
+
+    }
+
+    /**
+     * Close all cached models that are not currently in use.
+     * Models that are in use are closed when inference is complete.
+     * <p>
+     * Models are cached between runs according to the preferences, so that they do not need to be loaded each time.
+     * This can be used to release the memory they require when they are no longer needed.
+     */
+    public static void clearModelCache() {
+        ModelCache.getInstance().clear();
+    }
+
+    /**
+     * Get a description of the settings used to create the translator for a model, so that a cached model
+     * is only reused if it would be created in the same way.
+     * @param wsiModel
+     * @param applySoftmax
+     * @return
+     */
+    private static String describeTranslator(WSInferModel wsiModel, boolean applySoftmax) {
+        var config = wsiModel.getConfiguration();
+        StringBuilder sb = new StringBuilder();
+        sb.append("classes=").append(config.getClassNames());
+        sb.append(", softmax=").append(applySoftmax);
+        for (WSInferTransform transform : config.getTransform()) {
+            sb.append(", ").append(transform.getName()).append(transform.getArguments());
         }
+        return sb.toString();
     }
 
-    private static void updateProgressForTiles(ProgressListener progress, int completedTiles, int totalTiles, long startTime) {
+    /**
+     * Get the number of PyTorch intra-op threads to use for a run, dividing the available processors
+     * between all the predictors that run concurrently.
+     * @param device the device used for inference
+     * @param numPredictors the total number of concurrent predictors
+     * @return the number of threads, or 0 if the default threading should be used
+     */
+    private static int getIntraOpThreads(Device device, int numPredictors) {
+        if (numPredictors <= 1 || (device != null && !Device.Type.CPU.equals(device.getDeviceType())))
+            return 0;
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / numPredictors);
+    }
+
+    /**
+     * Set the number of threads used by PyTorch for intra-op parallelism.
+     * This is a process-wide setting ({@code at::set_num_threads}), shared by every predictor and model,
+     * so it should be set once for a run rather than by each predictor thread.
+     * The PyTorch engine is accessed reflectively, since it is only available at runtime.
+     * @param nThreads the number of threads
+     * @return the previous number of threads, or -1 if the number of threads could not be set
+     */
+    private static int setIntraOpThreads(int nThreads) {
+        try {
+            Class<?> cls = Class.forName(PYTORCH_JNI_CLASS);
+            int previous = (Integer)cls.getMethod("getNumThreads").invoke(null);
+            cls.getMethod("setNumThreads", int.class).invoke(null, nThreads);
+            logger.debug("Set PyTorch intra-op threads to {} (previously {})", nThreads, previous);
+            return previous;
+        } catch (ReflectiveOperationException | LinkageError | ClassCastException e) {
+            logger.warn("Unable to set PyTorch intra-op threads to {}: {}", nThreads, e.getMessage());
+            return -1;
+        }
+    }
+
+    private static void updateProgressForTiles(ProgressListener progress, int completedTiles, int skippedTiles, int totalTiles, long startTime) {
         double timeSeconds = (System.currentTimeMillis() - startTime) / 1000.0;
+        String message;
         if (completedTiles == totalTiles)
-            progress.updateProgress(
-                    String.format(resources.getString("ui.processing-completed"), completedTiles, totalTiles, completedTiles/timeSeconds),
-                    (double)completedTiles/totalTiles);
-        else {
-            progress.updateProgress(
-                    String.format(resources.getString("ui.processing-progress"), completedTiles, totalTiles, completedTiles / timeSeconds),
-                    (double)completedTiles / totalTiles);
-        }
+            message = String.format(resources.getString("ui.processing-completed"), completedTiles, totalTiles, completedTiles/timeSeconds);
+        else
+            message = String.format(resources.getString("ui.processing-progress"), completedTiles, totalTiles, completedTiles / timeSeconds);
+        if (skippedTiles > 0)
+            message = String.format(resources.getString("ui.processing-skipped"), message, skippedTiles);
+        progress.updateProgress(message, (double)completedTiles / totalTiles);
     }
 
     /**
@@ -308,7 +1331,7 @@ public class WSInfer {
     }
 
 
-    private static Translator<Image, Classifications> buildTranslator(WSInferModel wsiModel, Pipeline pipeline, boolean applySoftmax) {
+    private static MpsSupport.WSInferClassificationTranslator buildTranslator(WSInferModel wsiModel, Pipeline pipeline, boolean applySoftmax) {
         // We should use ImageClassificationTranslator.builder() in the future if this is updated to work with MPS
         // (See javadocs for MpsSupport.WSInferClassificationTranslator for details)
         //        ImageClassificationTranslator.Builder builder = ImageClassificationTranslator.builder()
@@ -319,10 +1342,10 @@ public class WSInfer {
                 .build();
     }
 
-    private static Criteria<Image, Classifications> buildCriteria(WSInferModel wsiModel, Translator<Image, Classifications> translator, Device device) {
+    private static Criteria<Image, Classifications> buildCriteria(Path modelPath, Translator<Image, Classifications> translator, Device device) {
         return Criteria.builder()
                 .optApplication(Application.CV.IMAGE_CLASSIFICATION)
-                .optModelPath(wsiModel.getTorchScriptFile().toPath())
+                .optModelPath(modelPath)
                 .optEngine("PyTorch")
                 .setTypes(Image.class, Classifications.class)
                 .optTranslator(translator)
@@ -331,12 +1354,75 @@ public class WSInfer {
     }
 
 
-    private static Device getDevice() {
-        String deviceName = WSInferPrefs.deviceProperty().get();
-        switch (deviceName) {
+    /**
+     * Get the directory used to cache tiles between runs.
+     * @return the directory from the preferences, or a subdirectory of the model directory if this is not set
+     */
+    private static Path getPatchCacheDirectory() {
+        String dir = WSInferPrefs.patchCacheDirectoryProperty().get();
+        if (dir == null || dir.isBlank())
+            return Paths.get(WSInferPrefs.modelDirectoryProperty().get(), "patch-cache");
+        return Paths.get(dir);
+    }
+
+    private static InferencePrecision getPrecision() {
+        var precision = WSInferPrefs.inferencePrecisionProperty().get();
+        return precision == null ? InferencePrecision.FP32 : precision;
+    }
+
+    /**
+     * Get the precision that can actually be used for a model, falling back to float32 if the model hasn't been
+     * converted to the requested precision or the device doesn't support it.
+     * @param wsiModel the model
+     * @param precision the requested precision
+     * @param devices the devices used for inference
+     * @return
+     */
+    private static InferencePrecision resolvePrecision(WSInferModel wsiModel, InferencePrecision precision, List<DeviceShard> devices) {
+        if (precision == InferencePrecision.FP32)
+            return precision;
+        if (devices.stream().anyMatch(d -> isMPS(d.device()))) {
+            logger.warn("{} inference is not supported with MPS, using FP32", precision);
+            return InferencePrecision.FP32;
+        }
+        File modelFile = precision.getModelFile(wsiModel.getTorchScriptFile());
+        if (!modelFile.isFile()) {
+            logger.warn("No {} model found at {}, using FP32", precision, modelFile);
+            return InferencePrecision.FP32;
+        }
+        return precision;
+    }
+
+    /**
+     * Get the devices to use for inference.
+     * The device preference may contain a comma-separated list of devices (e.g. "gpu:0,gpu:1" or "cpu:0,cpu:1"),
+     * in which case the model is loaded on each of them and the batches are shared between them.
+     * @return the devices, which always contains at least one device
+     */
+    private static List<DeviceShard> getDevices() {
+        String deviceNames = WSInferPrefs.deviceProperty().get();
+        Set<String> names = new LinkedHashSet<>();
+        if (deviceNames != null) {
+            for (String name : deviceNames.split(",")) {
+                if (!name.isBlank())
+                    names.add(name.strip());
+            }
+        }
+        if (names.isEmpty())
+            names.add("cpu");
+        return names.stream().map(name -> new DeviceShard(name, getDevice(name))).toList();
+    }
+
+    private static Device getDevice(String deviceName) {
+        // Devices may be given with an index, e.g. "gpu:1"
+        int ind = deviceName.indexOf(':');
+        String type = ind < 0 ? deviceName : deviceName.substring(0, ind);
+        switch (type) {
             case "gpu":
-                return Device.gpu();
+            case "cuda":
+                return ind < 0 ? Device.gpu() : Device.gpu(Integer.parseInt(deviceName.substring(ind + 1)));
             case "cpu":
+                // PyTorch has only one CPU device, so any index just identifies a separate copy of the model
                 return Device.cpu();
             default:
                 logger.info("Attempting to set device to {}", deviceName);
@@ -354,55 +1440,96 @@ public class WSInfer {
     }
 
     private static Transform createNormalizeTransform(WSInferTransform transform) {
-        ArrayList<Double> mean = (ArrayList<Double>) transform.getArguments().get("mean");
-        ArrayList<Double> sd = (ArrayList<Double>) transform.getArguments().get("std");
-        logger.debug("Creating Normalize transform (mean={}, sd={})", mean, sd);
-        float[] meanArr = new float[mean.size()];
-        float[] sdArr = new float[mean.size()];
-        for (int i = 0; i < mean.size(); i++) {
-            meanArr[i] = mean.get(i).floatValue();
-            sdArr[i] = sd.get(i).floatValue();
-        }
+        float[] meanArr = getFloatArrayArgument(transform, "mean");
+        float[] sdArr = getFloatArrayArgument(transform, "std");
+        logger.debug("Creating Normalize transform (mean={}, sd={})", Arrays.toString(meanArr), Arrays.toString(sdArr));
         return new Normalize(meanArr, sdArr);
     }
 
+    private static float[] getFloatArrayArgument(WSInferTransform transform, String name) {
+        List<?> values = (List<?>) transform.getArguments().get(name);
+        float[] arr = new float[values.size()];
+        for (int i = 0; i < values.size(); i++) {
+            arr[i] = ((Number)values.get(i)).floatValue();
+        }
+        return arr;
+    }
+
+    /**
+     * Create a preprocessor that applies ToTensor and Normalize in a single pass, if the transforms permit.
+     * Unknown transforms are ignored, as they are when building the DJL pipeline, so that both give the same input
+     * to the model.
+     * @param transforms the transforms from the model configuration
+     * @return the preprocessor, or null if there is no ToTensor transform (or if Normalize is requested before
+     *         ToTensor, more than once, or without exactly one value per channel)
+     */
+    private static TensorPreprocessor createTensorPreprocessor(List<WSInferTransform> transforms) {
+        boolean hasToTensor = false;
+        float[] mean = null;
+        float[] std = null;
+        for (WSInferTransform transform : transforms) {
+            switch (transform.getName()) {
+                case "Resize":
+                    // Resizing is always applied by the TileLoader
+                    break;
+                case "ToTensor":
+                    hasToTensor = true;
+                    break;
+                case "Normalize":
+                    if (!hasToTensor || mean != null)
+                        return null;
+                    mean = getFloatArrayArgument(transform, "mean");
+                    std = getFloatArrayArgument(transform, "std");
+                    // Leave anything other than per-channel values to the DJL pipeline
+                    if (mean.length != 3 || std.length != 3)
+                        return null;
+                    break;
+                default:
+                    // Already logged when building the pipeline
+                    break;
+            }
+        }
+        return hasToTensor ? new TensorPreprocessor(mean, std) : null;
+    }
+
 
     private static List<PathObject> getTilesForInference(ImageData<BufferedImage> imageData, WSInferModelConfiguration config) {
-        // Here, we permit detections to be used instead of tiles
-        var selectedObjects = imageData.getHierarchy().getSelectionModel().getSelectedObjects();
-        var selectedTiles = selectedObjects.stream()
-                .filter(p -> p.isTile() || p.isDetection())
-                .collect(Collectors.toList());
+        return getTilesForInference(imageData, config, true);
+    }
+
+    /**
+     * Create copies of tiles that aren't part of any hierarchy, so that inference can be run without changing
+     * the measurements or classifications of the original objects.
+     * @param tiles the tiles to copy
+     * @return a new tile with the same ROI for each tile
+     */
+    private static List<PathObject> createDetachedCopies(List<PathObject> tiles) {
+        return tiles.stream().map(p -> PathObjects.createTileObject(p.getROI())).toList();
+    }
+
+    /**
+     * Get the tiles for inference, creating new tiles within any selected annotations if no tiles are selected.
+     * @param imageData the image data
+     * @param config the model configuration, which determines the tile size
+     * @param addToHierarchy whether new tiles should be added to the hierarchy; if false, they are only returned
+     * @return
+     */
+    private static List<PathObject> getTilesForInference(ImageData<BufferedImage> imageData, WSInferModelConfiguration config, boolean addToHierarchy) {
+        var selectedTiles = getSelectedTiles(imageData);
         if (!selectedTiles.isEmpty()) {
             return selectedTiles;
         }
 
         // If we have annotations selected, create tiles inside them
-        Collection<PathObject> selectedAnnotations = selectedObjects.stream()
-                .filter(PathObject::isAnnotation)
-                .toList();
-        if (selectedAnnotations.isEmpty()) {
-            throw new IllegalArgumentException(resources.getString("No tiles or annotations selected!"));
-        }
-
+        var selectedAnnotations = getSelectedAnnotations(imageData);
         var annotationSet = new LinkedHashSet<>(selectedAnnotations); // We want this later
-        double tileWidth, tileHeight;
-        PixelCalibration cal = imageData.getServer().getPixelCalibration();
-        if (cal.hasPixelSizeMicrons()) {
-            double tileSizeMicrons = config.getPatchSizePixels() * config.getSpacingMicronPerPixel();
-            tileWidth = (int)(tileSizeMicrons / cal.getPixelWidthMicrons() + .5);
-            tileHeight = (int)(tileSizeMicrons / cal.getPixelHeightMicrons() + .5);
-        } else {
-            logger.warn("Pixel calibration not available, so using pixels instead of microns");
-            tileWidth = Math.round(config.getPatchSizePixels());
-            tileHeight = tileWidth;
+        var tiler = createTiler(imageData, config);
+        if (!addToHierarchy) {
+            List<PathObject> tiles = new ArrayList<>();
+            for (var annotation: selectedAnnotations)
+                tiles.addAll(tiler.createTiles(annotation.getROI()));
+            return tiles;
         }
-
-        var tiler = Tiler.builder((int)tileWidth, (int)tileHeight)
-                .cropTiles(false)
-                .filterByCentroid(false)
-                .alignCenter()
-                .build();
         for (var annotation: selectedAnnotations) {
             var tiles = tiler.createTiles(annotation.getROI());
             // add tiles to the hierarchy
@@ -424,4 +1551,57 @@ public class WSInfer {
 
     }
 
+    /**
+     * Get the selected tiles, or detections that should be used as tiles.
+     * @param imageData the image data
+     * @return the selected tiles, or an empty list if there are none
+     */
+    private static List<PathObject> getSelectedTiles(ImageData<BufferedImage> imageData) {
+        // Here, we permit detections to be used instead of tiles
+        return imageData.getHierarchy().getSelectionModel().getSelectedObjects().stream()
+                .filter(p -> p.isTile() || p.isDetection())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Get the selected annotations, within which tiles should be created.
+     * @param imageData the image data
+     * @return the selected annotations
+     * @throws IllegalArgumentException if no annotations are selected
+     */
+    private static List<PathObject> getSelectedAnnotations(ImageData<BufferedImage> imageData) {
+        List<PathObject> selectedAnnotations = imageData.getHierarchy().getSelectionModel().getSelectedObjects().stream()
+                .filter(PathObject::isAnnotation)
+                .toList();
+        if (selectedAnnotations.isEmpty()) {
+            throw new IllegalArgumentException(resources.getString("No tiles or annotations selected!"));
+        }
+        return selectedAnnotations;
+    }
+
+    /**
+     * Create a tiler for the tile size required by a model, centered within each annotation.
+     * @param imageData the image data, which determines the pixel size
+     * @param config the model configuration
+     * @return
+     */
+    private static Tiler createTiler(ImageData<BufferedImage> imageData, WSInferModelConfiguration config) {
+        double tileWidth, tileHeight;
+        PixelCalibration cal = imageData.getServer().getPixelCalibration();
+        if (cal.hasPixelSizeMicrons()) {
+            double tileSizeMicrons = config.getPatchSizePixels() * config.getSpacingMicronPerPixel();
+            tileWidth = (int)(tileSizeMicrons / cal.getPixelWidthMicrons() + .5);
+            tileHeight = (int)(tileSizeMicrons / cal.getPixelHeightMicrons() + .5);
+        } else {
+            logger.warn("Pixel calibration not available, so using pixels instead of microns");
+            tileWidth = Math.round(config.getPatchSizePixels());
+            tileHeight = tileWidth;
+        }
+        return Tiler.builder((int)tileWidth, (int)tileHeight)
+                .cropTiles(false)
+                .filterByCentroid(false)
+                .alignCenter()
+                .build();
+    }
+
 }
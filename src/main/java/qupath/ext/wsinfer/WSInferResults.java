@@ -0,0 +1,125 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import qupath.lib.objects.PathObject;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Summary of a completed WSInfer run, including any tiles for which inference failed.
+ */
+public class WSInferResults {
+
+    private final String modelName;
+    private final int totalTiles;
+    private final int completedTiles;
+    private final int skippedTiles;
+    private final List<TileFailure> failures;
+    private final long durationMillis;
+
+    WSInferResults(String modelName, int totalTiles, int completedTiles, int skippedTiles,
+                   List<TileFailure> failures, long durationMillis) {
+        this.modelName = modelName;
+        this.totalTiles = totalTiles;
+        this.completedTiles = completedTiles;
+        this.skippedTiles = skippedTiles;
+        this.failures = failures == null ? Collections.emptyList() : List.copyOf(failures);
+        this.durationMillis = durationMillis;
+    }
+
+    /**
+     * Create results for a run where there were no tiles to process.
+     * @param modelName
+     * @return
+     */
+    static WSInferResults empty(String modelName) {
+        return new WSInferResults(modelName, 0, 0, 0, null, 0);
+    }
+
+    /**
+     * Get the name of the model used for inference.
+     * @return
+     */
+    public String getModelName() {
+        return modelName;
+    }
+
+    /**
+     * Get the total number of tiles requested for inference.
+     * @return
+     */
+    public int getTotalTiles() {
+        return totalTiles;
+    }
+
+    /**
+     * Get the number of tiles that were completed, including skipped background tiles.
+     * @return
+     */
+    public int getCompletedTiles() {
+        return completedTiles;
+    }
+
+    /**
+     * Get the number of tiles that were skipped because they were identified as background.
+     * @return
+     */
+    public int getSkippedTiles() {
+        return skippedTiles;
+    }
+
+    /**
+     * Get the tiles that could not be processed.
+     * Their classifications and measurements are unchanged.
+     * @return
+     */
+    public List<TileFailure> getFailures() {
+        return failures;
+    }
+
+    /**
+     * Query whether any tiles could not be processed.
+     * @return
+     */
+    public boolean hasFailures() {
+        return !failures.isEmpty();
+    }
+
+    /**
+     * Get the time taken for inference, in milliseconds.
+     * @return
+     */
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("WSInferResults[%s: %d/%d tiles completed, %d skipped, %d failed, %d ms]",
+                modelName, completedTiles, totalTiles, skippedTiles, failures.size(), durationMillis);
+    }
+
+    /**
+     * A tile for which inference failed.
+     * @param tile the tile object
+     * @param reason description of the failure
+     */
+    public record TileFailure(PathObject tile, String reason) {}
+
+}
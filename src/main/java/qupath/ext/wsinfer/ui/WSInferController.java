@@ -204,7 +204,10 @@ public class WSInferController {
         var available = PytorchManager.getAvailableDevices();
         deviceChoices.getItems().setAll(available);
         var selected = WSInferPrefs.deviceProperty().get();
-        if (available.contains(selected)) {
+        // Keep a list of devices for sharding, which can only be set through the preferences or scripting
+        if (selected != null && selected.contains(","))
+            deviceChoices.getItems().add(selected);
+        if (deviceChoices.getItems().contains(selected)) {
             deviceChoices.getSelectionModel().select(selected);
         } else {
             deviceChoices.getSelectionModel().selectFirst();
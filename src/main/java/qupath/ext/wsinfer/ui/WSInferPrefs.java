@@ -16,8 +16,13 @@
 
 package qupath.ext.wsinfer.ui;
 
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.Property;
 import javafx.beans.property.StringProperty;
+import qupath.ext.wsinfer.InferencePrecision;
+import qupath.ext.wsinfer.TestTimeAugmentation;
+import qupath.ext.wsinfer.TileOrder;
 import qupath.lib.gui.UserDirectoryManager;
 import qupath.lib.gui.prefs.PathPrefs;
 
@@ -49,6 +54,114 @@ public class WSInferPrefs {
             4
     ).asObject();
 
+    private static final Property<Integer> coalesceTilesProperty = PathPrefs.createPersistentPreference(
+            "wsinfer.coalesceTiles",
+            1
+    ).asObject();
+
+    private static final BooleanProperty readAtPyramidLevelProperty = PathPrefs.createPersistentPreference(
+            "wsinfer.readAtPyramidLevel",
+            false
+    );
+
+    private static final BooleanProperty skipBackgroundProperty = PathPrefs.createPersistentPreference(
+            "wsinfer.skipBackground",
+            false
+    );
+
+    private static final StringProperty backgroundClassProperty = PathPrefs.createPersistentPreference(
+            "wsinfer.backgroundClass",
+            "Background"
+    );
+
+    private static final BooleanProperty directTensorsProperty = PathPrefs.createPersistentPreference(
+            "wsinfer.directTensors",
+            false
+    );
+
+    private static final ObjectProperty<TileOrder> tileOrderProperty = PathPrefs.createPersistentPreference(
+            "wsinfer.tileOrder",
+            TileOrder.HIERARCHY,
+            TileOrder.class
+    );
+
+    private static final Property<Integer> maxConcurrentReadsProperty = PathPrefs.createPersistentPreference(
+            "wsinfer.maxConcurrentReads",
+            0
+    ).asObject();
+
+    private static final Property<Integer> paddingValueProperty = PathPrefs.createPersistentPreference(
+            "wsinfer.paddingValue",
+            -1
+    ).asObject();
+
+    private static final BooleanProperty bilinearResizeProperty = PathPrefs.createPersistentPreference(
+            "wsinfer.bilinearResize",
+            false
+    );
+
+    private static final StringProperty patchCacheDirectoryProperty = PathPrefs.createPersistentPreference(
+            "wsinfer.patchCache.dir",
+            ""
+    );
+
+    private static final Property<Integer> patchCacheSizeMBProperty = PathPrefs.createPersistentPreference(
+            "wsinfer.patchCache.sizeMB",
+            0
+    ).asObject();
+
+    private static final Property<Integer> memoryBudgetMBProperty = PathPrefs.createPersistentPreference(
+            "wsinfer.memoryBudgetMB",
+            0
+    ).asObject();
+
+    private static final Property<Integer> maxRetriesProperty = PathPrefs.createPersistentPreference(
+            "wsinfer.maxRetries",
+            2
+    ).asObject();
+
+    private static final Property<Integer> stallTimeoutSecondsProperty = PathPrefs.createPersistentPreference(
+            "wsinfer.stallTimeoutSeconds",
+            300
+    ).asObject();
+
+    private static final Property<Integer> numPredictorsProperty = PathPrefs.createPersistentPreference(
+            "wsinfer.numPredictors",
+            1
+    ).asObject();
+
+    private static final BooleanProperty pipelineInferenceProperty = PathPrefs.createPersistentPreference(
+            "wsinfer.pipelineInference",
+            false
+    );
+
+    private static final BooleanProperty adaptiveLoadingProperty = PathPrefs.createPersistentPreference(
+            "wsinfer.adaptiveLoading",
+            false
+    );
+
+    private static final ObjectProperty<TestTimeAugmentation> testTimeAugmentationProperty = PathPrefs.createPersistentPreference(
+            "wsinfer.testTimeAugmentation",
+            TestTimeAugmentation.NONE,
+            TestTimeAugmentation.class
+    );
+
+    private static final ObjectProperty<InferencePrecision> inferencePrecisionProperty = PathPrefs.createPersistentPreference(
+            "wsinfer.precision",
+            InferencePrecision.FP32,
+            InferencePrecision.class
+    );
+
+    private static final Property<Integer> modelCacheSizeProperty = PathPrefs.createPersistentPreference(
+            "wsinfer.modelCache.size",
+            1
+    ).asObject();
+
+    private static final Property<Integer> modelCacheMaxMBProperty = PathPrefs.createPersistentPreference(
+            "wsinfer.modelCache.maxMB",
+            0
+    ).asObject();
+
     /**
      * String storing the preferred directory to cache models.
      */
@@ -58,6 +171,8 @@ public class WSInferPrefs {
 
     /**
      * String storing the preferred device to use for model inference.
+     * This may be a comma-separated list (e.g. "cpu:0,cpu:1" or "gpu:0,gpu:1") to load the model on several devices
+     * and share the tiles between them.
      */
     public static StringProperty deviceProperty() {
         return deviceProperty;
@@ -77,6 +192,186 @@ public class WSInferPrefs {
         return batchSizeProperty;
     }
 
+    /**
+     * Integer storing the number of adjacent tiles along each side of a block that may be read with a single
+     * region request (e.g. 4 means up to 4x4 tiles).
+     * A value of 1 means every tile is read separately.
+     */
+    public static Property<Integer> coalesceTilesProperty() {
+        return coalesceTilesProperty;
+    }
+
+    /**
+     * Boolean storing whether tiles should be read at the closest pyramid level with sufficient resolution,
+     * and then rescaled once to the size required by the model.
+     */
+    public static BooleanProperty readAtPyramidLevelProperty() {
+        return readAtPyramidLevelProperty;
+    }
+
+    /**
+     * Boolean storing whether tiles that appear to contain only background should be skipped during inference.
+     */
+    public static BooleanProperty skipBackgroundProperty() {
+        return skipBackgroundProperty;
+    }
+
+    /**
+     * String storing the name of the classification to assign to skipped background tiles.
+     * If this is empty, background tiles are left unclassified.
+     */
+    public static StringProperty backgroundClassProperty() {
+        return backgroundClassProperty;
+    }
+
+    /**
+     * Boolean storing whether tiles should be preprocessed directly into batch tensors by the tile workers,
+     * when the model's transforms permit this.
+     * Otherwise, preprocessing is applied by the DJL translator pipeline.
+     * This is off by default, so that the DJL pipeline remains the reference implementation.
+     */
+    public static BooleanProperty directTensorsProperty() {
+        return directTensorsProperty;
+    }
+
+    /**
+     * Order in which tiles should be read, which can be used to improve locality when reading from the image.
+     */
+    public static ObjectProperty<TileOrder> tileOrderProperty() {
+        return tileOrderProperty;
+    }
+
+    /**
+     * Integer storing the maximum number of tile reads that may be in progress at the same time, using virtual threads.
+     * This can improve throughput for images where reading is dominated by blocking I/O, e.g. on network storage.
+     * A value of 0 means that tiles are read by the tile workers instead.
+     */
+    public static Property<Integer> maxConcurrentReadsProperty() {
+        return maxConcurrentReadsProperty;
+    }
+
+    /**
+     * Integer storing the constant value used to pad tiles that extend beyond the image bounds.
+     * A negative value means that pixels at the image boundary are reflected instead.
+     */
+    public static Property<Integer> paddingValueProperty() {
+        return paddingValueProperty;
+    }
+
+    /**
+     * Boolean storing whether tiles should be resized with a fast antialiased bilinear implementation matching
+     * Pillow/torchvision, rather than with ImageJ.
+     */
+    public static BooleanProperty bilinearResizeProperty() {
+        return bilinearResizeProperty;
+    }
+
+    /**
+     * String storing the directory used to cache tiles between runs.
+     * If this is empty, a subdirectory of the model directory is used.
+     */
+    public static StringProperty patchCacheDirectoryProperty() {
+        return patchCacheDirectoryProperty;
+    }
+
+    /**
+     * Integer storing the maximum size of the tile cache, in megabytes.
+     * A value of 0 means that tiles are not cached between runs.
+     */
+    public static Property<Integer> patchCacheSizeMBProperty() {
+        return patchCacheSizeMBProperty;
+    }
+
+    /**
+     * Integer storing the approximate maximum memory to use for tiles that are being loaded or are waiting
+     * for inference, in megabytes.
+     * This determines how many assembled batches may be queued for inference, and how many tiles may be read
+     * at the same time.
+     * A value of 0 (the default) means that no budget is used: the number of queued batches is then based on the
+     * batch size and number of tile workers, and reads are never delayed.
+     */
+    public static Property<Integer> memoryBudgetMBProperty() {
+        return memoryBudgetMBProperty;
+    }
+
+    /**
+     * Integer storing the number of times a failed tile read should be retried before the tile is recorded as failed.
+     */
+    public static Property<Integer> maxRetriesProperty() {
+        return maxRetriesProperty;
+    }
+
+    /**
+     * Integer storing the maximum time in seconds to wait without any tiles being loaded, before tile loading
+     * is stopped and the remaining tiles are recorded as failed.
+     * A value of 0 means that loading is never stopped.
+     */
+    public static Property<Integer> stallTimeoutSecondsProperty() {
+        return stallTimeoutSecondsProperty;
+    }
+
+    /**
+     * Integer storing the number of predictors that run inference concurrently, sharing the same model.
+     * When using the CPU, PyTorch's intra-op thread count is reduced for the run so that the available processors
+     * are shared between them (this is a process-wide setting, which is restored afterwards).
+     */
+    public static Property<Integer> numPredictorsProperty() {
+        return numPredictorsProperty;
+    }
+
+    /**
+     * Boolean storing whether uploading batches, running the model and writing results should be overlapped
+     * in separate pipeline stages.
+     * This is off by default.
+     */
+    public static BooleanProperty pipelineInferenceProperty() {
+        return pipelineInferenceProperty;
+    }
+
+    /**
+     * Boolean storing whether the number of tile workers and the batch size should be adjusted automatically
+     * during inference, starting from the values of {@link #numWorkersProperty()} and {@link #batchSizeProperty()}.
+     */
+    public static BooleanProperty adaptiveLoadingProperty() {
+        return adaptiveLoadingProperty;
+    }
+
+    /**
+     * Test-time augmentation to apply to each tile, averaging the predictions for all the augmented variants.
+     * This requires tiles to be preprocessed into tensors, which is done whenever augmentation is requested
+     * (regardless of {@link #directTensorsProperty()}) if the model's transforms permit it.
+     * Otherwise, augmentation is not applied and a warning is shown.
+     */
+    public static ObjectProperty<TestTimeAugmentation> testTimeAugmentationProperty() {
+        return testTimeAugmentationProperty;
+    }
+
+    /**
+     * Numerical precision used for inference.
+     * Reduced precisions require a converted TorchScript file alongside the original model,
+     * otherwise float32 is used.
+     */
+    public static ObjectProperty<InferencePrecision> inferencePrecisionProperty() {
+        return inferencePrecisionProperty;
+    }
+
+    /**
+     * Integer storing the maximum number of loaded models to keep in memory between runs.
+     * A value of 0 means that each model is closed as soon as inference is complete.
+     */
+    public static Property<Integer> modelCacheSizeProperty() {
+        return modelCacheSizeProperty;
+    }
+
+    /**
+     * Integer storing the maximum estimated memory in MB of the loaded models to keep between runs,
+     * based upon the size of the TorchScript files.
+     * A value of 0 means that only the number of models is limited.
+     */
+    public static Property<Integer> modelCacheMaxMBProperty() {
+        return modelCacheMaxMBProperty;
+    }
+
     private static Path getUserDir() {
         Path userPath = UserDirectoryManager.getInstance().getUserPath();
         Path cachePath = Paths.get(System.getProperty("user.dir"), ".cache", "QuPath");
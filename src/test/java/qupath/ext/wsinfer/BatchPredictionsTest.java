@@ -0,0 +1,75 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BatchPredictionsTest {
+
+    @Test
+    void testTileMajorOrder() {
+        float[] probabilities = {
+                0.1f, 0.7f, 0.2f,
+                0.6f, 0.3f, 0.1f
+        };
+        var predictions = new BatchPredictions(3, probabilities, new int[] {1, 0}, null, null);
+        assertEquals(2, predictions.size());
+        assertEquals(3, predictions.getNumClasses());
+        for (int tile = 0; tile < 2; tile++) {
+            for (int c = 0; c < 3; c++)
+                assertEquals(probabilities[tile * 3 + c], predictions.getProbability(tile, c));
+        }
+        assertEquals(1, predictions.getTopClass(0));
+        assertEquals(0, predictions.getTopClass(1));
+        assertFalse(predictions.hasUncertainty());
+    }
+
+    @Test
+    void testUncertainty() {
+        var predictions = new BatchPredictions(2, new float[] {0.5f, 0.5f, 0.9f, 0.1f}, new int[] {0, 0},
+                new float[] {0.01f, 0.02f}, new float[] {0.69f, 0.33f});
+        assertTrue(predictions.hasUncertainty());
+        assertEquals(0.01f, predictions.getVariance(0));
+        assertEquals(0.02f, predictions.getVariance(1));
+        assertEquals(0.69f, predictions.getEntropy(0));
+        assertEquals(0.33f, predictions.getEntropy(1));
+
+        // Both are needed
+        assertFalse(new BatchPredictions(2, new float[2], new int[1], new float[1], null).hasUncertainty());
+        assertFalse(new BatchPredictions(2, new float[2], new int[1], null, new float[1]).hasUncertainty());
+    }
+
+    @Test
+    void testEmpty() {
+        var predictions = BatchPredictions.empty(4);
+        assertEquals(0, predictions.size());
+        assertEquals(4, predictions.getNumClasses());
+        assertFalse(predictions.hasUncertainty());
+    }
+
+    @Test
+    void testInvalidLength() {
+        assertThrows(IllegalArgumentException.class, () -> new BatchPredictions(3, new float[5], new int[2], null, null));
+        assertThrows(IllegalArgumentException.class, () -> new BatchPredictions(3, new float[6], new int[3], null, null));
+    }
+
+}
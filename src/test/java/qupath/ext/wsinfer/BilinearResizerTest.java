@@ -0,0 +1,160 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Expected values are those given by Pillow's {@code Image.resize(size, Image.BILINEAR)}.
+ */
+class BilinearResizerTest {
+
+    @Test
+    void testDownsampleByTwo() {
+        assertArrayEquals(new int[] {50, 160}, resizeRow(new int[] {0, 70, 140, 210}, 2));
+    }
+
+    @Test
+    void testDownsampleNonInteger() {
+        assertArrayEquals(new int[] {30, 130}, resizeRow(new int[] {0, 80, 160}, 2));
+    }
+
+    @Test
+    void testUpsample() {
+        // Edge pixels are only influenced by the nearest input pixel
+        assertArrayEquals(new int[] {0, 25, 75, 100}, resizeRow(new int[] {0, 100}, 4));
+    }
+
+    @Test
+    void testVertical() {
+        var img = new BufferedImage(1, 4, BufferedImage.TYPE_BYTE_GRAY);
+        img.getRaster().setPixels(0, 0, 1, 4, new int[] {0, 70, 140, 210});
+        var dest = new BufferedImage(1, 2, BufferedImage.TYPE_BYTE_GRAY);
+        new BilinearResizer().resize(img, dest);
+        assertArrayEquals(new int[] {50, 160}, dest.getRaster().getPixels(0, 0, 1, 2, (int[])null));
+    }
+
+    @Test
+    void testSeparable() {
+        // Each row is resized horizontally, then each column vertically
+        var img = new BufferedImage(4, 4, BufferedImage.TYPE_BYTE_GRAY);
+        int[] values = {0, 70, 140, 210};
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++)
+                img.getRaster().setSample(x, y, 0, (values[x] + values[y]) / 2);
+        }
+        var dest = new BufferedImage(2, 2, BufferedImage.TYPE_BYTE_GRAY);
+        new BilinearResizer().resize(img, dest);
+        assertArrayEquals(new int[] {50, 105, 105, 160}, dest.getRaster().getPixels(0, 0, 2, 2, (int[])null));
+    }
+
+    @Test
+    void testConstantImage() {
+        var resizer = new BilinearResizer();
+        for (int[] size : new int[][] {{7, 5}, {224, 224}, {3, 11}}) {
+            var img = new BufferedImage(17, 13, BufferedImage.TYPE_3BYTE_BGR);
+            fill(img, 0x4080c0);
+            var dest = new BufferedImage(size[0], size[1], BufferedImage.TYPE_3BYTE_BGR);
+            resizer.resize(img, dest);
+            for (int y = 0; y < size[1]; y++) {
+                for (int x = 0; x < size[0]; x++)
+                    assertEquals(0x4080c0, dest.getRGB(x, y) & 0xffffff);
+            }
+        }
+    }
+
+    @Test
+    void testBandsAreIndependent() {
+        for (int type : new int[] {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR}) {
+            var img = new BufferedImage(4, 1, type);
+            int[] values = {0, 70, 140, 210};
+            for (int x = 0; x < 4; x++)
+                img.setRGB(x, 0, (values[x] << 16) | ((255 - values[x]) << 8) | 100);
+            var dest = new BufferedImage(2, 1, type);
+            new BilinearResizer().resize(img, dest);
+            assertArrayEquals(new int[] {50, 205, 100, 160, 95, 100},
+                    new int[] {
+                            red(dest, 0), green(dest, 0), blue(dest, 0),
+                            red(dest, 1), green(dest, 1), blue(dest, 1)});
+        }
+    }
+
+    @Test
+    void testSubimage() {
+        // Tiles extracted from a coalesced region share the raster of the larger image
+        var region = new BufferedImage(40, 30, BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0; y < 30; y++) {
+            for (int x = 0; x < 40; x++)
+                region.setRGB(x, y, (x * 5) << 16 | (y * 7) << 8 | ((x + y) * 3));
+        }
+        var tile = region.getSubimage(9, 6, 20, 16);
+        var copy = new BufferedImage(20, 16, BufferedImage.TYPE_3BYTE_BGR);
+        copy.getRaster().setRect(tile.getRaster().createTranslatedChild(0, 0));
+
+        var resizer = new BilinearResizer();
+        var destTile = new BufferedImage(9, 7, BufferedImage.TYPE_3BYTE_BGR);
+        var destCopy = new BufferedImage(9, 7, BufferedImage.TYPE_3BYTE_BGR);
+        resizer.resize(tile, destTile);
+        resizer.resize(copy, destCopy);
+        assertArrayEquals(destCopy.getRGB(0, 0, 9, 7, null, 0, 9), destTile.getRGB(0, 0, 9, 7, null, 0, 9));
+    }
+
+    @Test
+    void testCanResize() {
+        var resizer = new BilinearResizer();
+        assertTrue(resizer.canResize(new BufferedImage(2, 2, BufferedImage.TYPE_INT_RGB)));
+        assertTrue(resizer.canResize(new BufferedImage(2, 2, BufferedImage.TYPE_3BYTE_BGR)));
+        assertTrue(resizer.canResize(new BufferedImage(2, 2, BufferedImage.TYPE_BYTE_GRAY)));
+        assertFalse(resizer.canResize(new BufferedImage(2, 2, BufferedImage.TYPE_USHORT_GRAY)));
+        assertFalse(resizer.canResize(new BufferedImage(2, 2, BufferedImage.TYPE_USHORT_565_RGB)));
+    }
+
+    private static int[] resizeRow(int[] values, int outWidth) {
+        var img = new BufferedImage(values.length, 1, BufferedImage.TYPE_BYTE_GRAY);
+        img.getRaster().setPixels(0, 0, values.length, 1, values);
+        var dest = new BufferedImage(outWidth, 1, BufferedImage.TYPE_BYTE_GRAY);
+        new BilinearResizer().resize(img, dest);
+        return dest.getRaster().getPixels(0, 0, outWidth, 1, (int[])null);
+    }
+
+    private static void fill(BufferedImage img, int rgb) {
+        for (int y = 0; y < img.getHeight(); y++) {
+            for (int x = 0; x < img.getWidth(); x++)
+                img.setRGB(x, y, rgb);
+        }
+    }
+
+    private static int red(BufferedImage img, int x) {
+        return (img.getRGB(x, 0) >> 16) & 0xff;
+    }
+
+    private static int green(BufferedImage img, int x) {
+        return (img.getRGB(x, 0) >> 8) & 0xff;
+    }
+
+    private static int blue(BufferedImage img, int x) {
+        return img.getRGB(x, 0) & 0xff;
+    }
+
+}
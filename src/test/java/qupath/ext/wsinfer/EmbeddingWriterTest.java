@@ -0,0 +1,143 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EmbeddingWriterTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testWritesRowsAndIndex() throws IOException {
+        var path = dir.resolve("embeddings.bin");
+        var tiles = createTiles(3);
+        try (var writer = new EmbeddingWriter(path, "Model", 5)) {
+            writer.append(tiles.subList(0, 2), new float[] {1, 2, 3, 4, 5, 6});
+            writer.append(tiles.subList(2, 3), new float[] {7, 8, 9});
+            assertEquals(3, writer.getRows());
+            assertEquals(3, writer.getDimension());
+        }
+        // Unused rows are removed when the writer is closed
+        assertArrayEquals(new float[] {1, 2, 3, 4, 5, 6, 7, 8, 9}, readMatrix(path), 0f);
+
+        var index = Files.readAllLines(dir.resolve("embeddings.csv"));
+        assertEquals(4, index.size());
+        assertEquals("row,id,x,y,width,height", index.get(0));
+        for (int i = 0; i < tiles.size(); i++) {
+            var roi = tiles.get(i).getROI();
+            assertEquals(i + "," + tiles.get(i).getID() + "," + roi.getBoundsX() + "," + roi.getBoundsY() + "," +
+                    roi.getBoundsWidth() + "," + roi.getBoundsHeight(), index.get(i + 1));
+        }
+
+        var metadata = Files.readString(dir.resolve("embeddings.json"));
+        assertTrue(metadata.contains("\"rows\": 3"), metadata);
+        assertTrue(metadata.contains("\"dimension\": 3"), metadata);
+        assertTrue(metadata.contains("\"matrix\": \"embeddings.bin\""), metadata);
+    }
+
+    @Test
+    void testRowsSpanRegions() throws IOException {
+        var path = dir.resolve("embeddings.bin");
+        var tiles = createTiles(5);
+        int dim = 2;
+        float[] expected = new float[tiles.size() * dim];
+        for (int i = 0; i < expected.length; i++)
+            expected[i] = i * 0.5f;
+        // Each region holds 2 rows, so both batches are split between regions
+        try (var writer = new EmbeddingWriter(path, "Model", tiles.size(), 2 * dim * Float.BYTES)) {
+            writer.append(tiles.subList(0, 3), copyRows(expected, 0, 3, dim));
+            writer.append(tiles.subList(3, 5), copyRows(expected, 3, 5, dim));
+        }
+        assertArrayEquals(expected, readMatrix(path), 0f);
+    }
+
+    @Test
+    void testRegionSmallerThanRow() throws IOException {
+        var path = dir.resolve("embeddings.bin");
+        var tiles = createTiles(3);
+        try (var writer = new EmbeddingWriter(path, "Model", tiles.size(), 1)) {
+            writer.append(tiles, new float[] {1, 2, 3, 4, 5, 6});
+        }
+        assertArrayEquals(new float[] {1, 2, 3, 4, 5, 6}, readMatrix(path), 0f);
+    }
+
+    @Test
+    void testNoRows() throws IOException {
+        var path = dir.resolve("embeddings.bin");
+        try (var writer = new EmbeddingWriter(path, "Model", 10)) {
+            writer.append(List.of(), new float[0]);
+            assertEquals(-1, writer.getDimension());
+        }
+        assertEquals(0, Files.size(path));
+        var metadata = Files.readString(dir.resolve("embeddings.json"));
+        assertTrue(metadata.contains("\"rows\": 0"), metadata);
+        assertTrue(metadata.contains("\"dimension\": 0"), metadata);
+    }
+
+    @Test
+    void testInvalidEmbeddings() throws IOException {
+        var tiles = createTiles(3);
+        try (var writer = new EmbeddingWriter(dir.resolve("embeddings.bin"), "Model", 2)) {
+            assertThrows(IllegalArgumentException.class, () -> writer.append(tiles.subList(0, 2), new float[5]));
+            writer.append(tiles.subList(0, 1), new float[4]);
+            assertThrows(IllegalArgumentException.class, () -> writer.append(tiles.subList(1, 2), new float[3]));
+            assertThrows(IllegalStateException.class, () -> writer.append(tiles.subList(1, 3), new float[8]));
+            assertEquals(1, writer.getRows());
+        }
+    }
+
+    private static List<PathObject> createTiles(int n) {
+        List<PathObject> tiles = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+            tiles.add(PathObjects.createTileObject(ROIs.createRectangleROI(i * 224, 448, 224, 224, ImagePlane.getDefaultPlane())));
+        return tiles;
+    }
+
+    private static float[] copyRows(float[] values, int fromRow, int toRow, int dim) {
+        float[] rows = new float[(toRow - fromRow) * dim];
+        System.arraycopy(values, fromRow * dim, rows, 0, rows.length);
+        return rows;
+    }
+
+    private static float[] readMatrix(Path path) throws IOException {
+        var buffer = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        float[] values = new float[buffer.remaining()];
+        buffer.get(values);
+        return values;
+    }
+
+}
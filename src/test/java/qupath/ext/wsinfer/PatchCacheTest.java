@@ -0,0 +1,185 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PatchCacheTest {
+
+    private static final long MAX_BYTES = 1024L * 1024L;
+
+    @TempDir
+    Path cacheDir;
+
+    private final TileBufferPool pool = new TileBufferPool(4);
+
+    @Test
+    void testRoundTrip() throws IOException {
+        for (int type : new int[] {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR}) {
+            var img = createImage(16, 12, type, 1);
+            String key = "image|type=" + type;
+            try (var cache = PatchCache.open(cacheDir, key, MAX_BYTES)) {
+                cache.write(100, 200, 0, 0, img);
+                checkEqual(img, cache.read(100, 200, 0, 0, pool));
+                assertNull(cache.read(100, 200, 1, 0, pool));
+            }
+            // Reopening the store should give the same pixels without writing again
+            try (var cache = PatchCache.open(cacheDir, key, MAX_BYTES)) {
+                assertEquals(1, cache.size());
+                checkEqual(img, cache.read(100, 200, 0, 0, pool));
+            }
+        }
+    }
+
+    @Test
+    void testManyPatches() throws IOException {
+        // Use more than one chunk file
+        int n = PatchCache.PATCHES_PER_CHUNK + 10;
+        try (var cache = PatchCache.open(cacheDir, "image", MAX_BYTES)) {
+            for (int i = 0; i < n; i++)
+                cache.write(i * 8, 0, 0, 0, createImage(8, 8, BufferedImage.TYPE_INT_RGB, i));
+        }
+        try (var cache = PatchCache.open(cacheDir, "image", MAX_BYTES)) {
+            assertEquals(n, cache.size());
+            for (int i = 0; i < n; i++)
+                checkEqual(createImage(8, 8, BufferedImage.TYPE_INT_RGB, i), cache.read(i * 8, 0, 0, 0, pool));
+        }
+    }
+
+    @Test
+    void testBackground() throws IOException {
+        try (var cache = PatchCache.open(cacheDir, "image", MAX_BYTES)) {
+            cache.writeBackground(10, 20, 0, 0);
+        }
+        try (var cache = PatchCache.open(cacheDir, "image", MAX_BYTES)) {
+            assertTrue(cache.isBackground(10, 20, 0, 0));
+            assertFalse(cache.isBackground(20, 10, 0, 0));
+            assertNull(cache.read(10, 20, 0, 0, pool));
+        }
+    }
+
+    @Test
+    void testKeysAreSeparate() throws IOException {
+        try (var cache = PatchCache.open(cacheDir, "image|coalesce=1", MAX_BYTES)) {
+            cache.write(0, 0, 0, 0, createImage(8, 8, BufferedImage.TYPE_INT_RGB, 1));
+        }
+        try (var cache = PatchCache.open(cacheDir, "image|coalesce=4", MAX_BYTES)) {
+            assertEquals(0, cache.size());
+            assertNull(cache.read(0, 0, 0, 0, pool));
+        }
+    }
+
+    @Test
+    void testIncompatiblePatchIsSkipped() throws IOException {
+        try (var cache = PatchCache.open(cacheDir, "image", MAX_BYTES)) {
+            cache.write(0, 0, 0, 0, createImage(8, 8, BufferedImage.TYPE_INT_RGB, 1));
+            cache.write(8, 0, 0, 0, createImage(4, 4, BufferedImage.TYPE_INT_RGB, 1));
+            cache.write(16, 0, 0, 0, createImage(8, 8, BufferedImage.TYPE_3BYTE_BGR, 1));
+            assertEquals(1, cache.size());
+            assertNull(cache.read(8, 0, 0, 0, pool));
+        }
+    }
+
+    @Test
+    void testFullStoreStopsAcceptingPatches() throws IOException {
+        // Each 8x8 packed RGB patch requires 256 bytes
+        try (var cache = PatchCache.open(cacheDir, "image", 256 * 3)) {
+            for (int i = 0; i < 5; i++)
+                cache.write(i * 8, 0, 0, 0, createImage(8, 8, BufferedImage.TYPE_INT_RGB, i));
+            assertEquals(3, cache.size());
+            assertNotNull(cache.read(16, 0, 0, 0, pool));
+            assertNull(cache.read(24, 0, 0, 0, pool));
+        }
+    }
+
+    @Test
+    void testEviction() throws IOException {
+        // Each store needs a full chunk of 8x8 packed RGB patches on disk
+        long storeBytes = PatchCache.PATCHES_PER_CHUNK * 256L;
+        long maxBytes = storeBytes * 5 / 2;
+        for (String key : new String[] {"old", "recent"}) {
+            try (var cache = PatchCache.open(cacheDir, key, maxBytes)) {
+                cache.write(0, 0, 0, 0, createImage(8, 8, BufferedImage.TYPE_INT_RGB, 1));
+            }
+        }
+        Path oldStore = findStore("old");
+        Path recentStore = findStore("recent");
+        Files.setLastModifiedTime(oldStore, FileTime.fromMillis(1000L));
+        Files.setLastModifiedTime(recentStore, FileTime.fromMillis(2000L));
+
+        // Both stores fit within the limit, so nothing is evicted
+        try (var cache = PatchCache.open(cacheDir, "new", maxBytes)) {
+            cache.write(0, 0, 0, 0, createImage(8, 8, BufferedImage.TYPE_INT_RGB, 1));
+        }
+        assertTrue(Files.isDirectory(oldStore));
+
+        // Opening another store should evict the least recently used store to stay within the limit
+        Files.setLastModifiedTime(findStore("new"), FileTime.fromMillis(3000L));
+        try (var cache = PatchCache.open(cacheDir, "recent", maxBytes)) {
+            assertEquals(1, cache.size());
+        }
+        assertFalse(Files.exists(oldStore));
+        assertTrue(Files.isDirectory(recentStore));
+
+        try (var cache = PatchCache.open(cacheDir, "old", maxBytes)) {
+            assertEquals(0, cache.size());
+        }
+    }
+
+    private Path findStore(String key) throws IOException {
+        try (Stream<Path> paths = Files.list(cacheDir)) {
+            for (Path path : paths.toList()) {
+                if (Files.readAllLines(path.resolve("store.properties")).contains("key=" + key))
+                    return path;
+            }
+        }
+        throw new AssertionError("No store found for " + key);
+    }
+
+    private static void checkEqual(BufferedImage expected, BufferedImage actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getType(), actual.getType());
+        int w = expected.getWidth();
+        int h = expected.getHeight();
+        assertArrayEquals(expected.getRGB(0, 0, w, h, null, 0, w), actual.getRGB(0, 0, w, h, null, 0, w));
+    }
+
+    private static BufferedImage createImage(int width, int height, int type, int seed) {
+        var img = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++)
+                img.setRGB(x, y, (x * 13 + seed) << 16 | (y * 29 + seed) << 8 | (x * y + seed * 7));
+        }
+        return img;
+    }
+
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import org.junit.jupiter.api.Test;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProbabilityGridTest {
+
+    private static final int TILE_SIZE = 100;
+
+    @Test
+    void testOffsetTilingsAreAligned() {
+        // Tiles for two annotations, each centered within its own annotation so that the grids are offset
+        List<ROI> first = createTiles(0, 0, 3, 2);
+        List<ROI> second = createTiles(350, 230, 2, 2);
+        var grid = createGrid(first, second);
+        assertEquals(2, grid.getLayerCount());
+        assertEquals(TILE_SIZE, grid.getCellSize());
+
+        setAll(grid, first, 0);
+        setAll(grid, second, first.size());
+        checkTiles(grid, first, 0);
+        checkTiles(grid, second, first.size());
+
+        // Between the annotations, there is no prediction
+        assertTrue(Float.isNaN(grid.get(320, 100, 0)));
+        assertTrue(Float.isNaN(grid.get(345, 235, 0)));
+    }
+
+    @Test
+    void testMixedSizeDetections() {
+        var tile = List.of(ROIs.createRectangleROI(0, 0, TILE_SIZE, TILE_SIZE, ImagePlane.getDefaultPlane()));
+        var detections = List.of(
+                ROIs.createRectangleROI(500, 500, 30, 20, ImagePlane.getDefaultPlane()),
+                ROIs.createRectangleROI(512, 530, 30, 20, ImagePlane.getDefaultPlane()),
+                ROIs.createRectangleROI(600, 400, 45, 45, ImagePlane.getDefaultPlane()));
+        var grid = createGrid(tile, detections);
+        assertEquals(30, grid.getCellSize());
+
+        setAll(grid, tile, 0);
+        setAll(grid, detections, 1);
+        checkTiles(grid, tile, 0);
+        checkTiles(grid, detections, 1);
+        assertTrue(Float.isNaN(grid.get(505, 525, 0)));
+        assertTrue(Float.isNaN(grid.get(300, 300, 0)));
+    }
+
+    @Test
+    void testReadMatchesGet() {
+        List<ROI> first = createTiles(0, 0, 3, 2);
+        List<ROI> second = createTiles(350, 230, 2, 2);
+        var grid = createGrid(first, second);
+        setAll(grid, first, 0);
+        setAll(grid, second, first.size());
+
+        for (double downsample : new double[] {7, TILE_SIZE, 2.5 * TILE_SIZE}) {
+            double x = -20, y = -15;
+            int width = (int)Math.ceil(600 / downsample);
+            int height = (int)Math.ceil(500 / downsample);
+            float[][] banks = new float[grid.getNumClasses()][width * height];
+            grid.read(x, y, downsample, width, height, banks);
+            for (int j = 0; j < height; j++) {
+                for (int i = 0; i < width; i++) {
+                    double px = x + (i + 0.5) * downsample;
+                    double py = y + (j + 0.5) * downsample;
+                    for (int c = 0; c < grid.getNumClasses(); c++)
+                        assertEquals(grid.get(px, py, c), banks[c][j * width + i], 0f,
+                                "Pixel (" + i + ", " + j + ") at downsample " + downsample);
+                }
+            }
+        }
+    }
+
+    @Test
+    void testOverlappingLayersUseFirstPrediction() {
+        List<ROI> first = createTiles(0, 0, 2, 1);
+        List<ROI> second = createTiles(50, 0, 2, 1);
+        var grid = createGrid(first, second);
+        // Only the second tile of the first layer has a prediction, e.g. because the first was background
+        grid.set(first.get(1), createPredictions(1), 0);
+        setAll(grid, second, 10);
+        assertEquals(10f, grid.get(75, 50, 0));
+        assertEquals(1f, grid.get(125, 50, 0));
+        assertEquals(11f, grid.get(225, 50, 0));
+    }
+
+    @Test
+    void testUnknownTileIgnored() {
+        var tiles = createTiles(0, 0, 2, 2);
+        var grid = createGrid(tiles);
+        grid.set(ROIs.createRectangleROI(1000, 1000, TILE_SIZE, TILE_SIZE, ImagePlane.getDefaultPlane()), createPredictions(5), 0);
+        grid.set(ROIs.createRectangleROI(10, 10, TILE_SIZE, TILE_SIZE, ImagePlane.getDefaultPlane()), createPredictions(5), 0);
+        for (var tile : tiles)
+            assertTrue(Float.isNaN(grid.get(tile.getBoundsX() + 1, tile.getBoundsY() + 1, 0)));
+    }
+
+    @Test
+    void testNoTiles() {
+        assertThrows(IllegalArgumentException.class, () -> ProbabilityGrid.builder(2).build());
+    }
+
+    @SafeVarargs
+    private static ProbabilityGrid createGrid(List<? extends ROI>... tileLists) {
+        var builder = ProbabilityGrid.builder(2);
+        for (var tiles : tileLists) {
+            for (var roi : tiles)
+                builder.add(roi);
+        }
+        return builder.build();
+    }
+
+    private static List<ROI> createTiles(double x, double y, int nx, int ny) {
+        List<ROI> tiles = new ArrayList<>();
+        for (int j = 0; j < ny; j++) {
+            for (int i = 0; i < nx; i++)
+                tiles.add(ROIs.createRectangleROI(x + i * TILE_SIZE, y + j * TILE_SIZE, TILE_SIZE, TILE_SIZE,
+                        ImagePlane.getDefaultPlane()));
+        }
+        return tiles;
+    }
+
+    /**
+     * Set the prediction for each tile, so that the probability of the first class identifies the tile.
+     */
+    private static void setAll(ProbabilityGrid grid, List<? extends ROI> tiles, int firstValue) {
+        for (int i = 0; i < tiles.size(); i++)
+            grid.set(tiles.get(i), createPredictions(firstValue + i), 0);
+    }
+
+    /**
+     * Check that the prediction at each corner of a tile is its own.
+     */
+    private static void checkTiles(ProbabilityGrid grid, List<? extends ROI> tiles, int firstValue) {
+        for (int i = 0; i < tiles.size(); i++) {
+            var roi = tiles.get(i);
+            float expected = firstValue + i;
+            for (double dx : new double[] {0.5, roi.getBoundsWidth() - 0.5}) {
+                for (double dy : new double[] {0.5, roi.getBoundsHeight() - 0.5}) {
+                    double x = roi.getBoundsX() + dx;
+                    double y = roi.getBoundsY() + dy;
+                    assertEquals(expected, grid.get(x, y, 0), "Tile " + i + " at (" + x + ", " + y + ")");
+                    assertEquals(-expected, grid.get(x, y, 1));
+                }
+            }
+        }
+    }
+
+    private static BatchPredictions createPredictions(float value) {
+        return new BatchPredictions(2, new float[] {value, -value}, new int[] {0}, null, null);
+    }
+
+}
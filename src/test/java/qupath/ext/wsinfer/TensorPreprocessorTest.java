@@ -0,0 +1,122 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TensorPreprocessorTest {
+
+    private static final float[] MEAN = {0.485f, 0.456f, 0.406f};
+    private static final float[] STD = {0.229f, 0.224f, 0.225f};
+
+    @Test
+    void testByteImageMatchesReference() {
+        checkMatchesReference(createImage(BufferedImage.TYPE_3BYTE_BGR, 13, 7));
+    }
+
+    @Test
+    void testIntImageMatchesReference() {
+        checkMatchesReference(createImage(BufferedImage.TYPE_INT_RGB, 13, 7));
+        checkMatchesReference(createImage(BufferedImage.TYPE_INT_ARGB, 13, 7));
+    }
+
+    @Test
+    void testOtherImageMatchesReference() {
+        checkMatchesReference(createImage(BufferedImage.TYPE_USHORT_565_RGB, 13, 7));
+    }
+
+    @Test
+    void testSubimageMatchesReference() {
+        // Coalesced reads give tiles that share their raster with a larger region
+        for (int type : new int[] {BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_INT_RGB}) {
+            var region = createImage(type, 40, 30);
+            checkMatchesReference(region.getSubimage(11, 5, 16, 9));
+        }
+    }
+
+    @Test
+    void testWriteAtIndex() {
+        var img = createImage(BufferedImage.TYPE_INT_RGB, 4, 3);
+        var preprocessor = new TensorPreprocessor(MEAN, STD);
+        int offset = 3 * 4 * 3 * 2;
+        var buffer = FloatBuffer.allocate(offset + 3 * 4 * 3);
+        preprocessor.write(img, buffer, offset);
+        float[] actual = new float[3 * 4 * 3];
+        buffer.get(offset, actual);
+        assertArrayEquals(reference(img, MEAN, STD), actual, 1e-5f);
+    }
+
+    @Test
+    void testNoNormalization() {
+        var img = createImage(BufferedImage.TYPE_3BYTE_BGR, 5, 5);
+        var buffer = FloatBuffer.allocate(3 * 5 * 5);
+        new TensorPreprocessor(null, null).write(img, buffer, 0);
+        assertArrayEquals(reference(img, new float[] {0, 0, 0}, new float[] {1, 1, 1}), buffer.array(), 1e-6f);
+    }
+
+    @Test
+    void testInvalidNormalization() {
+        assertThrows(IllegalArgumentException.class, () -> new TensorPreprocessor(new float[] {0.5f}, STD));
+        assertThrows(IllegalArgumentException.class, () -> new TensorPreprocessor(MEAN, new float[] {0.5f, 0.5f}));
+        assertThrows(IllegalArgumentException.class, () -> new TensorPreprocessor(new float[] {0, 0, 0, 0}, STD));
+    }
+
+    private static void checkMatchesReference(BufferedImage img) {
+        var preprocessor = new TensorPreprocessor(MEAN, STD);
+        var buffer = FloatBuffer.allocate(3 * img.getWidth() * img.getHeight());
+        preprocessor.write(img, buffer, 0);
+        assertArrayEquals(reference(img, MEAN, STD), buffer.array(), 1e-5f);
+    }
+
+    /**
+     * Compute the expected CHW tensor in the same way as ToTensor followed by Normalize.
+     */
+    private static float[] reference(BufferedImage img, float[] mean, float[] std) {
+        int w = img.getWidth();
+        int h = img.getHeight();
+        float[] output = new float[3 * w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int rgb = img.getRGB(x, y);
+                int[] values = {(rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff};
+                for (int c = 0; c < 3; c++) {
+                    output[c * w * h + y * w + x] = (values[c] / 255f - mean[c]) / std[c];
+                }
+            }
+        }
+        return output;
+    }
+
+    private static BufferedImage createImage(int type, int width, int height) {
+        var img = new BufferedImage(width, height, type);
+        var random = new Random(width * 31L + height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                img.setRGB(x, y, 0xff000000 | random.nextInt(0x1000000));
+            }
+        }
+        return img;
+    }
+
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import ai.djl.engine.Engine;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+/**
+ * Checks that the order of the variants created by {@link TestTimeAugmentation#augment(NDArray)} matches
+ * the order assumed by {@link TensorBatchTranslator} when averaging the model output for each tile.
+ * <p>
+ * These tests need a DJL engine, and are skipped if none is available.
+ */
+class TestTimeAugmentationTest {
+
+    private static final int N_TILES = 3;
+    private static final int N_CHANNELS = 2;
+    private static final int SIZE = 2;
+
+    private static final List<String> CLASSES = List.of("First", "Second");
+
+    @BeforeAll
+    static void checkEngine() {
+        assumeFalse(Engine.getAllEngines().isEmpty(), "No DJL engine available");
+    }
+
+    @Test
+    void testNoneReturnsBatch() {
+        try (var manager = NDManager.newBaseManager()) {
+            var batch = createBatch(manager);
+            assertSame(batch, TestTimeAugmentation.NONE.augment(batch));
+        }
+    }
+
+    @Test
+    void testFlipsAreVariantMajor() {
+        try (var manager = NDManager.newBaseManager()) {
+            var batch = createBatch(manager);
+            var augmented = TestTimeAugmentation.FLIPS.augment(batch);
+            assertEquals(new Shape(4 * N_TILES, N_CHANNELS, SIZE, SIZE), augmented.getShape());
+            // Rows [v * N, (v + 1) * N) are variant v of every tile, in the original tile order
+            int[][] corners = {{0, 0}, {0, 1}, {1, 0}, {1, 1}};
+            float[] topLeft = identityModel(augmented).toFloatArray();
+            for (int v = 0; v < corners.length; v++) {
+                for (int i = 0; i < N_TILES; i++) {
+                    for (int c = 0; c < N_CHANNELS; c++) {
+                        assertEquals(value(i, c, corners[v][0], corners[v][1]),
+                                topLeft[(v * N_TILES + i) * N_CHANNELS + c], 1e-6,
+                                "Variant " + v + ", tile " + i + ", channel " + c);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void testDihedralContainsEachCornerTwicePerTile() {
+        try (var manager = NDManager.newBaseManager()) {
+            var batch = createBatch(manager);
+            var augmented = TestTimeAugmentation.DIHEDRAL.augment(batch);
+            assertEquals(new Shape(8 * N_TILES, N_CHANNELS, SIZE, SIZE), augmented.getShape());
+            float[] topLeft = identityModel(augmented).toFloatArray();
+            for (int i = 0; i < N_TILES; i++) {
+                for (int c = 0; c < N_CHANNELS; c++) {
+                    int[] counts = new int[SIZE * SIZE];
+                    for (int v = 0; v < 8; v++) {
+                        float val = topLeft[(v * N_TILES + i) * N_CHANNELS + c];
+                        int corner = Math.round(val - value(i, c, 0, 0));
+                        assertTrue(corner >= 0 && corner < counts.length,
+                                "Variant " + v + " of tile " + i + " came from another tile");
+                        counts[corner]++;
+                    }
+                    for (int count : counts)
+                        assertEquals(2, count);
+                }
+            }
+        }
+    }
+
+    @Test
+    void testFlipsAveragedPerTile() {
+        checkAveragedPerTile(TestTimeAugmentation.FLIPS);
+    }
+
+    @Test
+    void testDihedralAveragedPerTile() {
+        checkAveragedPerTile(TestTimeAugmentation.DIHEDRAL);
+    }
+
+    /**
+     * Pass a batch through the translator with a model that returns the top left pixel of each channel.
+     * The top left pixels of the variants of a 2x2 tile are its corners, so the average for each tile should be
+     * the mean of its own pixels - and would include pixels from other tiles if the output were reshaped in the
+     * wrong order.
+     */
+    private static void checkAveragedPerTile(TestTimeAugmentation augmentation) {
+        var translator = new TensorBatchTranslator(CLASSES, false, augmentation, InferencePrecision.FP32);
+        try (var manager = NDManager.newBaseManager()) {
+            var input = translator.processInput(null, new NDList(createBatch(manager)));
+            var output = identityModel(input.singletonOrThrow());
+            var predictions = translator.processOutput(null, new NDList(output));
+
+            assertEquals(N_TILES, predictions.size());
+            assertEquals(N_CHANNELS, predictions.getNumClasses());
+            assertTrue(predictions.hasUncertainty());
+            for (int i = 0; i < N_TILES; i++) {
+                for (int c = 0; c < N_CHANNELS; c++) {
+                    // Corner values are offset by 0, 1, 2 and 3, so the mean is offset by 1.5
+                    assertEquals(value(i, c, 0, 0) + 1.5f, predictions.getProbability(i, c), 1e-5);
+                }
+                // The second channel is always larger
+                assertEquals(1, predictions.getTopClass(i));
+                // Each corner is seen equally often, with squared deviations of 2.25, 0.25, 0.25 and 2.25
+                assertEquals(1.25f, predictions.getVariance(i), 1e-5);
+            }
+        }
+    }
+
+    /**
+     * Stand-in for a model, which outputs the top left pixel of each channel as the logit for that class.
+     */
+    private static NDArray identityModel(NDArray batch) {
+        return batch.get(":, :, 0, 0");
+    }
+
+    /**
+     * Create an NCHW batch where every pixel value identifies its tile, channel and position.
+     */
+    private static NDArray createBatch(NDManager manager) {
+        float[] values = new float[N_TILES * N_CHANNELS * SIZE * SIZE];
+        int ind = 0;
+        for (int i = 0; i < N_TILES; i++) {
+            for (int c = 0; c < N_CHANNELS; c++) {
+                for (int y = 0; y < SIZE; y++) {
+                    for (int x = 0; x < SIZE; x++) {
+                        values[ind++] = value(i, c, y, x);
+                    }
+                }
+            }
+        }
+        return manager.create(values, new Shape(N_TILES, N_CHANNELS, SIZE, SIZE));
+    }
+
+    private static float value(int tile, int channel, int y, int x) {
+        return tile * 100 + channel * 10 + y * 2 + x;
+    }
+
+}
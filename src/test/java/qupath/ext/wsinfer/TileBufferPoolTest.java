@@ -0,0 +1,70 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class TileBufferPoolTest {
+
+    @Test
+    void testByteBuffersReused() {
+        var pool = new TileBufferPool(2, 1000);
+        var buffer = pool.acquireByteBuffer(100);
+        pool.release(buffer);
+        assertEquals(100, pool.getRetainedByteBufferBytes());
+        assertSame(buffer, pool.acquireByteBuffer(100));
+        assertEquals(0, pool.getRetainedByteBufferBytes());
+        assertEquals(1, pool.getAllocatedCount());
+        assertEquals(1, pool.getReusedCount());
+    }
+
+    @Test
+    void testByteBuffersLimitedByCapacity() {
+        var pool = new TileBufferPool(10, 250);
+        var first = pool.acquireByteBuffer(100);
+        var second = pool.acquireByteBuffer(100);
+        var third = pool.acquireByteBuffer(100);
+        pool.release(first);
+        pool.release(second);
+        // No room for another buffer of the same size
+        pool.release(third);
+        assertEquals(200, pool.getRetainedByteBufferBytes());
+        assertSame(first, pool.acquireByteBuffer(100));
+        assertSame(second, pool.acquireByteBuffer(100));
+        assertNotSame(third, pool.acquireByteBuffer(100));
+    }
+
+    @Test
+    void testOtherSizesDiscardedForNewSize() {
+        // e.g. when the batch size is increased, buffers for the previous size should make way for the new size
+        var pool = new TileBufferPool(10, 250);
+        var small = pool.acquireByteBuffer(100);
+        var small2 = pool.acquireByteBuffer(100);
+        var large = pool.acquireByteBuffer(200);
+        pool.release(small);
+        pool.release(small2);
+        pool.release(large);
+        assertEquals(200, pool.getRetainedByteBufferBytes());
+        assertSame(large, pool.acquireByteBuffer(200));
+        assertNotSame(small, pool.acquireByteBuffer(100));
+    }
+
+}
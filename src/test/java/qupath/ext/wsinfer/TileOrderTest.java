@@ -0,0 +1,120 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TileOrderTest {
+
+    private static final int TILE_SIZE = 100;
+
+    private record Cell(int x, int y) {
+
+        private double centroidX() {
+            return (x + 0.5) * TILE_SIZE;
+        }
+
+        private double centroidY() {
+            return (y + 0.5) * TILE_SIZE;
+        }
+
+    }
+
+    @Test
+    void testHierarchyKeepsOrder() {
+        var cells = createShuffledGrid(4, 4);
+        var original = List.copyOf(cells);
+        sort(TileOrder.HIERARCHY, cells);
+        assertEquals(original, cells);
+    }
+
+    @Test
+    void testZOrder() {
+        var cells = createShuffledGrid(4, 4);
+        sort(TileOrder.Z_ORDER, cells);
+        // x gives the lower bit and y the higher bit at each level
+        assertEquals(List.of(
+                new Cell(0, 0), new Cell(1, 0), new Cell(0, 1), new Cell(1, 1),
+                new Cell(2, 0), new Cell(3, 0), new Cell(2, 1), new Cell(3, 1),
+                new Cell(0, 2), new Cell(1, 2), new Cell(0, 3), new Cell(1, 3),
+                new Cell(2, 2), new Cell(3, 2), new Cell(2, 3), new Cell(3, 3)), cells);
+    }
+
+    @Test
+    void testHilbertVisitsNeighbors() {
+        for (int size : new int[] {2, 4, 8, 16}) {
+            var cells = createShuffledGrid(size, size);
+            sort(TileOrder.HILBERT, cells);
+            assertEquals(size * size, new HashSet<>(cells).size());
+            assertEquals(new Cell(0, 0), cells.get(0));
+            assertEquals(new Cell(size - 1, 0), cells.get(cells.size() - 1));
+            // Every step along a Hilbert curve moves to an adjacent cell
+            for (int i = 1; i < cells.size(); i++) {
+                var previous = cells.get(i - 1);
+                var current = cells.get(i);
+                assertEquals(1, Math.abs(current.x() - previous.x()) + Math.abs(current.y() - previous.y()),
+                        "Step " + i + " from " + previous + " to " + current);
+            }
+        }
+    }
+
+    @Test
+    void testUsesSameScaleForBothDimensions() {
+        // A wide strip should be split into square blocks, rather than stretched to fill the curve
+        var cells = createShuffledGrid(4, 2);
+        sort(TileOrder.Z_ORDER, cells);
+        assertEquals(List.of(
+                new Cell(0, 0), new Cell(1, 0), new Cell(0, 1), new Cell(1, 1),
+                new Cell(2, 0), new Cell(3, 0), new Cell(2, 1), new Cell(3, 1)), cells);
+    }
+
+    @Test
+    void testSmallLists() {
+        for (var order : TileOrder.values()) {
+            List<Cell> empty = new ArrayList<>();
+            sort(order, empty);
+            assertEquals(List.of(), empty);
+
+            List<Cell> single = new ArrayList<>(List.of(new Cell(3, 5)));
+            sort(order, single);
+            assertEquals(List.of(new Cell(3, 5)), single);
+        }
+    }
+
+    private static void sort(TileOrder order, List<Cell> cells) {
+        order.sort(cells, Cell::centroidX, Cell::centroidY);
+    }
+
+    private static List<Cell> createShuffledGrid(int width, int height) {
+        List<Cell> cells = new ArrayList<>();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++)
+                cells.add(new Cell(x, y));
+        }
+        Collections.shuffle(cells, new Random(42));
+        return cells;
+    }
+
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright 2023 University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.wsinfer;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BandedSampleModel;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TilePaddingTest {
+
+    @Test
+    void testReflectMatchesOpenCVExample() {
+        // Example from the OpenCV docs for BORDER_REFLECT: fedcba|abcdefgh|hgfedcb
+        int[] src = {0, 1, 2, 3, 4, 5, 6, 7};
+        int[] expected = {5, 4, 3, 2, 1, 0, 0, 1, 2, 3, 4, 5, 6, 7, 7, 6, 5, 4, 3, 2, 1};
+        assertArrayEquals(expected, padRow(TilePadding.reflect(), src, 6, expected.length));
+    }
+
+    @Test
+    void testReflectMatchesBorderInterpolate() {
+        // Include padding wider than the source, which is reflected more than once
+        for (int n : new int[] {1, 2, 3, 5}) {
+            int[] src = new int[n];
+            for (int i = 0; i < n; i++)
+                src[i] = 10 + i;
+            for (int left : new int[] {0, 1, 4, 11}) {
+                int width = left + n + 13;
+                int[] expected = new int[width];
+                for (int x = 0; x < width; x++)
+                    expected[x] = src[borderReflect(x - left, n)];
+                assertArrayEquals(expected, padRow(TilePadding.reflect(), src, left, width), "n=" + n + ", left=" + left);
+            }
+        }
+    }
+
+    @Test
+    void testConstant() {
+        int[] src = {1, 2, 3};
+        assertArrayEquals(new int[] {9, 9, 1, 2, 3, 9}, padRow(TilePadding.constant(9), src, 2, 6));
+    }
+
+    @Test
+    void testCornerTiles() {
+        // A 3x2 region at the top left of the image, padded to a 5x4 tile
+        var src = createRaster(3, 2, 3);
+        var dest = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, 5, 4, 3, null);
+        TilePadding.reflect().pad(src, dest, 2, 2);
+        checkReflected(src, dest, 2, 2);
+
+        // The same region at the bottom right of the image
+        dest = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, 5, 4, 3, null);
+        TilePadding.reflect().pad(src, dest, 0, 0);
+        checkReflected(src, dest, 0, 0);
+    }
+
+    @Test
+    void testInBoundsTileIsCopied() {
+        var src = createRaster(4, 3, 3);
+        var dest = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, 4, 3, 3, null);
+        TilePadding.reflect().pad(src, dest, 0, 0);
+        assertArrayEquals(src.getPixels(0, 0, 4, 3, (int[])null), dest.getPixels(0, 0, 4, 3, (int[])null));
+    }
+
+    @Test
+    void testChildRaster() {
+        // Source rasters read from a larger region may not start at (0, 0)
+        var parent = createRaster(10, 10, 3);
+        var src = parent.createChild(4, 5, 3, 2, 4, 5, null);
+        var dest = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, 6, 5, 3, null);
+        TilePadding.reflect().pad(src, dest, 1, 2);
+        checkReflected(src, dest, 1, 2);
+    }
+
+    @Test
+    void testFloat() {
+        var src = createFloatRaster(2, 1);
+        src.setSample(0, 0, 0, 0.25f);
+        src.setSample(1, 0, 0, 0.75f);
+        var dest = createFloatRaster(4, 2);
+        TilePadding.constant(0.5).pad(src, dest, 1, 0);
+        assertArrayEquals(new double[] {0.5, 0.25, 0.75, 0.5, 0.5, 0.5, 0.5, 0.5},
+                dest.getPixels(0, 0, 4, 2, (double[])null), 1e-6);
+
+        dest = createFloatRaster(4, 2);
+        TilePadding.reflect().pad(src, dest, 1, 0);
+        assertArrayEquals(new double[] {0.25, 0.25, 0.75, 0.75, 0.25, 0.25, 0.75, 0.75},
+                dest.getPixels(0, 0, 4, 2, (double[])null), 1e-6);
+    }
+
+    @Test
+    void testBandMismatch() {
+        var src = createRaster(2, 2, 1);
+        var dest = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, 4, 4, 3, null);
+        assertThrows(IllegalArgumentException.class, () -> TilePadding.reflect().pad(src, dest, 1, 1));
+    }
+
+    private static void checkReflected(Raster src, WritableRaster dest, int left, int top) {
+        for (int y = 0; y < dest.getHeight(); y++) {
+            for (int x = 0; x < dest.getWidth(); x++) {
+                int sx = borderReflect(x - left, src.getWidth());
+                int sy = borderReflect(y - top, src.getHeight());
+                for (int b = 0; b < src.getNumBands(); b++) {
+                    assertEquals(src.getSample(src.getMinX() + sx, src.getMinY() + sy, b), dest.getSample(x, y, b),
+                            "x=" + x + ", y=" + y + ", b=" + b);
+                }
+            }
+        }
+    }
+
+    private static int[] padRow(TilePadding padding, int[] values, int left, int width) {
+        var src = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, values.length, 1, 1, null);
+        src.setPixels(0, 0, values.length, 1, values);
+        var dest = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, width, 1, 1, null);
+        padding.pad(src, dest, left, 0);
+        return dest.getPixels(0, 0, width, 1, (int[])null);
+    }
+
+    private static WritableRaster createFloatRaster(int width, int height) {
+        return Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, width, height, 1), null);
+    }
+
+    private static WritableRaster createRaster(int width, int height, int nBands) {
+        var img = new BufferedImage(width, height, nBands == 1 ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_3BYTE_BGR);
+        var raster = img.getRaster();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                for (int b = 0; b < nBands; b++)
+                    raster.setSample(x, y, b, (x * 17 + y * 31 + b * 71) % 256);
+            }
+        }
+        return raster;
+    }
+
+    /**
+     * Port of OpenCV's {@code borderInterpolate} for {@code BORDER_REFLECT}, as used by {@code DnnTools.readPatch}.
+     */
+    private static int borderReflect(int p, int len) {
+        if (p >= 0 && p < len)
+            return p;
+        if (len == 1)
+            return 0;
+        do {
+            if (p < 0)
+                p = -p - 1;
+            else
+                p = len - 1 - (p - len);
+        } while (p < 0 || p >= len);
+        return p;
+    }
+
+}